@@ -9,15 +9,12 @@ import android.util.TypedValue;
 import android.view.KeyEvent;
 import android.widget.Toast;
 
-import com.mrikso.codeeditor.lang.Language;
 import com.mrikso.codeeditor.lang.LanguageJava;
 import com.mrikso.codeeditor.util.Document;
 import com.mrikso.codeeditor.util.DocumentProvider;
-import com.mrikso.codeeditor.util.Lexer;
 import com.mrikso.codeeditor.view.ColorScheme;
 import com.mrikso.codeeditor.view.FreeScrollingTextField;
 import com.mrikso.codeeditor.view.YoyoNavigationMethod;
-import com.mrikso.codeeditor.view.autocomplete.AutoCompletePanel;
 
 import java.io.File;
 
@@ -124,11 +121,6 @@ public class TextEditor extends FreeScrollingTextField {
         getColorScheme().setColor(ColorScheme.Colorable.SELECTION_BACKGROUND, color);
     }
 
-    public void setLanguage(Language language){
-        AutoCompletePanel.setLanguage(language);
-        Lexer.setLanguage(language);
-    }
-
     public String getSelectedText() {
         // TODO: Implement this method
         return hDoc.subSequence(getSelectionStart(), getSelectionEnd() - getSelectionStart()).toString();
@@ -177,8 +169,9 @@ public class TextEditor extends FreeScrollingTextField {
     }
 
     public void setText(CharSequence c) {
-        Document doc = new Document(this);
+        Document doc = new Document(getLayoutEngine());
         doc.setWordWrap(_isWordWrap);
+        doc.setLanguage(getLanguage());
         doc.setText(c);
         setDocumentProvider(new DocumentProvider(doc));
     }
@@ -249,7 +242,7 @@ public class TextEditor extends FreeScrollingTextField {
         _lastSelectFile = filename;
 
         File inputFile = new File(filename);
-        _inputtingDoc = new Document(this);
+        _inputtingDoc = new Document(getLayoutEngine());
         _inputtingDoc.setWordWrap(this.isWordWrap());
         ReadThread readThread = new ReadThread(inputFile.getAbsolutePath(), handler);
         readThread.start();
@@ -8,6 +8,7 @@
  */
 package com.mrikso.codeeditor.lang;
 
+import com.mrikso.codeeditor.util.DelimiterMatcher;
 import com.mrikso.codeeditor.util.Lexer;
 
 import java.util.HashMap;
@@ -28,6 +29,15 @@ public abstract class Language
 	public final static String GLYPH_SPACE = "\u00b7";
 	public final static String GLYPH_TAB = "\u00bb";
 
+	/** Fold styles, see getFoldStyle() */
+	public final static int FOLD_NONE = 0;
+	/** Regions are enclosed in braces */
+	public final static int FOLD_BRACES = 1;
+	/** Regions are the lines indented deeper than the line before them */
+	public final static int FOLD_INDENT = 2;
+	/** Regions are enclosed in a directive and .end with the same name */
+	public final static int FOLD_DIRECTIVES = 3;
+
 
 	private final static char[] BASIC_C_OPERATORS = {
 		'(', ')', '{', '}', '.', ',', ';', '=', '+', '-',
@@ -37,36 +47,47 @@ public abstract class Language
 
 
 	protected HashMap<String, Integer> _keywordsMap = new HashMap<String, Integer>(0);
-	protected HashMap<String, Integer> _namesMap = new HashMap<String, Integer>(0);
-	protected HashMap<String, String[]> _basesMap = new HashMap<String, String[]>(0);
+	protected HashMap<String, Integer> _namesMap = new LinkedHashMap<String, Integer>(0);
+	protected HashMap<String, BasePackage> _basesMap = new HashMap<String, BasePackage>(0);
 	protected HashMap<String, Integer> _usersMap = new HashMap<String, Integer>(0);//userWord是那种用户自己定义的标识符
 	protected HashMap<Character, Integer> _operatorsMap = generateOperators(BASIC_C_OPERATORS);
+	private DelimiterMatcher _delimiters = new DelimiterMatcher(
+		new String[]{"//"}, new String[]{"/*"}, new String[]{"*/"});
 	
 	private ArrayList<String> _userCache = new ArrayList<String>();
-	private String[] _userWords=new String[0];
+	/** built from _userCache on demand */
+	private String[] _userWords = null;
 	private String[] _keyword;
-	private String[] _name = new String[0];
+	/** names in insertion order, built from _namesMap on demand */
+	private String[] _name = null;
 
-	public void updateUserWord()
+	public synchronized void updateUserWord()
 	{
-		// TODO: Implement this method
-		String[] uw = new String[_userCache.size()];
-		_userWords = _userCache.toArray(uw);
+		_userWords = null;
 	}
 
-	public String[] getUserWord()
+	public synchronized String[] getUserWord()
 	{
-		return  _userWords;
+		if (_userWords == null)
+		{
+			_userWords = _userCache.toArray(new String[_userCache.size()]);
+		}
+		return _userWords;
 	}
 
-	public String[] getNames()
+	public synchronized String[] getNames()
 	{
+		if (_name == null)
+		{
+			_name = _namesMap.keySet().toArray(new String[_namesMap.size()]);
+		}
 		return _name;
 	}
 	
 	public String[] getBasePackage(String name)
 	{
-		return _basesMap.get(name);
+		BasePackage pkg = _basesMap.get(name);
+		return (pkg == null) ? null : pkg.getMembers();
 	}
 	
 	public String[] getKeywords()
@@ -88,35 +109,50 @@ public abstract class Language
 		}
 	}
 
-	public void setNames(String[] names)
+	public synchronized void setNames(String[] names)
 	{
-		_name = names;
-		ArrayList<String> buf=new ArrayList<String>();
-		_namesMap = new HashMap<String, Integer>(names.length);
-		for (int i = 0; i < names.length; ++i) 
+		_namesMap = new LinkedHashMap<String, Integer>(names.length);
+		addNames(names);
+	}
+
+	/**
+	 * Adds names to the existing ones. Duplicates are ignored.
+	 */
+	public synchronized void addNames(String[] names)
+	{
+		for (int i = 0; i < names.length; ++i)
 		{
-			if(!buf.contains(names[i]))
-				buf.add(names[i]);
 			_namesMap.put(names[i], Lexer.NAME);
 		}
-		_name=new String[buf.size()];
-		buf.toArray(_name);
+		_name = null;
 	}
 
 	public void addBasePackage(String name, String[] names)
 	{
-		_basesMap.put(name, names);
+		_basesMap.put(name, new BasePackage(names));
 	}
 
-	public void clearUserWord()
+	/**
+	 * Same as addBasePackage(String, String[]), but the members are given as
+	 * one string separated by '|'. The string is only split when the package
+	 * is first looked up.
+	 */
+	public void addBasePackage(String name, String names)
+	{
+		_basesMap.put(name, new BasePackage(names));
+	}
+
+	public synchronized void clearUserWord()
 	{
 		_userCache.clear();
 		_usersMap.clear();
+		_userWords = null;
 	}
 
-	public void addUserWord(String name)
+	public synchronized void addUserWord(String name)
 	{
-		if(!_userCache.contains(name) && !_namesMap.containsKey(name))
+		// every word in _userCache is also in _usersMap
+		if(!_usersMap.containsKey(name) && !_namesMap.containsKey(name))
 			_userCache.add(name);
 		_usersMap.put(name, Lexer.NAME);
 	}
@@ -126,6 +162,22 @@ public abstract class Language
 		_operatorsMap = generateOperators(operators);
 	}
 
+	/**
+	 * Sets the sequences that start a token running until the end of the line,
+	 * and the start and end sequences of tokens that can span multiple lines.
+	 * multilineEnds[i] closes the token opened by multilineStarts[i].
+	 * Sequences can be of any length.
+	 */
+	protected void setDelimiters(String[] lineStarts, String[] multilineStarts, String[] multilineEnds)
+	{
+		_delimiters = new DelimiterMatcher(lineStarts, multilineStarts, multilineEnds);
+	}
+
+	public final DelimiterMatcher getDelimiterMatcher()
+	{
+		return _delimiters;
+	}
+
 	private HashMap<Character, Integer> generateOperators(char[] operators)
 	{
 		HashMap<Character, Integer> operatorsMap = new HashMap<Character, Integer>(operators.length);
@@ -158,13 +210,8 @@ public abstract class Language
 
 	public final boolean isBaseWord(String p, String s)
 	{
-		String[] pkg= _basesMap.get(p);
-		for (String n:pkg)
-		{
-			if (n.equals(s))
-				return true;
-		}
-		return false;
+		BasePackage pkg = _basesMap.get(p);
+		return pkg != null && pkg.contains(s);
 	}
 
 	public final boolean isUserWord(String s)
@@ -278,29 +325,61 @@ public abstract class Language
 	}
 
 	/**
-	 * Whether c0c1L is a token, where L is a sequence of characters until the end of the line
-	 * 单行注释
+	 * How Lexer finds the regions of code that can be folded; one of the
+	 * FOLD_ constants
 	 */
-	public boolean isLineStart(char c0, char c1)
+	public int getFoldStyle()
 	{
-		return (c0 == '/' && c1 == '/');
+		return FOLD_BRACES;
 	}
 
 	/**
-	 * Whether c0c1 signifies the start of a multi-line token
-	 * 多行注释开始
+	 * For FOLD_DIRECTIVES, whether word, including its leading symbol,
+	 * opens a region that is closed by .end and word without that symbol
 	 */
-	public boolean isMultilineStartDelimiter(char c0, char c1)
+	public boolean isFoldDirective(String word)
 	{
-		return (c0 == '/' && c1 == '*');
+		return false;
 	}
 
 	/**
-	 * Whether c0c1 signifies the end of a multi-line token
-	 * 多行注释结束
+	 * Members of a base package, compiled on first use
 	 */
-	public boolean isMultilineEndDelimiter(char c0, char c1)
+	protected static class BasePackage
 	{
-		return (c0 == '*' && c1 == '/');
+		private String _packed;
+		private String[] _members;
+		private HashSet<String> _memberSet;
+
+		BasePackage(String packed)
+		{
+			_packed = packed;
+		}
+
+		BasePackage(String[] members)
+		{
+			_members = members;
+		}
+
+		public synchronized String[] getMembers()
+		{
+			if (_members == null)
+			{
+				_members = _packed.split("\\|");
+				_packed = null;
+			}
+			return _members;
+		}
+
+		public synchronized boolean contains(String s)
+		{
+			if (_memberSet == null)
+			{
+				String[] members = getMembers();
+				_memberSet = new HashSet<String>(members.length * 2);
+				Collections.addAll(_memberSet, members);
+			}
+			return _memberSet.contains(s);
+		}
 	}
 }
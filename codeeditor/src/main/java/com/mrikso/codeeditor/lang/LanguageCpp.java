@@ -73,14 +73,6 @@ public class LanguageCpp extends Language{
 		}
 		return _theOne;
 	}
-	public void addNames(String[] names) {
-		String[] old=this.getNames();
-		String[] news=new String[old.length + names.length];
-		System.arraycopy(old, 0, news, 0, old.length);
-		System.arraycopy(names, 0, news, old.length, names.length);
-		this.setNames(news);
-
-	}
 	private LanguageCpp(){
 		setOperators(BASIC_C_OPERATORS);
 		setKeywords(keywords);
@@ -42,6 +42,18 @@ public class LanguageLua extends Language {
 		'/', '*', '&', '!', '|', ':', '[', ']', '<', '>',
 		'?', '~', '%', '^'
 	};
+	/**
+	 * Comments start with --, block comments and long strings are enclosed
+	 * in long brackets of level 0 to 2, e.g. --[[ ]], [==[ ]==]
+	 */
+	private final static String[] LINE_STARTS = {"--"};
+	private final static String[] MULTILINE_STARTS = {
+		"--[[", "--[=[", "--[==[", "[[", "[=[", "[==["
+	};
+	private final static String[] MULTILINE_ENDS = {
+		"]]", "]=]", "]==]", "]]", "]=]", "]==]"
+	};
+
 	public static Language getInstance(){
 		if(_theOne == null){
 			_theOne = new LanguageLua();
@@ -51,18 +63,19 @@ public class LanguageLua extends Language {
 	
 	private LanguageLua(){
 		super.setOperators(LUA_OPERATORS);
+		super.setDelimiters(LINE_STARTS, MULTILINE_STARTS, MULTILINE_ENDS);
 		super.setKeywords(keywords);
 		super.setNames(names);
-		super.addBasePackage("io",package_io.split("\\|"));
-		super.addBasePackage("string",package_string.split("\\|"));
-		super.addBasePackage("luajava",package_luajava.split("\\|"));
-		super.addBasePackage("os",package_os.split("\\|"));
-		super.addBasePackage("table",package_table.split("\\|"));
-		super.addBasePackage("math",package_math.split("\\|"));
-		super.addBasePackage("utf8",package_utf8.split("\\|"));
-		super.addBasePackage("coroutine",package_coroutine.split("\\|"));
-		super.addBasePackage("package",package_package.split("\\|"));
-		super.addBasePackage("debug",package_debug.split("\\|"));
+		super.addBasePackage("io", package_io);
+		super.addBasePackage("string", package_string);
+		super.addBasePackage("luajava", package_luajava);
+		super.addBasePackage("os", package_os);
+		super.addBasePackage("table", package_table);
+		super.addBasePackage("math", package_math);
+		super.addBasePackage("utf8", package_utf8);
+		super.addBasePackage("coroutine", package_coroutine);
+		super.addBasePackage("package", package_package);
+		super.addBasePackage("debug", package_debug);
 	}
 	
 	/**
@@ -75,26 +88,10 @@ public class LanguageLua extends Language {
 	public boolean isLineAStart(char c){
 		return false;
 	}
-	
-	/**
-	 * Whether c0c1L is a token, where L is a sequence of characters until the end of the line
-	 */
-	public boolean isLineStart(char c0, char c1){
-		return (c0 == '-' && c1 == '-');
-	}
 
-	/**
-	 * Whether c0c1 signifies the start of a multi-line token
-	 */
-	public boolean isMultilineStartDelimiter(char c0, char c1){
-		return (c0 == '[' && c1 == '[');
-	}
-
-	/**
-	 * Whether c0c1 signifies the end of a multi-line token
-	 */
-	public boolean isMultilineEndDelimiter(char c0, char c1){
-		return (c0 == ']' && c1 == ']');
+	@Override
+	public int getFoldStyle(){
+		return FOLD_INDENT;
 	}
 	
 }
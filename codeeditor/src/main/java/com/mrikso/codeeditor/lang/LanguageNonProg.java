@@ -30,6 +30,7 @@ public class LanguageNonProg extends Language{
 	private LanguageNonProg(){
 		super.setKeywords(keywords);
 		super.setOperators(operators);
+		super.setDelimiters(new String[0], new String[0], new String[0]);
 	}
 
 	@Override
@@ -58,17 +59,7 @@ public class LanguageNonProg extends Language{
 	}
 
 	@Override
-	public boolean isLineStart(char c0, char c1){
-		return false;
-	}
-
-	@Override
-	public boolean isMultilineStartDelimiter(char c0, char c1){
-		return false;
-	}
-
-	@Override
-	public boolean isMultilineEndDelimiter(char c0, char c1){
-		return false;
+	public int getFoldStyle(){
+		return FOLD_NONE;
 	}
 }
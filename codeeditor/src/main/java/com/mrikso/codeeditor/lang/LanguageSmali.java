@@ -8,6 +8,9 @@
  */
 package com.mrikso.codeeditor.lang;
 
+import java.util.Arrays;
+import java.util.List;
+
 /**
  * Singleton class containing the symbols and operators of the Smali language
  */
@@ -274,23 +277,17 @@ public class LanguageSmali extends Language {
             ".end",
             ".restart"
     };
+    /**
+     * Directives that open a block closed by .end, like .method and .end method
+     */
+    private final static List<String> foldDirectives = Arrays.asList(
+            ".method", ".annotation", ".subannotation", ".param",
+            ".packed-switch", ".sparse-switch", ".array-data");
     private static Language _theOne = null;
 
-	public void addNames(String[] names) {
-		String[] old=getNames();
-		//if(old.length != 0) {
-			String[] news = new String[old.length + names.length];
-			System.arraycopy(old, 0, news, 0, old.length);
-			System.arraycopy(names, 0, news, old.length, names.length);
-			setNames(news);
-		//}
-		//else {
-			//setNames(names);
-		//}
-	}
-
     private LanguageSmali() {
 		setOperators(operators);
+        setDelimiters(new String[0], new String[0], new String[0]);
         setKeywords(keywords);
         addNames(mProKeyWord);
 		addNames(clalifcators);
@@ -319,14 +316,14 @@ public class LanguageSmali extends Language {
 		return (c == '.');
 	}
 
-    @Override
-    public boolean isLineStart(char c0, char c1) {
-        return false;
-    }
+	@Override
+	public int getFoldStyle() {
+		return FOLD_DIRECTIVES;
+	}
 
-    @Override
-    public boolean isMultilineStartDelimiter(char c0, char c1) {
-        return false;
-    }
+	@Override
+	public boolean isFoldDirective(String word) {
+		return foldDirectives.contains(word);
+	}
 
 }
@@ -17,7 +17,11 @@ public class XMLLanguage extends Language {
 		return _theOne;
 	}
 
+	private final static String[] MULTILINE_STARTS = {"<!--", "<![CDATA["};
+	private final static String[] MULTILINE_ENDS = {"-->", "]]>"};
+
 	private XMLLanguage() {
+		super.setDelimiters(new String[0], MULTILINE_STARTS, MULTILINE_ENDS);
 	}
 
 	/**
@@ -32,28 +36,8 @@ public class XMLLanguage extends Language {
 		return false;
 	}
 
-	/**
-	 * Whether c0c1 signifies the start of a multi-line token
-	 */
-	public boolean isMultilineStartDelimiter(char c0, char c1, char c2, char c3) {
-		return (c0 == '<' && c1 == '!' && c2 == '-' && c3 == '-');
-	}
-
-	/**
-	 * Whether c0c1 signifies the end of a multi-line token
-	 */
-	public boolean isMultilineEndDelimiter(char c0, char c1, char c2) {
-		return (c0 == '-' && c1 == '-' && c2 == '>');
-	}
-	public boolean isMultilineStartDelimiter(char c0, char c1) {
-		return (c0 == '<' && c1 == '!');
-	}
-
-	/**
-	 * Whether c0c1 signifies the end of a multi-line token
-	 */
-	public boolean isMultilineEndDelimiter(char c0, char c1) {
-		return (c0 == '-' && c1 == '>');
+	@Override
+	public int getFoldStyle() {
+		return FOLD_INDENT;
 	}
 }
-
@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2013 Tah Wei Hoon.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Apache License Version 2.0,
+ * with full text available at http://www.apache.org/licenses/LICENSE-2.0.html
+ *
+ * This software is provided "as is". Use at your own risk.
+ */
+package com.mrikso.codeeditor.util;
+
+/**
+ * Case folding for case-insensitive search.
+ *
+ * Two chars match ignoring case if they fold to the same char. A char is
+ * folded by converting it to upper case and then to lower case, which also
+ * matches chars like the Greek final sigma that have the same upper case
+ * but different lower cases. This is what a case-insensitive
+ * java.util.regex pattern accepts for a single char.
+ *
+ * ASCII chars are folded by arithmetic. Other chars are looked up in a
+ * table of every char of the Basic Multilingual Plane, which is built the
+ * first time it is needed and takes 128 KB.
+ */
+public final class CaseFolding {
+    private CaseFolding() {
+    }
+
+    public static char fold(char c) {
+        if (c < 0x80) {
+            return (c >= 'A' && c <= 'Z') ? (char) (c + ('a' - 'A')) : c;
+        }
+        return Table.FOLDED[c];
+    }
+
+    /**
+     * @return A new array with every char of s folded
+     */
+    public static char[] fold(String s) {
+        char[] chars = s.toCharArray();
+        for (int i = 0; i < chars.length; ++i) {
+            chars[i] = fold(chars[i]);
+        }
+        return chars;
+    }
+
+    public static boolean equalsIgnoreCase(char a, char b) {
+        return a == b || fold(a) == fold(b);
+    }
+
+    /**
+     * Holds the table, so that it is only built when the first non-ASCII
+     * char is folded
+     */
+    private static class Table {
+        static final char[] FOLDED = new char[Character.MAX_VALUE + 1];
+
+        static {
+            for (int c = 0; c <= Character.MAX_VALUE; ++c) {
+                FOLDED[c] = Character.toLowerCase(Character.toUpperCase((char) c));
+            }
+        }
+    }
+}
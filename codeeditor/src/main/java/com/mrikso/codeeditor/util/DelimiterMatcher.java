@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) 2013 Tah Wei Hoon.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Apache License Version 2.0,
+ * with full text available at http://www.apache.org/licenses/LICENSE-2.0.html
+ *
+ * This software is provided "as is". Use at your own risk.
+ */
+package com.mrikso.codeeditor.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Aho-Corasick automaton over the comment and string delimiters of a language.
+ *
+ * Line start delimiters begin a token that runs until the end of the line.
+ * Multi-line start delimiters begin a token that runs until the matching
+ * end delimiter. Delimiters can be of any length.
+ *
+ * The matcher is fed one char at a time through next(int, char) and reports
+ * the delimiters ending at that char, so all of them are recognized in a
+ * single pass over the text. The matcher itself is immutable and can be
+ * shared between threads; the current state is an int kept by the caller.
+ */
+public class DelimiterMatcher {
+    public final static int ROOT = 0;
+    public final static int NO_MATCH = -1;
+    /**
+     * Matches are tracked in a long bit set, one bit per delimiter
+     */
+    public final static int MAX_DELIMITERS = 64;
+
+    private final int _lineStartCount;
+    private final int _multilineCount;
+    private final int[] _lengths;
+
+    /**
+     * Chars that appear in any delimiter. Other chars always lead back to ROOT.
+     */
+    private final char[] _alphabet;
+    private final int[] _asciiIndex = new int[128];
+    /**
+     * Fully resolved transitions, _delta[state * _alphabet.length + charIndex]
+     */
+    private final int[] _delta;
+    /**
+     * Bit set of the delimiters ending at each state
+     */
+    private final long[] _outputs;
+    /**
+     * Longest start delimiter ending at each state, or NO_MATCH
+     */
+    private final int[] _longestStart;
+
+    /**
+     * @param lineStarts      Delimiters that start a token running until the end of the line
+     * @param multilineStarts Delimiters that start a multi-line token
+     * @param multilineEnds   multilineEnds[i] ends the token started by multilineStarts[i]
+     */
+    public DelimiterMatcher(String[] lineStarts, String[] multilineStarts, String[] multilineEnds) {
+        TextWarriorException.assertVerbose(multilineStarts.length == multilineEnds.length,
+                "Every multi-line start delimiter needs an end delimiter");
+        TextWarriorException.assertVerbose(
+                lineStarts.length + multilineStarts.length * 2 <= MAX_DELIMITERS,
+                "Too many delimiters");
+
+        _lineStartCount = lineStarts.length;
+        _multilineCount = Math.min(multilineStarts.length, multilineEnds.length);
+        // ids: line starts, then multi-line starts, then multi-line ends
+        String[] patterns = new String[_lineStartCount + _multilineCount * 2];
+        System.arraycopy(lineStarts, 0, patterns, 0, _lineStartCount);
+        System.arraycopy(multilineStarts, 0, patterns, _lineStartCount, _multilineCount);
+        System.arraycopy(multilineEnds, 0, patterns, _lineStartCount + _multilineCount, _multilineCount);
+
+        _lengths = new int[patterns.length];
+        StringBuilder chars = new StringBuilder();
+        for (int i = 0; i < patterns.length; ++i) {
+            TextWarriorException.assertVerbose(patterns[i].length() > 0, "Empty delimiter");
+            _lengths[i] = patterns[i].length();
+            chars.append(patterns[i]);
+        }
+        _alphabet = distinctSorted(chars);
+        Arrays.fill(_asciiIndex, -1);
+        for (int i = 0; i < _alphabet.length; ++i) {
+            if (_alphabet[i] < 128) {
+                _asciiIndex[_alphabet[i]] = i;
+            }
+        }
+        final int width = _alphabet.length;
+
+        // build the trie
+        ArrayList<int[]> trie = new ArrayList<int[]>();
+        ArrayList<Long> outputs = new ArrayList<Long>();
+        trie.add(newRow(width));
+        outputs.add(0L);
+        for (int i = 0; i < patterns.length; ++i) {
+            int state = ROOT;
+            for (int j = 0; j < patterns[i].length(); ++j) {
+                int c = charIndex(patterns[i].charAt(j));
+                if (trie.get(state)[c] == NO_MATCH) {
+                    trie.get(state)[c] = trie.size();
+                    trie.add(newRow(width));
+                    outputs.add(0L);
+                }
+                state = trie.get(state)[c];
+            }
+            outputs.set(state, outputs.get(state) | (1L << i));
+        }
+
+        // resolve failure links breadth-first into a full transition table
+        final int stateCount = trie.size();
+        _delta = new int[stateCount * width];
+        _outputs = new long[stateCount];
+        int[] fail = new int[stateCount];
+        int[] queue = new int[stateCount];
+        int head = 0;
+        int tail = 0;
+
+        for (int c = 0; c < width; ++c) {
+            int child = trie.get(ROOT)[c];
+            if (child == NO_MATCH) {
+                _delta[c] = ROOT;
+            } else {
+                _delta[c] = child;
+                fail[child] = ROOT;
+                queue[tail++] = child;
+            }
+        }
+        _outputs[ROOT] = outputs.get(ROOT);
+        while (head < tail) {
+            int state = queue[head++];
+            _outputs[state] = outputs.get(state) | _outputs[fail[state]];
+            for (int c = 0; c < width; ++c) {
+                int child = trie.get(state)[c];
+                int fallback = _delta[fail[state] * width + c];
+                if (child == NO_MATCH) {
+                    _delta[state * width + c] = fallback;
+                } else {
+                    _delta[state * width + c] = child;
+                    fail[child] = fallback;
+                    queue[tail++] = child;
+                }
+            }
+        }
+
+        final long startMask = lowBits(_lineStartCount + _multilineCount);
+        _longestStart = new int[stateCount];
+        for (int state = 0; state < stateCount; ++state) {
+            _longestStart[state] = longest(_outputs[state] & startMask);
+        }
+    }
+
+    /**
+     * Advances the automaton by one char
+     *
+     * @return The new state
+     */
+    public final int next(int state, char c) {
+        int i = charIndex(c);
+        return (i < 0) ? ROOT : _delta[state * _alphabet.length + i];
+    }
+
+    /**
+     * @return The longest start delimiter ending at state, or NO_MATCH if there is none
+     */
+    public final int startAt(int state) {
+        return _longestStart[state];
+    }
+
+    /**
+     * Whether the end delimiter of the multi-line token started by
+     * startDelimiter ends at state
+     */
+    public final boolean isEndAt(int state, int startDelimiter) {
+        return (_outputs[state] & (1L << (startDelimiter + _multilineCount))) != 0;
+    }
+
+    /**
+     * Whether delimiter starts a token that runs until the end of the line
+     */
+    public final boolean isLineStart(int delimiter) {
+        return delimiter < _lineStartCount;
+    }
+
+    public final int length(int delimiter) {
+        return _lengths[delimiter];
+    }
+
+    public final boolean isEmpty() {
+        return _lengths.length == 0;
+    }
+
+    private int charIndex(char c) {
+        if (c < 128) {
+            return _asciiIndex[c];
+        }
+        int i = Arrays.binarySearch(_alphabet, c);
+        return (i < 0) ? -1 : i;
+    }
+
+    private int longest(long matches) {
+        int best = NO_MATCH;
+        while (matches != 0) {
+            int id = Long.numberOfTrailingZeros(matches);
+            if (best == NO_MATCH || _lengths[id] > _lengths[best]) {
+                best = id;
+            }
+            matches &= matches - 1;
+        }
+        return best;
+    }
+
+    private static long lowBits(int count) {
+        return (count >= 64) ? -1L : (1L << count) - 1;
+    }
+
+    private static int[] newRow(int width) {
+        int[] row = new int[width];
+        Arrays.fill(row, NO_MATCH);
+        return row;
+    }
+
+    private static char[] distinctSorted(CharSequence chars) {
+        char[] sorted = chars.toString().toCharArray();
+        Arrays.sort(sorted);
+        int count = 0;
+        for (int i = 0; i < sorted.length; ++i) {
+            if (count == 0 || sorted[count - 1] != sorted[i]) {
+                sorted[count++] = sorted[i];
+            }
+        }
+        return Arrays.copyOf(sorted, count);
+    }
+}
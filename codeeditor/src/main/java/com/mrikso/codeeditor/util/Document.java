@@ -10,31 +10,68 @@ package com.mrikso.codeeditor.util;
 
 import com.mrikso.codeeditor.lang.Language;
 
-import java.util.ArrayList;
-
 /**
  * A decorator of TextBuffer that adds word-wrap capabilities.
  *
  * Positions for word wrap row breaks are stored here.
  * Word-wrap is enabled by default.
+ *
+ * When more than LAZY_WRAP_THRESHOLD chars have to be wrapped at once, as
+ * when word wrap is turned on or the width changes, only the line breaks
+ * are found. The rows of each line are estimated from its length, which
+ * needs no measuring, and are marked as estimates in the row table. They
+ * are replaced by measured rows when refineWordWrap() is called for rows of
+ * that line, or for enough chars to reach it. Edited lines are always
+ * measured.
+ *
+ * Rows can be hidden by collapsing fold regions, see toggleFold(). The rows
+ * taken and returned by the public row methods are the visible ones. Hidden
+ * rows are indexed as runs of consecutive rows, with the number of rows
+ * hidden before each run, so visible and actual rows are mapped to each
+ * other with a binary search over the runs. The index is rebuilt when the
+ * rows or the collapsed regions change.
  */
 public class Document extends TextBuffer
 {
+	/** Wrapping more chars than this at once only estimates the rows */
+	public final static int LAZY_WRAP_THRESHOLD = 256 * 1024;
+
+	/** Fold states of a row, see getFoldState(int) */
+	public final static int FOLD_NONE = 0;
+	public final static int FOLD_EXPANDED = 1;
+	public final static int FOLD_COLLAPSED = 2;
 
 	private boolean _isWordWrap = false;
 
 	/** Contains info related to printing of characters, display size and so on */
 	private TextFieldMetrics _metrics;
 
-	/** A table containing the character offset of every row in the document.
-	 * Values are valid only in word-wrap mode */
-	private ArrayList<Integer> _rowTable;
+	/** A table containing the character offset of every row in the document */
+	private RowTable _rowTable = new RowTable();
+
+	/** Incremented whenever the rows are analyzed from scratch */
+	private int _wrapVersion = 0;
+
+	/** Where refineWordWrap(int) looks for estimated rows first */
+	private int _refineRow = 0;
+
+	private final FoldRegions _folds = new FoldRegions();
+
+	/** First row of each run of hidden rows, in ascending order */
+	private int[] _hiddenRunStarts = new int[0];
+	/** Number of rows hidden before each run, and in all runs at the end */
+	private int[] _hiddenBefore = {0};
+	private int _hiddenRunCount = 0;
+	/** The row table and versions the hidden runs were found for */
+	private RowTable _hiddenRowTable = null;
+	private int _hiddenRowsMod = -1;
+	private int _hiddenFoldsMod = -1;
 
 	public Document(TextFieldMetrics metrics)
 	{
 		super();
 		_metrics = metrics;
-		resetRowTable();
+		addEditListener(_folds);
 	}
 
 	public void setText(CharSequence text)
@@ -51,13 +88,6 @@ public class Document extends TextBuffer
 		setBuffer(ca, len, lineCount);
 	}
 
-	private void resetRowTable()
-	{
-		ArrayList<Integer> rowTable = new ArrayList<Integer>();
-		rowTable.add(0); //every document contains at least 1 row
-		_rowTable = rowTable;
-	}
-
 	public void setMetrics(TextFieldMetrics metrics)
 	{
 		_metrics = metrics;
@@ -65,7 +95,8 @@ public class Document extends TextBuffer
 
 	/**
 	 * Enable/disable word wrap. If enabled, the document is immediately
-	 * analyzed for word wrap breakpoints, which might take an arbitrarily long time.
+	 * analyzed for word wrap breakpoints, which are only estimated for
+	 * documents longer than LAZY_WRAP_THRESHOLD chars.
 	 */
 	public void setWordWrap(boolean enable)
 	{
@@ -92,7 +123,7 @@ public class Document extends TextBuffer
 	{
 		super.delete(charOffset, totalChars, timestamp, undoable);
 		
-		int startRow = findRowNumber(charOffset);
+		int startRow = _rowTable.find(charOffset);
 		int analyzeEnd = findNextLineFrom(charOffset);
 		updateWordWrapAfterEdit(startRow, analyzeEnd, -totalChars);
 	}
@@ -102,11 +133,29 @@ public class Document extends TextBuffer
 	{
 		super.insert(c, charOffset, timestamp, undoable);
 		
-		int startRow = findRowNumber(charOffset);
+		int startRow = _rowTable.find(charOffset);
 		int analyzeEnd = findNextLineFrom(charOffset + c.length);
 		updateWordWrapAfterEdit(startRow, analyzeEnd, c.length);
 	}
 
+	@Override
+	public synchronized void replace(int[] offsets, int[] lengths, int count,
+									 char[] replacements, int[] replacementLengths, boolean undoable)
+	{
+		if (count == 0)
+		{
+			return;
+		}
+		int startRow = _rowTable.find(offsets[0]);
+		super.replace(offsets, lengths, count, replacements, replacementLengths, undoable);
+
+		// rows before the line of the first replaced range are unchanged;
+		// wrap the rest of the document once
+		startRow = findLineStartRow(startRow);
+		_rowTable.remove(startRow + 1, _rowTable.size());
+		wrapRange(startRow + 1, _rowTable.get(startRow), getTextLength());
+	}
+
 	@Override
 	/**
 	 * Moves _gapStartIndex by displacement units. Note that displacement can be
@@ -124,7 +173,7 @@ public class Document extends TextBuffer
 			int startOffset = (displacement > 0)
 				? _gapStartIndex - displacement
 				: _gapStartIndex;
-			int startRow = findRowNumber(startOffset);
+			int startRow = _rowTable.find(startOffset);
 			int analyzeEnd = findNextLineFrom(_gapStartIndex);
 			updateWordWrapAfterEdit(startRow, analyzeEnd, displacement);
 		}
@@ -163,12 +212,23 @@ public class Document extends TextBuffer
 			// up, it may fit the previous line, so analyse that line too
 			--startRow;
 		}
+		if (_rowTable.isEstimate(startRow))
+		{
+			// measure the whole line, since its rows were only estimated
+			startRow = findLineStartRow(startRow);
+			_rowTable.setEstimate(startRow, false);
+		}
 		int analyzeStart = _rowTable.get(startRow);
 
 		//changes only affect the rows after startRow
-		removeRowMetadata(startRow + 1, analyzeEnd - delta);
+		boolean isNextLineEstimated = removeRowMetadata(startRow + 1, analyzeEnd - delta);
 		adjustOffsetOfRowsFrom(startRow + 1, delta);
-		analyzeWordWrap(startRow + 1, analyzeStart, analyzeEnd);
+		int nextRow = analyzeWordWrap(startRow + 1, analyzeStart, analyzeEnd);
+		if (isNextLineEstimated)
+		{
+			// the analysis added back the start of the next line
+			_rowTable.setEstimate(nextRow - 1, true);
+		}
 	}
 
 	/**
@@ -176,28 +236,33 @@ public class Document extends TextBuffer
 	 * inclusive.
 	 *
 	 * No error checking is done on parameters.
+	 *
+	 * @return Whether a row starting at endOffset was removed and was an estimate
 	 */
-	private void removeRowMetadata(int fromRow, int endOffset)
+	private boolean removeRowMetadata(int fromRow, int endOffset)
 	{
-		while (fromRow < _rowTable.size() &&
-			   _rowTable.get(fromRow) <= endOffset)
+		int toRow = fromRow;
+		while (toRow < _rowTable.size() &&
+			   _rowTable.get(toRow) <= endOffset)
 		{
-			_rowTable.remove(fromRow);
+			++toRow;
 		}
+		boolean isLastEstimated = toRow > fromRow &&
+			_rowTable.get(toRow - 1) == endOffset && _rowTable.isEstimate(toRow - 1);
+		_rowTable.remove(fromRow, toRow);
+		return isLastEstimated;
 	}
 
 	private void adjustOffsetOfRowsFrom(int fromRow, int offset)
 	{
-		for (int i = fromRow; i < _rowTable.size(); ++i)
-		{
-			_rowTable.set(i, _rowTable.get(i) + offset);
-		}
+		_rowTable.shift(fromRow, offset);
 	}
 
 	public void analyzeWordWrap()
 	{
 		
-		resetRowTable();
+		_rowTable.reset(); //every document contains at least 1 row
+		++_wrapVersion;
 
 		if (_isWordWrap&&!hasMinimumWidthForWordWrap())
 		{
@@ -209,7 +274,206 @@ public class Document extends TextBuffer
 			return;
 		}
 
-		analyzeWordWrap(1, 0, getTextLength());
+		_refineRow = 0;
+		wrapRange(1, 0, getTextLength());
+	}
+
+	synchronized int getWrapVersion()
+	{
+		return _wrapVersion;
+	}
+
+	/**
+	 * Replaces the row table with rows computed elsewhere, as long as neither
+	 * the text nor the word wrap changed since they were computed
+	 *
+	 * @return Whether the rows were replaced
+	 */
+	synchronized boolean setRowTable(RowTable rows, int version, int wrapVersion)
+	{
+		if (!_isWordWrap || version != getVersion() || wrapVersion != _wrapVersion)
+		{
+			return false;
+		}
+		_rowTable = rows;
+		_refineRow = 0;
+		return true;
+	}
+
+	/**
+	 * Whether every row has been measured, so that none are estimates
+	 */
+	public synchronized boolean isWordWrapExact()
+	{
+		return _rowTable.estimateCount() == 0;
+	}
+
+	/**
+	 * Measures the rows of the lines that fromRow to toRow, inclusive, are
+	 * on, if they were estimated. Rows after the measured lines may move, but
+	 * rows fromRow to toRow are measured ones afterwards.
+	 */
+	public synchronized void refineWordWrap(int fromRow, int toRow)
+	{
+		int row = Math.max(fromRow, 0);
+		while (row <= toRow && row < getRowCount() && !isWordWrapExact())
+		{
+			int actualRow = toActualRow(row);
+			if (_rowTable.isEstimate(actualRow))
+			{
+				measureLine(actualRow);
+			}
+			++row;
+		}
+	}
+
+	/**
+	 * Measures the rows of estimated lines, from where the previous call
+	 * stopped, until lines of about maxChars chars have been measured
+	 *
+	 * @return True if estimated rows are left
+	 */
+	public synchronized boolean refineWordWrap(int maxChars)
+	{
+		int budget = maxChars;
+		int row = (_refineRow < _rowTable.size()) ? _refineRow : 0;
+		int rowsLeft = _rowTable.size();
+		while (budget > 0 && rowsLeft > 0 && !isWordWrapExact())
+		{
+			if (row >= _rowTable.size())
+			{
+				row = 0;
+			}
+			if (_rowTable.isEstimate(row))
+			{
+				int start = _rowTable.get(findLineStartRow(row));
+				row = measureLine(row);
+				int end = (row < _rowTable.size()) ? _rowTable.get(row) : getTextLength();
+				budget -= end - start;
+			}
+			else
+			{
+				++row;
+				--rowsLeft;
+			}
+		}
+		_refineRow = row;
+		return !isWordWrapExact();
+	}
+
+	/**
+	 * Replaces the estimated rows of the line that row is on with measured
+	 * ones. Every row of a line is an estimate, or none is.
+	 *
+	 * @return The row after the line
+	 */
+	private int measureLine(int row)
+	{
+		int firstRow = findLineStartRow(row);
+		int nextLineRow = row + 1;
+		while (nextLineRow < _rowTable.size() && !isLineStart(nextLineRow))
+		{
+			++nextLineRow;
+		}
+
+		int lineStart = _rowTable.get(firstRow);
+		_rowTable.setEstimate(firstRow, false);
+		if (nextLineRow < _rowTable.size())
+		{
+			// the start of the next line is added back by the analysis,
+			// since the line ends with a newline
+			int lineEnd = _rowTable.get(nextLineRow);
+			boolean isNextLineEstimated = _rowTable.isEstimate(nextLineRow);
+			_rowTable.remove(firstRow + 1, nextLineRow + 1);
+			nextLineRow = analyzeWordWrap(firstRow + 1, lineStart, lineEnd) - 1;
+			_rowTable.setEstimate(nextLineRow, isNextLineEstimated);
+			return nextLineRow;
+		}
+		_rowTable.remove(firstRow + 1, nextLineRow);
+		return analyzeWordWrap(firstRow + 1, lineStart, getTextLength());
+	}
+
+	/**
+	 * @return The first row of the line that row is on
+	 */
+	private int findLineStartRow(int row)
+	{
+		while (!isLineStart(row))
+		{
+			--row;
+		}
+		return row;
+	}
+
+	private boolean isLineStart(int row)
+	{
+		return row == 0 || charAt(_rowTable.get(row) - 1) == Language.NEWLINE;
+	}
+
+	/**
+	 * Adds the rows of [startOffset, endOffset) from rowIndex on, estimating
+	 * them if the range is long. startOffset is the start of a row, and of a
+	 * line if the rows may be estimated.
+	 */
+	private void wrapRange(int rowIndex, int startOffset, int endOffset)
+	{
+		if (_isWordWrap && endOffset - startOffset > LAZY_WRAP_THRESHOLD)
+		{
+			estimateWordWrap(rowIndex, startOffset, endOffset);
+		}
+		else
+		{
+			_rowTable.setEstimate(rowIndex - 1, false);
+			analyzeWordWrap(rowIndex, startOffset, endOffset);
+		}
+	}
+
+	/**
+	 * Adds the line breaks of [startOffset, endOffset) from rowIndex on, and
+	 * estimated rows for lines too long to fit a row, assuming every char is
+	 * as wide as 'a'. startOffset is the start of a line. Every row of the
+	 * range, including the one at startOffset, is marked as an estimate.
+	 */
+	private void estimateWordWrap(int rowIndex, int startOffset, int endOffset)
+	{
+		final int rowChars = Math.max(1,
+			_metrics.getRowWidth() / Math.max(1, _metrics.getAdvance('a')));
+		int lineStart = startOffset;
+		int offset = logicalToRealIndex(startOffset);
+		int end = logicalToRealIndex(endOffset);
+		_rowTable.setEstimate(rowIndex - 1, true);
+
+		while (offset < end)
+		{
+			// skip the gap
+			if (offset == _gapStartIndex)
+			{
+				offset = _gapEndIndex;
+			}
+			if (_contents[offset] == Language.NEWLINE)
+			{
+				int lineEnd = realToLogicalIndex(offset) + 1;
+				rowIndex = estimateLine(rowIndex, lineStart, lineEnd, rowChars);
+				//start a new row
+				_rowTable.insert(rowIndex++, lineEnd, true);
+				lineStart = lineEnd;
+			}
+			++offset;
+		}
+		estimateLine(rowIndex, lineStart, endOffset, rowChars);
+	}
+
+	/**
+	 * @return The row index after the estimated rows
+	 */
+	private int estimateLine(int rowIndex, int lineStart, int lineEnd, int rowChars)
+	{
+		// no row for the newline alone
+		for (int offset = lineStart + rowChars; offset < lineEnd - 1; offset += rowChars)
+		{
+			_rowTable.insert(rowIndex++, offset, true);
+		}
+		return rowIndex;
 	}
 
 	private boolean hasMinimumWidthForWordWrap()
@@ -222,13 +486,13 @@ public class Document extends TextBuffer
 	//No error checking is done on parameters.
 	//A word consists of a sequence of 0 or more non-whitespace characters followed by
 	//exactly one whitespace character. Note that EOF is considered whitespace.
-	private void analyzeWordWrap(int rowIndex, int startOffset, int endOffset)
+	//Returns the row index after the added rows.
+	private int analyzeWordWrap(int rowIndex, int startOffset, int endOffset)
 	{
 		if (!_isWordWrap)
 		{
 			int offset = logicalToRealIndex(startOffset);
 			int end = logicalToRealIndex(endOffset);
-			ArrayList<Integer> rowTable = new ArrayList<Integer>();
 			
 			while (offset < end)
 			{
@@ -241,38 +505,59 @@ public class Document extends TextBuffer
 				if (c == Language.NEWLINE)
 				{
 					//start a new row
-					rowTable.add(realToLogicalIndex(offset) + 1);
+					_rowTable.insert(rowIndex++, realToLogicalIndex(offset) + 1);
 				}
 				++offset;
 				
 			}
-			_rowTable.addAll(rowIndex, rowTable);
-			return;
+			return rowIndex;
 		}
 		if (!hasMinimumWidthForWordWrap())
 		{
 			TextWarriorException.fail("Not enough space to do word wrap");
-			return;
+			return rowIndex;
 		}
 
-		ArrayList<Integer> rowTable = new ArrayList<Integer>();
-		int offset = logicalToRealIndex(startOffset);
-		int end = logicalToRealIndex(endOffset);
+		return wrapRows(_contents, _gapStartIndex, _gapEndIndex, 0,
+			startOffset, endOffset, _metrics, _rowTable, rowIndex);
+	}
+
+	/**
+	 * Word wraps the text from the logical offset startOffset, which starts
+	 * a row, to endOffset, inserting the rows after the first one into rows
+	 * from rowIndex on. Used by ParallelWordWrap too, so it depends on its
+	 * parameters only.
+	 *
+	 * @param contents Buffer holding the text, with a gap from gapStart
+	 *                 (inclusive) to gapEnd (exclusive)
+	 * @param base     Logical offset of the start of contents
+	 * @return The row index after the added rows
+	 */
+	static int wrapRows(char[] contents, int gapStart, int gapEnd, int base,
+						int startOffset, int endOffset, TextFieldMetrics metrics,
+						RowTable rows, int rowIndex)
+	{
+		final int gapSize = gapEnd - gapStart;
+		// new rows are inserted in place, from firstRowIndex on
+		final int firstRowIndex = rowIndex;
+		int offset = toRealIndex(startOffset, base, gapStart, gapSize);
+		int end = toRealIndex(endOffset, base, gapStart, gapSize);
 		int potentialBreakPoint = startOffset;
 		int wordExtent = 0;
-		final int maxWidth = _metrics.getRowWidth();
+		final int maxWidth = metrics.getRowWidth();
+		final int fixedAdvance = metrics.getFixedAdvance();
 		int remainingWidth = maxWidth;
 
 		while (offset < end)
 		{
 			// skip the gap
-			if (offset == _gapStartIndex)
+			if (offset == gapStart)
 			{
-				offset = _gapEndIndex;
+				offset = gapEnd;
 			}
 
-			char c = _contents[offset];
-			wordExtent += _metrics.getAdvance(c);
+			char c = contents[offset];
+			wordExtent += advance(c, metrics, fixedAdvance);
 
 			boolean isWhitespace = (c == ' ' || c == Language.TAB
 				|| c == Language.NEWLINE || c == Language.EOF);
@@ -287,28 +572,28 @@ public class Document extends TextBuffer
 				else if (wordExtent > maxWidth)
 				{
 					//handle a word too long to fit on one row
-					int current = logicalToRealIndex(potentialBreakPoint);
+					int current = toRealIndex(potentialBreakPoint, base, gapStart, gapSize);
 					remainingWidth = maxWidth;
 
 					//start the word on a new row, if it isn't already
-					if (potentialBreakPoint != startOffset && (rowTable.isEmpty() ||
-						potentialBreakPoint != rowTable.get(rowTable.size() - 1)))
+					if (potentialBreakPoint != startOffset && (rowIndex == firstRowIndex ||
+						potentialBreakPoint != rows.get(rowIndex - 1)))
 					{
-						rowTable.add(potentialBreakPoint);
+						rows.insert(rowIndex++, potentialBreakPoint);
 					}
 
 					while (current <= offset)
 					{
 						// skip the gap
-						if (current == _gapStartIndex)
+						if (current == gapStart)
 						{
-							current = _gapEndIndex;
+							current = gapEnd;
 						}
 
-						int advance = _metrics.getAdvance(_contents[current]);
+						int advance = advance(contents[current], metrics, fixedAdvance);
 						if (advance > remainingWidth)
 						{
-							rowTable.add(realToLogicalIndex(current));
+							rows.insert(rowIndex++, toLogicalIndex(current, base, gapStart, gapSize));
 							remainingWidth = maxWidth - advance;
 						}
 						else
@@ -323,26 +608,48 @@ public class Document extends TextBuffer
 				{
 					//invariant: potentialBreakPoint != startOffset
 					//put the word on a new row
-					rowTable.add(potentialBreakPoint);
+					rows.insert(rowIndex++, potentialBreakPoint);
 					remainingWidth = maxWidth - wordExtent;
 				}
 
 				wordExtent = 0;
-				potentialBreakPoint = realToLogicalIndex(offset) + 1;
+				potentialBreakPoint = toLogicalIndex(offset, base, gapStart, gapSize) + 1;
 			}
 
 			if (c == Language.NEWLINE)
 			{
 				//start a new row
-				rowTable.add(potentialBreakPoint);
+				rows.insert(rowIndex++, potentialBreakPoint);
 				remainingWidth = maxWidth;
 			}
 
 			++offset;
 		}
+		return rowIndex;
+	}
 
-		//merge with existing row table
-		_rowTable.addAll(rowIndex, rowTable);
+	/**
+	 * Printable ASCII chars all take fixedAdvance when it is not 0, so they
+	 * are not measured
+	 */
+	private static int advance(char c, TextFieldMetrics metrics, int fixedAdvance)
+	{
+		if (fixedAdvance != 0 && c >= 0x20 && c < 0x7F)
+		{
+			return fixedAdvance;
+		}
+		return metrics.getAdvance(c);
+	}
+
+	private static int toRealIndex(int i, int base, int gapStart, int gapSize)
+	{
+		i -= base;
+		return (i < gapStart) ? i : i + gapSize;
+	}
+
+	private static int toLogicalIndex(int i, int base, int gapStart, int gapSize)
+	{
+		return ((i < gapStart) ? i : i - gapSize) + base;
 	}
 
 	public String getRow(int rowNumber)
@@ -354,7 +661,7 @@ public class Document extends TextBuffer
 			return new String();
 		}
 
-		int startIndex = _rowTable.get(rowNumber);
+		int startIndex = _rowTable.get(toActualRow(rowNumber));
 		return subSequence(startIndex, rowSize).toString();
 	}
 
@@ -366,21 +673,22 @@ public class Document extends TextBuffer
 			return 0;
 		}
 
-		if (rowNumber != (_rowTable.size() - 1))
+		int row = toActualRow(rowNumber);
+		if (row != (_rowTable.size() - 1))
 		{
-			return _rowTable.get(rowNumber + 1) - _rowTable.get(rowNumber);
+			return _rowTable.get(row + 1) - _rowTable.get(row);
 		}
 		else
 		{
 			//last row
-			return getTextLength() - _rowTable.get(rowNumber);
+			return getTextLength() - _rowTable.get(row);
 		}
 	}
 
 	public int getRowCount()
 	{
-
-		return _rowTable.size();
+		updateHiddenRows();
+		return _rowTable.size() - _hiddenBefore[_hiddenRunCount];
 	}
 
 	public int getRowOffset(int rowNumber)
@@ -392,11 +700,12 @@ public class Document extends TextBuffer
 			return -1;
 		}
 
-		return _rowTable.get(rowNumber);
+		return _rowTable.get(toActualRow(rowNumber));
 	}
 
 	/**
-	 * Get the row number that charOffset is on
+	 * Get the row number that charOffset is on. Offsets in folded rows are
+	 * on the row just before the fold.
 	 *
 	 * @return The row number that charOffset is on, or -1 if charOffset is invalid
 	 */
@@ -409,35 +718,192 @@ public class Document extends TextBuffer
 		}
 
 		//binary search of _rowTable
-		int right = _rowTable.size() - 1;
-		int left = 0;
-		while (right >= left)
+		return toVisibleRow(_rowTable.find(charOffset));
+	}
+
+
+	protected boolean isInvalidRow(int rowNumber)
+	{
+		return rowNumber < 0 || rowNumber >= getRowCount();
+	}
+
+	/**
+	 * Replaces the fold regions with the ones found by lexing the text at
+	 * the given version. Collapsed regions stay as they are. The regions are
+	 * dropped if the text has changed since then.
+	 */
+	public synchronized void setFoldRegions(int[] starts, int[] ends, int count, int version)
+	{
+		if (version == getVersion())
 		{
-			int mid = (left + right) / 2;
-			int nextLineOffset = ((mid + 1) < _rowTable.size()) ? _rowTable.get(mid + 1) : getTextLength();
-	        if (charOffset >= _rowTable.get(mid) && charOffset < nextLineOffset)
-			{
-	        	return mid;
-	        }
+			_folds.set(starts, ends, count);
+		}
+	}
+
+	/**
+	 * @return FOLD_NONE if no fold region starts after the line of rowNumber,
+	 * or whether the one that does is expanded or collapsed
+	 */
+	public synchronized int getFoldState(int rowNumber)
+	{
+		int i = findFoldAfter(rowNumber);
+		if (i < 0)
+		{
+			return FOLD_NONE;
+		}
+		return _folds.isCollapsed(i) ? FOLD_COLLAPSED : FOLD_EXPANDED;
+	}
+
+	/**
+	 * Collapses the fold region that starts after the line of rowNumber if
+	 * it is expanded, or expands it if it is collapsed
+	 *
+	 * @return Whether there is such a region
+	 */
+	public synchronized boolean toggleFold(int rowNumber)
+	{
+		int i = findFoldAfter(rowNumber);
+		if (i < 0)
+		{
+			return false;
+		}
+		_folds.setCollapsed(i, !_folds.isCollapsed(i));
+		return true;
+	}
+
+	/**
+	 * Expands the collapsed fold regions that hide charOffset
+	 *
+	 * @return Whether any region was expanded
+	 */
+	public synchronized boolean expandFoldsAt(int charOffset)
+	{
+		if (!_folds.hasCollapsed() || !isValid(charOffset))
+		{
+			return false;
+		}
+		return _folds.expandAt(_rowTable.get(_rowTable.find(charOffset)));
+	}
+
+	/**
+	 * @return The index in _folds of the region that starts on the line
+	 * after the one rowNumber is on, or -1 if there is none
+	 */
+	private int findFoldAfter(int rowNumber)
+	{
+		if (_folds.size() == 0 || isInvalidRow(rowNumber))
+		{
+			return -1;
+		}
+		int row = toActualRow(rowNumber) + 1;
+		while (row < _rowTable.size() && !isLineStart(row))
+		{
+			++row;
+		}
+		if (row == _rowTable.size())
+		{
+			return -1;
+		}
+		return _folds.findStartingAt(_rowTable.get(row));
+	}
 
-	        if (charOffset >= nextLineOffset)
+	/**
+	 * @return The row of _rowTable that is visible row number rowNumber
+	 */
+	private int toActualRow(int rowNumber)
+	{
+		updateHiddenRows();
+		// count the runs that start at or before rowNumber, in visible rows
+		int low = 0;
+		int high = _hiddenRunCount;
+		while (low < high)
+		{
+			int middle = (low + high) >>> 1;
+			if (_hiddenRunStarts[middle] - _hiddenBefore[middle] <= rowNumber)
 			{
-	        	left = mid + 1;
-	        }
-	        else
+				low = middle + 1;
+			}
+			else
 			{
-	        	right = mid - 1;
-	        }
-	    }
-
-		//should not be here
-	    return -1;
+				high = middle;
+			}
+		}
+		return rowNumber + _hiddenBefore[low];
 	}
 
+	/**
+	 * @return The visible row of row of _rowTable, or the visible row before
+	 * it if it is hidden
+	 */
+	private int toVisibleRow(int row)
+	{
+		updateHiddenRows();
+		// count the runs that start at or before row
+		int low = 0;
+		int high = _hiddenRunCount;
+		while (low < high)
+		{
+			int middle = (low + high) >>> 1;
+			if (_hiddenRunStarts[middle] <= row)
+			{
+				low = middle + 1;
+			}
+			else
+			{
+				high = middle;
+			}
+		}
+		if (low > 0)
+		{
+			int run = low - 1;
+			int runEnd = _hiddenRunStarts[run] + _hiddenBefore[low] - _hiddenBefore[run];
+			if (row < runEnd)
+			{
+				return _hiddenRunStarts[run] - _hiddenBefore[run] - 1;
+			}
+		}
+		return row - _hiddenBefore[low];
+	}
 
-	protected boolean isInvalidRow(int rowNumber)
+	/**
+	 * Finds the runs of rows hidden by collapsed fold regions again, if the
+	 * rows or the regions changed since the last time
+	 */
+	private synchronized void updateHiddenRows()
 	{
-		return rowNumber < 0 || rowNumber >= _rowTable.size();
+		if (!_folds.hasCollapsed())
+		{
+			_hiddenRunCount = 0;
+			_hiddenRowTable = null;
+			return;
+		}
+		if (_hiddenRowTable == _rowTable && _hiddenRowsMod == _rowTable.modCount()
+			&& _hiddenFoldsMod == _folds.modCount())
+		{
+			return;
+		}
+		_hiddenRowTable = _rowTable;
+		_hiddenRowsMod = _rowTable.modCount();
+		_hiddenFoldsMod = _folds.modCount();
+
+		int[] ranges = _folds.getCollapsedRanges();
+		_hiddenRunStarts = new int[ranges.length / 2];
+		_hiddenBefore = new int[ranges.length / 2 + 1];
+		int runCount = 0;
+		for (int i = 0; i < ranges.length; i += 2)
+		{
+			// the rows starting in the range
+			int first = _rowTable.find(ranges[i] - 1) + 1;
+			int end = _rowTable.find(ranges[i + 1] - 1) + 1;
+			if (first >= end)
+			{
+				continue;
+			}
+			_hiddenRunStarts[runCount] = first;
+			_hiddenBefore[runCount + 1] = _hiddenBefore[runCount] + end - first;
+			++runCount;
+		}
+		_hiddenRunCount = runCount;
 	}
 
 
@@ -459,5 +925,14 @@ public class Document extends TextBuffer
 		 * @return Maximum width of a row, in pixels
 		 */
 		public int getRowWidth();
+
+		/**
+		 * Returns the advance shared by every printable ASCII char, from
+		 * space to '~', if the font gives them all the same one.
+		 *
+		 * @return Advance of each of those characters, in pixels, or 0 if
+		 * they differ
+		 */
+		public int getFixedAdvance();
 	}
 }
@@ -59,6 +59,33 @@ public class DocumentProvider implements CharSequence
 		return _theText.subSequence(charOffset, maxChars);
 	}
 
+	/**
+	 * Copies the chars from srcBegin (inclusive) to srcEnd (exclusive) into
+	 * dst, starting at dstBegin. The range must be valid.
+	 */
+	public void getChars(int srcBegin, int srcEnd, char[] dst, int dstBegin){
+		_theText.getChars(srcBegin, srcEnd, dst, dstBegin);
+	}
+
+	/**
+	 * Like getChars(), but copies nothing if the text changed since
+	 * getVersion() returned version
+	 *
+	 * @return Whether the chars were copied
+	 */
+	public boolean getChars(int srcBegin, int srcEnd, char[] dst, int dstBegin, int version){
+		return _theText.getCharsIfUnchanged(version, srcBegin, srcEnd, dst, dstBegin);
+	}
+
+	/**
+	 * Returns a read-only view of the document text that is valid until
+	 * the next change to the text, after which it may read torn text. See
+	 * TextBuffer.asCharSequence() for how to read it on another thread.
+	 */
+	public CharSequence asCharSequence(){
+		return _theText.asCharSequence();
+	}
+
 	public char charAt(int charOffset){
 		if(_theText.isValid(charOffset)){
 			return _theText.charAt(charOffset);
@@ -198,6 +225,19 @@ public class DocumentProvider implements CharSequence
 		_theText.delete(deletionPoint, totalChars, time, true);
 	}
 
+	/**
+	 * Replaces count ranges of text as a single edit that is undone/redone
+	 * as a unit, unless the text changed since getVersion() returned
+	 * version. See TextBuffer.replace()
+	 *
+	 * @return Whether the ranges were replaced
+	 */
+	public boolean replace(int[] offsets, int[] lengths, int count,
+			char[] replacements, int[] replacementLengths, int version){
+		return _theText.replaceIfUnchanged(version, offsets, lengths, count,
+				replacements, replacementLengths, true);
+	}
+
 	/**
 	 * Returns true if the underlying text buffer is in batch edit mode
 	 */
@@ -243,6 +283,14 @@ public class DocumentProvider implements CharSequence
 		return _theText.getTextLength();
 	}
 
+	/**
+	 * Returns the edit version of the underlying text buffer. The version
+	 * changes on every insertion, deletion, undo and redo.
+	 */
+	public int getVersion(){
+		return _theText.getVersion();
+	}
+
 	//TODO make thread-safe
 	/**
 	 * Removes spans from the document.
@@ -272,14 +320,89 @@ public class DocumentProvider implements CharSequence
 		_theText.setSpans(spans);
 	}
 
+	public Language getLanguage(){
+		return _theText.getLanguage();
+	}
+
+	/**
+	 * Sets the programming language syntax used to lex the document.
+	 * Each document has its own language, so editors showing different
+	 * documents can use different languages at the same time.
+	 */
+	public void setLanguage(Language language){
+		_theText.setLanguage(language);
+	}
+
+	/**
+	 * Returns the identifiers found the last time the document was lexed
+	 */
+	public IdentifierIndex getIdentifiers(){
+		return _theText.getIdentifiers();
+	}
+
+	public void setIdentifiers(IdentifierIndex identifiers, int version){
+		_theText.setIdentifiers(identifiers, version);
+	}
+
+	/**
+	 * Returns the trigram index used to speed up searches of the document,
+	 * or null if there is none
+	 */
+	public TrigramIndex getTrigramIndex(){
+		return _theText.getTrigramIndex();
+	}
+
+	public void setTrigramIndex(TrigramIndex index){
+		_theText.setTrigramIndex(index);
+	}
+
+	/**
+	 * See Document.setFoldRegions(int[], int[], int, int)
+	 */
+	public void setFoldRegions(int[] starts, int[] ends, int count, int version){
+		_theText.setFoldRegions(starts, ends, count, version);
+	}
+
+	/**
+	 * See Document.getFoldState(int)
+	 */
+	public int getFoldState(int rowNumber){
+		return _theText.getFoldState(rowNumber);
+	}
+
+	/**
+	 * See Document.toggleFold(int)
+	 */
+	public boolean toggleFold(int rowNumber){
+		return _theText.toggleFold(rowNumber);
+	}
+
+	/**
+	 * See Document.expandFoldsAt(int)
+	 */
+	public boolean expandFoldsAt(int charOffset){
+		return _theText.expandFoldsAt(charOffset);
+	}
+
+	/**
+	 * See TextBuffer.addEditListener(TextBuffer.EditListener)
+	 */
+	public void addEditListener(TextBuffer.EditListener listener){
+		_theText.addEditListener(listener);
+	}
+
+	public void removeEditListener(TextBuffer.EditListener listener){
+		_theText.removeEditListener(listener);
+	}
+
 	public void setMetrics(Document.TextFieldMetrics metrics){
 		_theText.setMetrics(metrics);
 	}
 
 	/**
 	 * Enable/disable word wrap for the document. If enabled, the document is
-	 * immediately analyzed for word wrap breakpoints, which might take an
-	 * arbitrarily long time.
+	 * immediately analyzed for word wrap breakpoints. Rows of large documents
+	 * are only estimated; see Document.refineWordWrap().
 	 */
 	public void setWordWrap(boolean enable){
 		_theText.setWordWrap(enable);
@@ -297,6 +420,31 @@ public class DocumentProvider implements CharSequence
 		_theText.analyzeWordWrap();
 	}
 
+	/**
+	 * See Document.isWordWrapExact()
+	 */
+	public boolean isWordWrapExact(){
+		return _theText.isWordWrapExact();
+	}
+
+	/**
+	 * See Document.refineWordWrap(int, int)
+	 */
+	public void refineWordWrap(int fromRow, int toRow){
+		_theText.refineWordWrap(fromRow, toRow);
+	}
+
+	/**
+	 * See Document.refineWordWrap(int)
+	 */
+	public boolean refineWordWrap(int maxChars){
+		return _theText.refineWordWrap(maxChars);
+	}
+
+	Document getDocument(){
+		return _theText;
+	}
+
 	public boolean canUndo() {
 		return _theText.canUndo();
 	}
@@ -9,19 +9,26 @@
 package com.mrikso.codeeditor.util;
 
 import java.util.Vector;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 /**
  * Worker thread to carry our find and replaceAll operations.
  * The find thread should not be reused after it has completed. Create a new one
  * for another operation.
+ *
+ * forceStop() makes the search stop within one chunk of text. Observers are
+ * then sent onCancel() instead of onComplete(), and a stopped replaceAll
+ * leaves the document unchanged. A replaceAll that had already changed the
+ * document when forceStop() was called is not stopped, and sends
+ * onComplete(). The document is released once the thread is done.
  */
 public class FindThread extends Thread implements ProgressSource {
     /**
      * Reported progress will be scaled from 0 to MAX_PROGRESS
      */
     private final static int MAX_PROGRESS = 100;
-    final private SearchStrategy FINDER = new LinearSearchStrategy();
+    final private SearchStrategy FINDER;
     protected int _requestCode;
     protected DocumentProvider _src;
     protected Vector<ProgressObserver> _progressObservers = new Vector<ProgressObserver>();
@@ -30,13 +37,19 @@ public class FindThread extends Thread implements ProgressSource {
     protected int _start;
     protected boolean _isCaseSensitive;
     protected boolean _isWholeWord;
-    protected boolean _isDone = false;
+    protected volatile boolean _isDone = false;
+    private volatile boolean _isStopped = false;
     protected FindResults _results;
+    protected boolean _isRegex;
+    private volatile ParallelFinder _allFinder = null; // only for FIND_ALL
     private int _docSize = 0; // size, in chars, of the document to search
+    private final AtomicInteger _progress = new AtomicInteger(0); // highest progress reported
 
     private FindThread(int requestCode, DocumentProvider src, String searchText, int start,
-                       boolean isCaseSensitive, boolean isWholeWord) {
+                       boolean isCaseSensitive, boolean isWholeWord, boolean isRegex) {
+        FINDER = createStrategy(isRegex);
         _requestCode = requestCode;
+        _isRegex = isRegex;
         _src = src;
         _start = start;
         _searchText = searchText;
@@ -46,8 +59,10 @@ public class FindThread extends Thread implements ProgressSource {
     }
 
     private FindThread(int requestCode, DocumentProvider src, String searchText, String replacementText, int start,
-                       boolean isCaseSensitive, boolean isWholeWord) {
+                       boolean isCaseSensitive, boolean isWholeWord, boolean isRegex) {
+        FINDER = createStrategy(isRegex);
         _requestCode = requestCode;
+        _isRegex = isRegex;
         _src = src;
         _start = start;
         _searchText = searchText;
@@ -59,42 +74,113 @@ public class FindThread extends Thread implements ProgressSource {
 
     static public FindThread createFindThread(DocumentProvider src, String searchText, int start, boolean isForwardSearch,
                                               boolean isCaseSensitive, boolean isWholeWord) {
+        return createFindThread(src, searchText, start, isForwardSearch, isCaseSensitive, isWholeWord, false);
+    }
+
+    /**
+     * @param isRegex Whether searchText is a java.util.regex pattern
+     */
+    static public FindThread createFindThread(DocumentProvider src, String searchText, int start, boolean isForwardSearch,
+                                              boolean isCaseSensitive, boolean isWholeWord, boolean isRegex) {
 
         int requestCode = (isForwardSearch) ? ProgressSource.FIND : ProgressSource.FIND_BACKWARDS;
 
-        return new FindThread(requestCode, src, searchText, start, isCaseSensitive, isWholeWord);
+        return new FindThread(requestCode, src, searchText, start, isCaseSensitive, isWholeWord, isRegex);
     }
 
     static public FindThread createReplaceAllThread(DocumentProvider src, String searchText, String replacementText, int start,
                                                     boolean isCaseSensitive, boolean isWholeWord) {
-        return new FindThread(ProgressSource.REPLACE_ALL, src, searchText, replacementText, start, isCaseSensitive, isWholeWord);
+        return createReplaceAllThread(src, searchText, replacementText, start, isCaseSensitive, isWholeWord, false);
+    }
+
+    /**
+     * @param isRegex Whether searchText is a java.util.regex pattern.
+     *                replacementText can then refer to groups with $n
+     */
+    static public FindThread createReplaceAllThread(DocumentProvider src, String searchText, String replacementText, int start,
+                                                    boolean isCaseSensitive, boolean isWholeWord, boolean isRegex) {
+        return new FindThread(ProgressSource.REPLACE_ALL, src, searchText, replacementText, start,
+                isCaseSensitive, isWholeWord, isRegex);
+    }
+
+    /**
+     * Finds every match in src. The results are in FindResults.foundOffsets
+     * and FindResults.foundLengths.
+     */
+    static public FindThread createFindAllThread(DocumentProvider src, String searchText,
+                                                 boolean isCaseSensitive, boolean isWholeWord, boolean isRegex) {
+        return new FindThread(ProgressSource.FIND_ALL, src, searchText, 0, isCaseSensitive, isWholeWord, isRegex);
+    }
+
+    private static SearchStrategy createStrategy(boolean isRegex) {
+        return isRegex ? new RegexSearchStrategy() : new HorspoolSearchStrategy();
     }
 
     public void run() {
         _isDone = false;
         _results = new FindResults(_searchText.length());
 
+        try {
+            if (runRequest()) {
+                notifyCancel();
+            } else {
+                notifyComplete(_results);
+            }
+        } catch (IllegalArgumentException e) {
+            // bad regex pattern or group reference in the replacement
+            notifyError(ProgressSource.ERROR_INVALID_PATTERN, e.getMessage());
+        } catch (StackOverflowError e) {
+            // java.util.regex recurses for each repetition of a group
+            notifyError(ProgressSource.ERROR_INVALID_PATTERN, "Pattern too complex");
+        } finally {
+            _src = null;
+            _allFinder = null;
+        }
+    }
+
+    /**
+     * @return Whether the request was stopped by forceStop() before it
+     * was done
+     */
+    private boolean runRequest() {
         switch (_requestCode) {
             case ProgressSource.FIND:
                 _results.foundOffset = FINDER.wrappedFind(_src, _searchText, _start, _isCaseSensitive, _isWholeWord);
-                notifyComplete(_results);
+                _results.searchTextLength = FINDER.getMatchLength();
                 break;
             case ProgressSource.FIND_BACKWARDS:
                 _results.foundOffset = FINDER.wrappedFindBackwards(_src, _searchText, _start,
                         _isCaseSensitive, _isWholeWord);
-                notifyComplete(_results);
+                _results.searchTextLength = FINDER.getMatchLength();
+                break;
+            case ProgressSource.FIND_ALL:
+                ParallelFinder allFinder = new ParallelFinder(_src, _searchText,
+                        _isCaseSensitive, _isWholeWord, _isRegex);
+                _allFinder = allFinder;
+                if (_isStopped) {
+                    // forceStop() may have missed it
+                    allFinder.cancel();
+                }
+                _results.foundOffsets = allFinder.findAll();
+                _results.foundLengths = allFinder.getLengths();
+                if (_results.foundOffsets.length > 0) {
+                    _results.foundOffset = _results.foundOffsets[0];
+                }
                 break;
             case ProgressSource.REPLACE_ALL:
                 Pair replaceResult = FINDER.replaceAll(_src, _searchText, _replacementText, _start,
 						_isCaseSensitive, _isWholeWord);
+                if (replaceResult == null) {
+                    return true;
+                }
                 _results.replacementCount = replaceResult.getFirst();
                 _results.newStartPosition = replaceResult.getSecond();
-                notifyComplete(_results);
                 break;
             default:
                 TextWarriorException.assertVerbose(false, "Invalid request code for FindThread");
                 break;
         }
+        return _isStopped && _requestCode != ProgressSource.REPLACE_ALL;
     }
 
     @Override
@@ -107,15 +193,39 @@ public class FindThread extends Thread implements ProgressSource {
         return MAX_PROGRESS;
     }
 
+    /**
+     * Progress never goes back, and is at the maximum once the request is done
+     */
     @Override
     public final int getCurrent() {
-        double progressProportion = (_docSize == 0) ? 0 : (double) FINDER.getProgress() / (double) _docSize;
-        return (int) (progressProportion * MAX_PROGRESS);
+        int current = MAX_PROGRESS;
+        if (!_isDone) {
+            // a wrapped find or a replaceAll examines each char about once
+            ParallelFinder allFinder = _allFinder;
+            int unitsDone = (allFinder != null) ? allFinder.getProgress() : FINDER.getProgress();
+            double progressProportion = (_docSize == 0) ? 0 : (double) unitsDone / (double) _docSize;
+            current = (int) (Math.min(progressProportion, 1.0) * MAX_PROGRESS);
+        }
+
+        while (true) {
+            int last = _progress.get();
+            if (current <= last) {
+                return last;
+            }
+            if (_progress.compareAndSet(last, current)) {
+                return current;
+            }
+        }
     }
 
     @Override
     public final void forceStop() {
-        //TODO implement
+        _isStopped = true;
+        FINDER.cancel();
+        ParallelFinder allFinder = _allFinder;
+        if (allFinder != null) {
+            allFinder.cancel();
+        }
     }
 
     @Override
@@ -140,6 +250,20 @@ public class FindThread extends Thread implements ProgressSource {
         }
     }
 
+    synchronized protected void notifyCancel() {
+        _isDone = true;
+        for (ProgressObserver po : _progressObservers) {
+            po.onCancel(_requestCode);
+        }
+    }
+
+    synchronized protected void notifyError(int errorCode, String message) {
+        _isDone = true;
+        for (ProgressObserver po : _progressObservers) {
+            po.onError(_requestCode, errorCode, message);
+        }
+    }
+
     public final int getRequestCode() {
         return _requestCode;
     }
@@ -152,7 +276,11 @@ public class FindThread extends Thread implements ProgressSource {
         public int foundOffset = -1;
         public int replacementCount = 0;
         public int newStartPosition = 0;
-        public int searchTextLength = 0; //for convenience
+        public int searchTextLength = 0; //length of the found text, for convenience
+        /** FIND_ALL only: start offsets of all matches, in ascending order */
+        public int[] foundOffsets = new int[0];
+        /** FIND_ALL only: foundLengths[i] is the length of the match at foundOffsets[i] */
+        public int[] foundLengths = new int[0];
 
         public FindResults(int searchLength) {
             searchTextLength = searchLength;
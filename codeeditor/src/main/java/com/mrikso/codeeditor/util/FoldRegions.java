@@ -0,0 +1,283 @@
+/*
+ * Copyright (c) 2013 Tah Wei Hoon.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Apache License Version 2.0,
+ * with full text available at http://www.apache.org/licenses/LICENSE-2.0.html
+ *
+ * This software is provided "as is". Use at your own risk.
+ */
+package com.mrikso.codeeditor.util;
+
+import java.util.Arrays;
+
+/**
+ * The regions of a document that can be folded, each of them collapsed or
+ * expanded. A region is a range [start, end) of whole lines found by
+ * FoldScanner; regions may nest.
+ *
+ * Regions are kept in arrays sorted by start, outer regions first. The
+ * arrays double as an interval tree: the root of a range of indices is its
+ * middle index, and _maxEnds holds the largest end in the subtree of each
+ * root, so the regions containing an offset are found in O(log n) plus the
+ * number found.
+ *
+ * Edits to the document are received through TextBuffer.EditListener.
+ * Offsets after an edit are shifted by its length. Regions whose start or
+ * end is removed by an edit are dropped, and collapsed regions that an edit
+ * changes the inside of are expanded, so no edit is ever hidden.
+ *
+ * Not thread-safe; Document synchronizes access to it.
+ */
+class FoldRegions implements TextBuffer.EditListener {
+    private int[] _starts = new int[0];
+    private int[] _ends = new int[0];
+    private boolean[] _isCollapsed = new boolean[0];
+    private int[] _maxEnds = new int[0];
+    private int _count = 0;
+    private int _collapsedCount = 0;
+    /**
+     * Incremented whenever the collapsed ranges change
+     */
+    private int _modCount = 0;
+
+    /**
+     * Replaces the regions with newly found ones, in any order. Collapsed
+     * regions are kept as they are, instead of any new region with the
+     * same start.
+     */
+    void set(int[] starts, int[] ends, int count) {
+        int[] collapsedStarts = new int[_collapsedCount];
+        long[] keys = new long[count + _collapsedCount];
+        int keyCount = 0;
+        for (int i = 0; i < _count; ++i) {
+            if (_isCollapsed[i]) {
+                collapsedStarts[keyCount] = _starts[i];
+                keys[keyCount++] = key(_starts[i], _ends[i], true);
+            }
+        }
+        // collapsed regions were added in order of their starts
+        for (int i = 0; i < count; ++i) {
+            if (Arrays.binarySearch(collapsedStarts, starts[i]) < 0) {
+                keys[keyCount++] = key(starts[i], ends[i], false);
+            }
+        }
+        Arrays.sort(keys, 0, keyCount);
+
+        _starts = new int[keyCount];
+        _ends = new int[keyCount];
+        _isCollapsed = new boolean[keyCount];
+        _count = 0;
+        _collapsedCount = 0;
+        for (int i = 0; i < keyCount; ++i) {
+            long key = keys[i];
+            int start = (int) (key >>> 32);
+            int end = Integer.MAX_VALUE - (int) ((key & 0xFFFFFFFFL) >>> 1);
+            if (_count > 0 && _starts[_count - 1] == start && _ends[_count - 1] == end) {
+                // found twice
+                continue;
+            }
+            _starts[_count] = start;
+            _ends[_count] = end;
+            _isCollapsed[_count] = (key & 1) != 0;
+            if (_isCollapsed[_count]) {
+                ++_collapsedCount;
+            }
+            ++_count;
+        }
+        buildTree();
+    }
+
+    /**
+     * Sorts by start, then by end in descending order
+     */
+    private static long key(int start, int end, boolean isCollapsed) {
+        return ((long) start << 32) | ((long) (Integer.MAX_VALUE - end) << 1) | (isCollapsed ? 1 : 0);
+    }
+
+    int size() {
+        return _count;
+    }
+
+    int getStart(int i) {
+        return _starts[i];
+    }
+
+    int getEnd(int i) {
+        return _ends[i];
+    }
+
+    boolean isCollapsed(int i) {
+        return _isCollapsed[i];
+    }
+
+    void setCollapsed(int i, boolean isCollapsed) {
+        if (_isCollapsed[i] != isCollapsed) {
+            _isCollapsed[i] = isCollapsed;
+            _collapsedCount += isCollapsed ? 1 : -1;
+            ++_modCount;
+        }
+    }
+
+    boolean hasCollapsed() {
+        return _collapsedCount > 0;
+    }
+
+    int modCount() {
+        return _modCount;
+    }
+
+    /**
+     * @return The index of the outermost region starting at charOffset, or
+     * -1 if there is none
+     */
+    int findStartingAt(int charOffset) {
+        int i = firstStartingAtOrAfter(charOffset);
+        return (i < _count && _starts[i] == charOffset) ? i : -1;
+    }
+
+    /**
+     * Expands the collapsed regions that contain charOffset
+     *
+     * @return Whether any region was expanded
+     */
+    boolean expandAt(int charOffset) {
+        if (_collapsedCount == 0) {
+            return false;
+        }
+        int modCount = _modCount;
+        expandAt(charOffset, 0, _count);
+        return modCount != _modCount;
+    }
+
+    /**
+     * Visits the subtree of the indices from low (inclusive) to high
+     * (exclusive)
+     */
+    private void expandAt(int charOffset, int low, int high) {
+        if (low >= high) {
+            return;
+        }
+        int middle = (low + high) >>> 1;
+        if (_maxEnds[middle] <= charOffset) {
+            // every region of the subtree ends at or before charOffset
+            return;
+        }
+        expandAt(charOffset, low, middle);
+        if (_starts[middle] <= charOffset) {
+            if (charOffset < _ends[middle]) {
+                setCollapsed(middle, false);
+            }
+            expandAt(charOffset, middle + 1, high);
+        }
+    }
+
+    /**
+     * @return The ranges hidden by collapsed regions, joined where they
+     * overlap or touch, as start and end pairs in ascending order
+     */
+    int[] getCollapsedRanges() {
+        int[] ranges = new int[2 * _collapsedCount];
+        int n = 0;
+        for (int i = 0; i < _count && n < ranges.length; ++i) {
+            if (!_isCollapsed[i]) {
+                continue;
+            }
+            if (n > 0 && _starts[i] <= ranges[n - 1]) {
+                ranges[n - 1] = Math.max(ranges[n - 1], _ends[i]);
+            } else {
+                ranges[n++] = _starts[i];
+                ranges[n++] = _ends[i];
+            }
+        }
+        return Arrays.copyOf(ranges, n);
+    }
+
+    @Override
+    public void onInsert(int charOffset, int length) {
+        for (int i = 0; i < _count; ++i) {
+            if (_isCollapsed[i] && _starts[i] <= charOffset && charOffset < _ends[i]) {
+                setCollapsed(i, false);
+            }
+            if (_starts[i] > charOffset) {
+                _starts[i] += length;
+            }
+            if (_ends[i] > charOffset) {
+                _ends[i] += length;
+            }
+        }
+        buildTree();
+        ++_modCount;
+    }
+
+    @Override
+    public void onDelete(int charOffset, int length) {
+        int deleteEnd = charOffset + length;
+        int kept = 0;
+        for (int i = 0; i < _count; ++i) {
+            int start = _starts[i];
+            int end = _ends[i];
+            if (_isCollapsed[i] && start < deleteEnd && charOffset < end) {
+                setCollapsed(i, false);
+            }
+            if ((start > charOffset && start <= deleteEnd)
+                    || (end > charOffset && end <= deleteEnd)) {
+                // the line break before the start or end was removed
+                setCollapsed(i, false);
+                continue;
+            }
+            _starts[kept] = (start > deleteEnd) ? start - length : start;
+            _ends[kept] = (end > deleteEnd) ? end - length : end;
+            _isCollapsed[kept] = _isCollapsed[i];
+            ++kept;
+        }
+        _count = kept;
+        buildTree();
+        ++_modCount;
+    }
+
+    @Override
+    public void onReset() {
+        _starts = new int[0];
+        _ends = new int[0];
+        _isCollapsed = new boolean[0];
+        _maxEnds = new int[0];
+        _count = 0;
+        _collapsedCount = 0;
+        ++_modCount;
+    }
+
+    private int firstStartingAtOrAfter(int charOffset) {
+        int low = 0;
+        int high = _count;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (_starts[middle] < charOffset) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private void buildTree() {
+        if (_maxEnds.length < _count) {
+            _maxEnds = new int[_starts.length];
+        }
+        buildTree(0, _count);
+    }
+
+    /**
+     * @return The largest end from index low (inclusive) to high (exclusive)
+     */
+    private int buildTree(int low, int high) {
+        if (low >= high) {
+            return Integer.MIN_VALUE;
+        }
+        int middle = (low + high) >>> 1;
+        int maxEnd = Math.max(_ends[middle],
+                Math.max(buildTree(low, middle), buildTree(middle + 1, high)));
+        _maxEnds[middle] = maxEnd;
+        return maxEnd;
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright (c) 2013 Tah Wei Hoon.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Apache License Version 2.0,
+ * with full text available at http://www.apache.org/licenses/LICENSE-2.0.html
+ *
+ * This software is provided "as is". Use at your own risk.
+ */
+package com.mrikso.codeeditor.util;
+
+import com.mrikso.codeeditor.lang.Language;
+
+/**
+ * Finds the fold regions of a document while Lexer scans it, in the fold
+ * style of its language.
+ *
+ * A region covers whole lines, from the start of the line after the one
+ * that opens it to the start of the line that closes it. For indentation,
+ * a region is closed by the next non-blank line indented no deeper than the
+ * line that opened it, and ends after the last non-blank line before that.
+ * Regions covering no lines are left out. Regions are found in the order
+ * they are closed, which is not the order of their starts.
+ *
+ * Lexer calls braceOpened(), braceClosed() and wordFound() for the tokens
+ * that are code, not comments or strings, and charScanned() for every char
+ * after handling it.
+ */
+class FoldScanner {
+    private final static int MIN_CAPACITY = 16;
+    private final static int TAB_SIZE = 8;
+
+    private final int _style;
+    private final Language _language;
+
+    /**
+     * Open regions, innermost last. The body start is -1 until the line
+     * after the one that opened the region starts.
+     */
+    private int[] _openBodyStarts = new int[MIN_CAPACITY];
+    private int[] _openIndents = new int[MIN_CAPACITY];
+    private String[] _openWords = new String[MIN_CAPACITY];
+    private int _openCount = 0;
+    /**
+     * Open regions from this index on were opened on the current line
+     */
+    private int _firstOnLine = 0;
+
+    private int[] _starts = new int[MIN_CAPACITY];
+    private int[] _ends = new int[MIN_CAPACITY];
+    private int _count = 0;
+
+    private int _lineStart = 0;
+    private int _indent = 0;
+    private boolean _isBlankLine = true;
+    /**
+     * Start of the line after the last non-blank line
+     */
+    private int _contentEnd = 0;
+    /**
+     * Line start of the last .end seen, while waiting for the word after it
+     */
+    private int _endLineStart = -1;
+
+    FoldScanner(Language language) {
+        _language = language;
+        _style = language.getFoldStyle();
+    }
+
+    void braceOpened() {
+        if (_style == Language.FOLD_BRACES) {
+            open(0, null);
+        }
+    }
+
+    void braceClosed() {
+        if (_style == Language.FOLD_BRACES && _openCount > 0) {
+            close(_openCount - 1, _lineStart);
+        }
+    }
+
+    /**
+     * Called for every whole word of code, when the char after it is scanned
+     */
+    void wordFound(char[] word, int length) {
+        if (_style != Language.FOLD_DIRECTIVES) {
+            return;
+        }
+        if (_endLineStart >= 0) {
+            closeDirective(word, length);
+            _endLineStart = -1;
+        } else if (length == 4 && word[0] == '.' && word[1] == 'e'
+                && word[2] == 'n' && word[3] == 'd') {
+            _endLineStart = _lineStart;
+        } else if (word[0] == '.') {
+            String directive = new String(word, 0, length);
+            if (_language.isFoldDirective(directive)) {
+                open(0, directive);
+            }
+        }
+    }
+
+    void charScanned(char c, int offset) {
+        if (c == Language.NEWLINE) {
+            for (int i = _firstOnLine; i < _openCount; ++i) {
+                _openBodyStarts[i] = offset + 1;
+            }
+            _firstOnLine = _openCount;
+            if (!_isBlankLine) {
+                _contentEnd = offset + 1;
+            }
+            _lineStart = offset + 1;
+            _indent = 0;
+            _isBlankLine = true;
+            return;
+        }
+        if (!_isBlankLine || _style != Language.FOLD_INDENT) {
+            if (_isBlankLine && !isBlank(c)) {
+                _isBlankLine = false;
+            }
+            return;
+        }
+
+        if (c == ' ') {
+            ++_indent;
+        } else if (c == Language.TAB) {
+            _indent = (_indent / TAB_SIZE + 1) * TAB_SIZE;
+        } else if (!isBlank(c)) {
+            _isBlankLine = false;
+            while (_openCount > 0 && _openIndents[_openCount - 1] >= _indent) {
+                close(_openCount - 1, _contentEnd);
+            }
+            open(_indent, null);
+        }
+    }
+
+    /**
+     * Closes the regions left open at the end of a document of length chars
+     */
+    void finish(int length) {
+        if (_style == Language.FOLD_INDENT) {
+            if (!_isBlankLine) {
+                _contentEnd = length;
+            }
+            while (_openCount > 0) {
+                close(_openCount - 1, _contentEnd);
+            }
+        }
+        _openCount = 0;
+        _firstOnLine = 0;
+    }
+
+    int size() {
+        return _count;
+    }
+
+    int[] getStarts() {
+        return _starts;
+    }
+
+    int[] getEnds() {
+        return _ends;
+    }
+
+    private static boolean isBlank(char c) {
+        return c == ' ' || c == Language.TAB || c == '\r' || c == '\f' || c == Language.EOF;
+    }
+
+    private void open(int indent, String word) {
+        if (_openCount == _openBodyStarts.length) {
+            int capacity = _openCount * 2;
+            int[] bodyStarts = new int[capacity];
+            int[] indents = new int[capacity];
+            String[] words = new String[capacity];
+            System.arraycopy(_openBodyStarts, 0, bodyStarts, 0, _openCount);
+            System.arraycopy(_openIndents, 0, indents, 0, _openCount);
+            System.arraycopy(_openWords, 0, words, 0, _openCount);
+            _openBodyStarts = bodyStarts;
+            _openIndents = indents;
+            _openWords = words;
+        }
+        _openBodyStarts[_openCount] = -1;
+        _openIndents[_openCount] = indent;
+        _openWords[_openCount] = word;
+        ++_openCount;
+    }
+
+    /**
+     * Closes open region i at end, and drops the regions opened after it
+     */
+    private void close(int i, int end) {
+        int start = _openBodyStarts[i];
+        if (start >= 0 && end > start) {
+            add(start, end);
+        }
+        _openCount = i;
+        _firstOnLine = Math.min(_firstOnLine, i);
+    }
+
+    /**
+     * Closes the innermost open directive that word, the name after .end,
+     * ends. Directives opened after it were not closed and are dropped.
+     */
+    private void closeDirective(char[] word, int length) {
+        String name = new String(word, 0, length);
+        for (int i = _openCount - 1; i >= 0; --i) {
+            String directive = _openWords[i];
+            if (directive.length() == length + 1 && directive.endsWith(name)) {
+                close(i, _endLineStart);
+                return;
+            }
+        }
+    }
+
+    private void add(int start, int end) {
+        if (_count == _starts.length) {
+            int[] starts = new int[_count * 2];
+            int[] ends = new int[_count * 2];
+            System.arraycopy(_starts, 0, starts, 0, _count);
+            System.arraycopy(_ends, 0, ends, 0, _count);
+            _starts = starts;
+            _ends = ends;
+        }
+        _starts[_count] = start;
+        _ends[_count] = end;
+        ++_count;
+    }
+}
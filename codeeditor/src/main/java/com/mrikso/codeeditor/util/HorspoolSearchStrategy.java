@@ -0,0 +1,312 @@
+/*
+ * Copyright (c) 2013 Tah Wei Hoon.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Apache License Version 2.0,
+ * with full text available at http://www.apache.org/licenses/LICENSE-2.0.html
+ *
+ * This software is provided "as is". Use at your own risk.
+ */
+package com.mrikso.codeeditor.util;
+
+import java.util.ConcurrentModificationException;
+
+/**
+ * Finds text with the Boyer-Moore-Horspool algorithm.
+ *
+ * The document is read in chunks with DocumentProvider.getChars() instead of
+ * one synchronized charAt() per comparison. For each candidate position only
+ * the char under the end of the target is looked at first, and the skip table
+ * moves past positions that cannot match, so most of the document is never
+ * compared. The skip distance grows with the target length; a single char
+ * target degrades to a plain scan over the chunks.
+ *
+ * If the document has a TrigramIndex, only the ranges it lets through are
+ * searched.
+ *
+ * Chunks are only read while the document is at the version it had when the
+ * find started, as it may be edited on another thread meanwhile. If it
+ * changed, the find starts over on the new text.
+ */
+public class HorspoolSearchStrategy extends LinearSearchStrategy {
+    private final static int CHUNK_SIZE = 16 * 1024;
+    /**
+     * Reads start small and double up to CHUNK_SIZE, so that finding a
+     * nearby match, as in a find all loop, does not copy a whole chunk
+     */
+    private final static int FIRST_CHUNK_SIZE = 256;
+    /**
+     * Skips are looked up by the low byte of a char. Chars with the same low
+     * byte share the smallest of their skips, which is always safe.
+     */
+    private final static int TABLE_SIZE = 256;
+
+    // tables of the last target, reused by repeated finds
+    private String _target = null;
+    private boolean _isCaseSensitive;
+    private char[] _pattern;
+    private int[] _forwardSkips = null;
+    private int[] _backwardSkips = null;
+    private char[] _chunk = new char[0];
+
+    @Override
+    public int find(DocumentProvider src, String target, int start, int end,
+                    boolean isCaseSensitive, boolean isWholeWord) {
+        if (target.length() == 0) {
+            return -1;
+        }
+        while (true) {
+            try {
+                return findOnce(src, target, start, end, isCaseSensitive, isWholeWord);
+            } catch (ConcurrentModificationException e) {
+                // the text changed while it was read; search it again, in
+                // the range that is still there
+                end = Math.min(end, src.docLength());
+            }
+        }
+    }
+
+    private int findOnce(DocumentProvider src, String target, int start, int end,
+                         boolean isCaseSensitive, boolean isWholeWord) {
+        final int m = target.length();
+        final int version = src.getVersion();
+        if (start < 0) {
+            TextWarriorException.fail("TextBuffer.find: Invalid start position");
+            start = 0;
+        }
+        if (end > src.docLength()) {
+            TextWarriorException.fail("TextBuffer.find: Invalid end position");
+            end = src.docLength();
+        }
+
+        // start positions are in [start, end); matches may extend past end
+        end = Math.min(end, src.docLength() - m + 1);
+        int[] ranges = candidates(src, target, start, end);
+        if (ranges == null) {
+            return findIn(src, version, target, start, end, isCaseSensitive, isWholeWord);
+        }
+        int searched = start;
+        for (int r = 0; r < ranges.length; r += 2) {
+            _unitsDone += ranges[r] - searched; // ruled out by the index
+            int found = findIn(src, version, target, ranges[r], ranges[r + 1],
+                    isCaseSensitive, isWholeWord);
+            if (found >= 0) {
+                return found;
+            }
+            searched = ranges[r + 1];
+        }
+        _unitsDone += Math.max(end - searched, 0);
+        return -1;
+    }
+
+    /**
+     * Searches start positions in [start, end). The range must be valid.
+     */
+    private int findIn(DocumentProvider src, int version, String target, int start, int end,
+                       boolean isCaseSensitive, boolean isWholeWord) {
+        final int m = target.length();
+        final int textEnd = end + m - 1;
+        final char[] pattern = prepare(target, isCaseSensitive);
+        if (_forwardSkips == null) {
+            _forwardSkips = forwardSkips(pattern);
+        }
+        final int[] skips = _forwardSkips;
+        final char[] chunk = chunk(m);
+
+        int offset = start;
+        int chunkSize = FIRST_CHUNK_SIZE;
+        while (offset < end && !_isCancelled) {
+            int count = Math.min(Math.max(chunkSize, 2 * m), textEnd - offset);
+            chunkSize = Math.min(chunkSize * 2, CHUNK_SIZE);
+            readChunk(src, version, offset, offset + count, chunk);
+
+            int last = count - m;
+            int i = 0;
+            while (i <= last) {
+                char c = fold(chunk[i + m - 1], isCaseSensitive);
+                if (c == pattern[m - 1] && matchesAt(chunk, i, pattern, isCaseSensitive)
+                        && (!isWholeWord || isSandwichedByWhitespace(src, offset + i, m))) {
+                    _unitsDone += i;
+                    _matchLength = m;
+                    return offset + i;
+                }
+                i += skips[c & (TABLE_SIZE - 1)];
+            }
+            _unitsDone += i;
+            offset += i;
+        }
+
+        return -1;
+    }
+
+    @Override
+    public int findBackwards(DocumentProvider src, String target, int start, int end,
+                             boolean isCaseSensitive, boolean isWholeWord) {
+        if (target.length() == 0) {
+            return -1;
+        }
+        while (true) {
+            try {
+                return findBackwardsOnce(src, target, start, end, isCaseSensitive, isWholeWord);
+            } catch (ConcurrentModificationException e) {
+                // the text changed while it was read; search it again, in
+                // the range that is still there
+                start = Math.min(start, src.docLength() - 1);
+            }
+        }
+    }
+
+    private int findBackwardsOnce(DocumentProvider src, String target, int start, int end,
+                                  boolean isCaseSensitive, boolean isWholeWord) {
+        final int m = target.length();
+        final int version = src.getVersion();
+        if (start >= src.docLength()) {
+            TextWarriorException.fail("Invalid start position given to TextBuffer.find");
+            start = src.docLength() - 1;
+        }
+        if (end < -1) {
+            TextWarriorException.fail("Invalid end position given to TextBuffer.find");
+            end = -1;
+        }
+
+        // start positions are in (end, start]
+        start = Math.min(start, src.docLength() - m);
+        int[] ranges = candidates(src, target, end + 1, start + 1);
+        if (ranges == null) {
+            return findBackwardsIn(src, version, target, start, end, isCaseSensitive, isWholeWord);
+        }
+        for (int r = ranges.length - 2; r >= 0; r -= 2) {
+            int found = findBackwardsIn(src, version, target, ranges[r + 1] - 1, ranges[r] - 1,
+                    isCaseSensitive, isWholeWord);
+            if (found >= 0) {
+                return found;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Searches start positions in (end, start], from start. The range must
+     * be valid.
+     */
+    private int findBackwardsIn(DocumentProvider src, int version, String target, int start, int end,
+                                boolean isCaseSensitive, boolean isWholeWord) {
+        final int m = target.length();
+        final char[] pattern = prepare(target, isCaseSensitive);
+        if (_backwardSkips == null) {
+            _backwardSkips = backwardSkips(pattern);
+        }
+        final int[] skips = _backwardSkips;
+        final char[] chunk = chunk(m);
+
+        int offset = start;
+        int chunkSize = FIRST_CHUNK_SIZE;
+        while (offset > end && !_isCancelled) {
+            int chunkStart = Math.max(end + 1, offset + m - Math.max(chunkSize, 2 * m));
+            chunkSize = Math.min(chunkSize * 2, CHUNK_SIZE);
+            readChunk(src, version, chunkStart, offset + m, chunk);
+
+            int i = offset - chunkStart;
+            while (i >= 0) {
+                char c = fold(chunk[i], isCaseSensitive);
+                if (c == pattern[0] && matchesAt(chunk, i, pattern, isCaseSensitive)
+                        && (!isWholeWord || isSandwichedByWhitespace(src, chunkStart + i, m))) {
+                    _matchLength = m;
+                    return chunkStart + i;
+                }
+                i -= skips[c & (TABLE_SIZE - 1)];
+            }
+            _unitsDone += offset - (chunkStart + i);
+            offset = chunkStart + i;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Copies the chars from start to end into chunk, or throws
+     * ConcurrentModificationException if src was edited since version
+     */
+    private static void readChunk(DocumentProvider src, int version, int start, int end, char[] chunk) {
+        if (!src.getChars(start, end, chunk, 0, version)) {
+            throw new ConcurrentModificationException();
+        }
+    }
+
+    /**
+     * Returns the folded target, and drops the skip tables if the target
+     * is not the one they were built for
+     */
+    private char[] prepare(String target, boolean isCaseSensitive) {
+        if (!target.equals(_target) || isCaseSensitive != _isCaseSensitive) {
+            _target = target;
+            _isCaseSensitive = isCaseSensitive;
+            _pattern = fold(target, isCaseSensitive);
+            _forwardSkips = null;
+            _backwardSkips = null;
+        }
+        return _pattern;
+    }
+
+    private char[] chunk(int targetLength) {
+        int size = Math.max(CHUNK_SIZE, 2 * targetLength);
+        if (_chunk.length < size) {
+            _chunk = new char[size];
+        }
+        return _chunk;
+    }
+
+    /**
+     * Whether pattern occurs in chunk at offset
+     */
+    private static boolean matchesAt(char[] chunk, int offset,
+                                     char[] pattern, boolean isCaseSensitive) {
+        for (int j = 0; j < pattern.length; ++j) {
+            if (fold(chunk[offset + j], isCaseSensitive) != pattern[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Distance to the next candidate position, given the char under the
+     * last char of the target at the current one
+     */
+    private static int[] forwardSkips(char[] pattern) {
+        final int m = pattern.length;
+        int[] skips = new int[TABLE_SIZE];
+        for (int i = 0; i < TABLE_SIZE; ++i) {
+            skips[i] = m;
+        }
+        // later chars overwrite earlier ones with smaller skips
+        for (int j = 0; j < m - 1; ++j) {
+            skips[pattern[j] & (TABLE_SIZE - 1)] = m - 1 - j;
+        }
+        return skips;
+    }
+
+    /**
+     * Distance to the previous candidate position, given the char under
+     * the first char of the target at the current one
+     */
+    private static int[] backwardSkips(char[] pattern) {
+        final int m = pattern.length;
+        int[] skips = new int[TABLE_SIZE];
+        for (int i = 0; i < TABLE_SIZE; ++i) {
+            skips[i] = m;
+        }
+        for (int j = m - 1; j > 0; --j) {
+            skips[pattern[j] & (TABLE_SIZE - 1)] = j;
+        }
+        return skips;
+    }
+
+    private static char[] fold(String s, boolean isCaseSensitive) {
+        return isCaseSensitive ? s.toCharArray() : CaseFolding.fold(s);
+    }
+
+    private static char fold(char c, boolean isCaseSensitive) {
+        // for case-insensitive search, compare both strings case folded
+        return isCaseSensitive ? c : CaseFolding.fold(c);
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2013 Tah Wei Hoon.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Apache License Version 2.0,
+ * with full text available at http://www.apache.org/licenses/LICENSE-2.0.html
+ *
+ * This software is provided "as is". Use at your own risk.
+ */
+package com.mrikso.codeeditor.util;
+
+import java.util.Arrays;
+
+/**
+ * The identifiers of a document and the number of times each one occurs.
+ *
+ * The index is filled by the Lexer while it scans the document, so the text
+ * does not have to be scanned again to find identifiers. Once published with
+ * TextBuffer.setIdentifiers(), an index is not modified any more and can be
+ * read from any thread.
+ *
+ * Words are kept in an open addressing table and looked up directly from
+ * the lexer's char buffer, so a String is only created the first time an
+ * identifier is seen.
+ */
+public class IdentifierIndex {
+    public final static IdentifierIndex EMPTY = new IdentifierIndex();
+
+    private final static int MIN_CAPACITY = 16;
+
+    private String[] _words = new String[MIN_CAPACITY];
+    private int[] _hashes = new int[MIN_CAPACITY];
+    private int[] _counts = new int[MIN_CAPACITY];
+    private int _size = 0;
+    /**
+     * sorted distinct words; built on demand
+     */
+    private String[] _wordList = null;
+
+    /**
+     * Adds one occurrence of the identifier held in buffer[start, start+length)
+     */
+    void add(char[] buffer, int start, int length) {
+        int hash = hash(buffer, start, length);
+        int i = find(hash, buffer, start, length);
+        if (_words[i] != null) {
+            ++_counts[i];
+            return;
+        }
+
+        _words[i] = new String(buffer, start, length);
+        _hashes[i] = hash;
+        _counts[i] = 1;
+        ++_size;
+        _wordList = null;
+        if (_size * 4 >= _words.length * 3) {
+            grow();
+        }
+    }
+
+    /**
+     * @return The number of occurrences of word in the document
+     */
+    public int getCount(String word) {
+        char[] chars = word.toCharArray();
+        int i = find(hash(chars, 0, chars.length), chars, 0, chars.length);
+        return (_words[i] == null) ? 0 : _counts[i];
+    }
+
+    public boolean contains(String word) {
+        return getCount(word) > 0;
+    }
+
+    /**
+     * @return The number of distinct identifiers
+     */
+    public int size() {
+        return _size;
+    }
+
+    /**
+     * @return The distinct identifiers, sorted
+     */
+    public synchronized String[] getWords() {
+        if (_wordList == null) {
+            String[] words = new String[_size];
+            int n = 0;
+            for (String w : _words) {
+                if (w != null) {
+                    words[n++] = w;
+                }
+            }
+            Arrays.sort(words);
+            _wordList = words;
+        }
+        return _wordList;
+    }
+
+    private int find(int hash, char[] buffer, int start, int length) {
+        int mask = _words.length - 1;
+        int i = mix(hash) & mask;
+        while (_words[i] != null
+                && (_hashes[i] != hash || !equals(_words[i], buffer, start, length))) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    private void grow() {
+        String[] words = _words;
+        int[] hashes = _hashes;
+        int[] counts = _counts;
+        int capacity = words.length * 2;
+        _words = new String[capacity];
+        _hashes = new int[capacity];
+        _counts = new int[capacity];
+
+        int mask = capacity - 1;
+        for (int j = 0; j < words.length; ++j) {
+            if (words[j] == null) {
+                continue;
+            }
+            int i = mix(hashes[j]) & mask;
+            while (_words[i] != null) {
+                i = (i + 1) & mask;
+            }
+            _words[i] = words[j];
+            _hashes[i] = hashes[j];
+            _counts[i] = counts[j];
+        }
+    }
+
+    private static boolean equals(String word, char[] buffer, int start, int length) {
+        if (word.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; ++i) {
+            if (word.charAt(i) != buffer[start + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Same as String.hashCode()
+     */
+    private static int hash(char[] buffer, int start, int length) {
+        int h = 0;
+        for (int i = start; i < start + length; ++i) {
+            h = 31 * h + buffer[i];
+        }
+        return h;
+    }
+
+    private static int mix(int h) {
+        h ^= (h >>> 16);
+        return h * 0x85ebca6b;
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright (c) 2013 Tah Wei Hoon.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Apache License Version 2.0,
+ * with full text available at http://www.apache.org/licenses/LICENSE-2.0.html
+ *
+ * This software is provided "as is". Use at your own risk.
+ */
+package com.mrikso.codeeditor.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Search-as-you-type session over one document.
+ *
+ * The session remembers the matches of each query typed so far. When a query
+ * extends the previous one, its matches can only be at the offsets where the
+ * previous query matched, so only those offsets are checked again instead of
+ * searching the document. Going back to a shorter query reuses its remembered
+ * matches.
+ *
+ * Edits to the document are received through TextBuffer.EditListener.
+ * Matches after an edit are shifted, and only the text around the edited
+ * range is searched again, so the session stays valid while the user types
+ * in the document.
+ *
+ * The session is not thread-safe. Use it on the thread that edits the
+ * document, and call dispose() when done.
+ */
+public class IncrementalSearch implements TextBuffer.EditListener {
+    private final DocumentProvider _src;
+    private final boolean _isCaseSensitive;
+    private final boolean _isWholeWord;
+    private final HorspoolSearchStrategy _finder = new HorspoolSearchStrategy();
+
+    /**
+     * Each query extends the one before it. _matches.get(i) holds every
+     * offset where _queries.get(i) occurs, including overlapping ones,
+     * ignoring isWholeWord.
+     */
+    private final ArrayList<String> _queries = new ArrayList<String>();
+    private final ArrayList<int[]> _matches = new ArrayList<int[]>();
+    private int _version;
+
+    public IncrementalSearch(DocumentProvider src, boolean isCaseSensitive, boolean isWholeWord) {
+        _src = src;
+        _isCaseSensitive = isCaseSensitive;
+        _isWholeWord = isWholeWord;
+        _version = src.getVersion();
+        src.addEditListener(this);
+    }
+
+    /**
+     * Stops tracking edits to the document
+     */
+    public void dispose() {
+        _src.removeEditListener(this);
+        clear();
+    }
+
+    /**
+     * @return The start offsets of all occurrences of query, in ascending
+     * order. Occurrences may overlap.
+     */
+    public int[] search(String query) {
+        if (_src.getVersion() != _version) {
+            // the document changed without this session seeing it
+            clear();
+            _version = _src.getVersion();
+        }
+        if (query.length() == 0) {
+            clear();
+            return new int[0];
+        }
+
+        // forget queries that the new one does not extend
+        int top = _queries.size() - 1;
+        while (top >= 0 && !isPrefix(_queries.get(top), query)) {
+            _queries.remove(top);
+            _matches.remove(top);
+            --top;
+        }
+
+        int[] matches;
+        if (top < 0) {
+            matches = findAll(query, 0, _src.docLength());
+            push(query, matches);
+        } else if (_queries.get(top).length() == query.length()) {
+            matches = _matches.get(top);
+        } else {
+            matches = narrow(_matches.get(top), query);
+            push(query, matches);
+        }
+
+        return _isWholeWord ? wholeWordsOnly(matches, query.length()) : matches;
+    }
+
+    @Override
+    public void onInsert(int charOffset, int length) {
+        for (int i = 0; i < _queries.size(); ++i) {
+            String query = _queries.get(i);
+            int[] matches = shift(_matches.get(i), query.length(), charOffset, charOffset, length);
+            // new occurrences have to include some of the inserted chars
+            int[] found = findAll(query, charOffset - query.length() + 1, charOffset + length);
+            _matches.set(i, insertSorted(matches, found));
+        }
+        _version = _src.getVersion();
+    }
+
+    @Override
+    public void onDelete(int charOffset, int length) {
+        for (int i = 0; i < _queries.size(); ++i) {
+            String query = _queries.get(i);
+            int[] matches = shift(_matches.get(i), query.length(), charOffset, charOffset + length, -length);
+            // new occurrences have to span the point where text was removed
+            int[] found = findAll(query, charOffset - query.length() + 1, charOffset);
+            _matches.set(i, insertSorted(matches, found));
+        }
+        _version = _src.getVersion();
+    }
+
+    @Override
+    public void onReset() {
+        clear();
+        _version = _src.getVersion();
+    }
+
+    private void clear() {
+        _queries.clear();
+        _matches.clear();
+    }
+
+    private void push(String query, int[] matches) {
+        _queries.add(query);
+        _matches.add(matches);
+    }
+
+    private boolean isPrefix(String prefix, String query) {
+        return query.length() >= prefix.length() && regionMatches(query, 0, prefix);
+    }
+
+    /**
+     * Keeps the offsets in candidates where query occurs
+     */
+    private int[] narrow(int[] candidates, String query) {
+        CharSequence text = _src.asCharSequence();
+        int[] matches = new int[candidates.length];
+        int count = 0;
+        for (int offset : candidates) {
+            if (offset + query.length() <= text.length()
+                    && regionMatches(text, offset, query)) {
+                matches[count++] = offset;
+            }
+        }
+        return Arrays.copyOf(matches, count);
+    }
+
+    /**
+     * Whether query occurs in text at offset. Case is folded the same way
+     * as in HorspoolSearchStrategy.
+     */
+    private boolean regionMatches(CharSequence text, int offset, String query) {
+        for (int i = 0; i < query.length(); ++i) {
+            char c = text.charAt(offset + i);
+            char q = query.charAt(i);
+            if (c != q && (_isCaseSensitive || !CaseFolding.equalsIgnoreCase(c, q))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Every occurrence of query starting from start (inclusive) to
+     * end (exclusive)
+     */
+    private int[] findAll(String query, int start, int end) {
+        start = Math.max(start, 0);
+        int[] found = new int[16];
+        int count = 0;
+        int offset = _finder.find(_src, query, start, end, _isCaseSensitive, false);
+        while (offset >= 0) {
+            if (count == found.length) {
+                found = Arrays.copyOf(found, count * 2);
+            }
+            found[count++] = offset;
+            offset = _finder.find(_src, query, offset + 1, end, _isCaseSensitive, false);
+        }
+        return Arrays.copyOf(found, count);
+    }
+
+    /**
+     * Drops the matches overlapping [editStart, editEnd) and moves the
+     * ones after it by delta
+     */
+    private static int[] shift(int[] matches, int queryLength, int editStart, int editEnd, int delta) {
+        int[] shifted = new int[matches.length];
+        int count = 0;
+        for (int offset : matches) {
+            if (offset + queryLength <= editStart) {
+                shifted[count++] = offset;
+            } else if (offset >= editEnd) {
+                shifted[count++] = offset + delta;
+            }
+        }
+        return (count == shifted.length) ? shifted : Arrays.copyOf(shifted, count);
+    }
+
+    /**
+     * Merges two sorted arrays without common elements
+     */
+    private static int[] insertSorted(int[] a, int[] b) {
+        if (b.length == 0) {
+            return a;
+        }
+        int[] merged = new int[a.length + b.length];
+        int i = 0;
+        int j = 0;
+        int k = 0;
+        while (i < a.length && j < b.length) {
+            merged[k++] = (a[i] < b[j]) ? a[i++] : b[j++];
+        }
+        while (i < a.length) {
+            merged[k++] = a[i++];
+        }
+        while (j < b.length) {
+            merged[k++] = b[j++];
+        }
+        return merged;
+    }
+
+    private int[] wholeWordsOnly(int[] matches, int length) {
+        int[] words = new int[matches.length];
+        int count = 0;
+        for (int offset : matches) {
+            if (_finder.isSandwichedByWhitespace(_src, offset, length)) {
+                words[count++] = offset;
+            }
+        }
+        return Arrays.copyOf(words, count);
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright (c) 2013 Tah Wei Hoon.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Apache License Version 2.0,
+ * with full text available at http://www.apache.org/licenses/LICENSE-2.0.html
+ *
+ * This software is provided "as is". Use at your own risk.
+ */
+package com.mrikso.codeeditor.util;
+
+import com.mrikso.codeeditor.lang.Language;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Measures text for layout independently of any view, so that documents
+ * can be word wrapped on any thread, and in plain JVM tests and benchmarks.
+ *
+ * Chars are measured by a GlyphMeasurer, a page of PAGE_SIZE chars at a
+ * time, and their advances are cached. Pages are measured with a lock held,
+ * so the measurer is never called from two threads at once, and are never
+ * changed once published, so reading them needs no lock. The font is
+ * changed by setting another measurer, which starts a new cache.
+ *
+ * The measurer and the layout settings (row width, tab length, and whether
+ * non-printing chars are drawn as glyphs) are held together in an immutable
+ * Metrics object that is replaced whenever one of them changes. The engine
+ * itself measures with the latest Metrics; snapshot() returns them, for
+ * layout that runs on another thread and must not see settings change
+ * halfway, like ParallelWordWrap.
+ */
+public class LayoutEngine implements Document.TextFieldMetrics {
+    private final static int PAGE_BITS = 7;
+    private final static int PAGE_SIZE = 1 << PAGE_BITS;
+    private final static int DEFAULT_TAB_LENGTH = 4;
+
+    private final float _emptyEolScale;
+    private volatile Metrics _metrics;
+
+    /**
+     * @param emptyEolScale Advance of NEWLINE and EOF chars, as a factor of
+     *                      the advance of a space, when non-printing chars
+     *                      are not drawn
+     */
+    public LayoutEngine(GlyphMeasurer measurer, float emptyEolScale) {
+        _emptyEolScale = emptyEolScale;
+        _metrics = new Metrics(new GlyphTable(measurer), 0, DEFAULT_TAB_LENGTH, false, emptyEolScale);
+    }
+
+    /**
+     * Measures chars with measurer from now on, as when the font changes
+     */
+    public synchronized void setMeasurer(GlyphMeasurer measurer) {
+        Metrics m = _metrics;
+        _metrics = new Metrics(new GlyphTable(measurer), m._rowWidth, m._tabLength,
+                m._isShowNonPrinting, _emptyEolScale);
+    }
+
+    public synchronized void setRowWidth(int rowWidth) {
+        Metrics m = _metrics;
+        if (m._rowWidth != rowWidth) {
+            _metrics = new Metrics(m._glyphs, rowWidth, m._tabLength,
+                    m._isShowNonPrinting, _emptyEolScale);
+        }
+    }
+
+    /**
+     * @param tabLength The number of spaces a tab takes
+     */
+    public synchronized void setTabLength(int tabLength) {
+        Metrics m = _metrics;
+        if (m._tabLength != tabLength) {
+            _metrics = new Metrics(m._glyphs, m._rowWidth, tabLength,
+                    m._isShowNonPrinting, _emptyEolScale);
+        }
+    }
+
+    /**
+     * Sets whether spaces, tabs and line ends are drawn as visible glyphs,
+     * which changes their advances
+     */
+    public synchronized void setShowNonPrinting(boolean isShowNonPrinting) {
+        Metrics m = _metrics;
+        if (m._isShowNonPrinting != isShowNonPrinting) {
+            _metrics = new Metrics(m._glyphs, m._rowWidth, m._tabLength,
+                    isShowNonPrinting, _emptyEolScale);
+        }
+    }
+
+    /**
+     * @return The current metrics, which never change
+     */
+    public Document.TextFieldMetrics snapshot() {
+        return _metrics;
+    }
+
+    @Override
+    public int getAdvance(char c) {
+        return _metrics.getAdvance(c);
+    }
+
+    @Override
+    public int getRowWidth() {
+        return _metrics.getRowWidth();
+    }
+
+    @Override
+    public int getFixedAdvance() {
+        return _metrics.getFixedAdvance();
+    }
+
+    /**
+     * @return The advance of the glyph of c, without the special cases of
+     * getAdvance(char) for spaces, tabs and line ends
+     */
+    public int getGlyphAdvance(char c) {
+        return _metrics._glyphs.get(c);
+    }
+
+    public int getSpaceAdvance() {
+        return _metrics._spaceAdvance;
+    }
+
+    public int getEOLAdvance() {
+        return _metrics._eolAdvance;
+    }
+
+    /**
+     * @return The advance of a tab at the start of a row
+     */
+    public int getTabAdvance() {
+        return _metrics._tabAdvance;
+    }
+
+    /**
+     * Measures the glyphs of chars for a LayoutEngine
+     */
+    public interface GlyphMeasurer {
+        /**
+         * Measures each of chars on its own, as if drawn alone, rounded down
+         * to whole pixels. Called by one thread at a time, though not always
+         * the same one.
+         *
+         * @param advances Receives the advance of chars[i] at index i
+         */
+        public void measure(char[] chars, int[] advances);
+    }
+
+    /**
+     * Advances of the glyphs measured by a GlyphMeasurer, measured a page
+     * at a time when first asked for
+     */
+    private static class GlyphTable {
+        private final GlyphMeasurer _measurer;
+        private final AtomicReferenceArray<int[]> _pages =
+                new AtomicReferenceArray<>((Character.MAX_VALUE + 1) >> PAGE_BITS);
+
+        GlyphTable(GlyphMeasurer measurer) {
+            _measurer = measurer;
+        }
+
+        int get(char c) {
+            int[] page = _pages.get(c >> PAGE_BITS);
+            if (page == null) {
+                page = measurePage(c >> PAGE_BITS);
+            }
+            return page[c & (PAGE_SIZE - 1)];
+        }
+
+        private synchronized int[] measurePage(int pageIndex) {
+            int[] page = _pages.get(pageIndex);
+            if (page == null) {
+                char[] chars = new char[PAGE_SIZE];
+                for (int i = 0; i < PAGE_SIZE; ++i) {
+                    chars[i] = (char) ((pageIndex << PAGE_BITS) + i);
+                }
+                page = new int[PAGE_SIZE];
+                _measurer.measure(chars, page);
+                _pages.set(pageIndex, page);
+            }
+            return page;
+        }
+    }
+
+    /**
+     * Glyph advances together with the layout settings they are used with
+     */
+    private static class Metrics implements Document.TextFieldMetrics {
+        private final GlyphTable _glyphs;
+        private final int _rowWidth;
+        private final int _tabLength;
+        private final boolean _isShowNonPrinting;
+        private final int _spaceAdvance;
+        private final int _eolAdvance;
+        private final int _tabAdvance;
+        private final int _fixedAdvance;
+
+        Metrics(GlyphTable glyphs, int rowWidth, int tabLength,
+                boolean isShowNonPrinting, float emptyEolScale) {
+            _glyphs = glyphs;
+            _rowWidth = rowWidth;
+            _tabLength = tabLength;
+            _isShowNonPrinting = isShowNonPrinting;
+            if (isShowNonPrinting) {
+                _spaceAdvance = glyphs.get(Language.GLYPH_SPACE.charAt(0));
+                _eolAdvance = glyphs.get(Language.GLYPH_NEWLINE.charAt(0));
+            } else {
+                _spaceAdvance = glyphs.get(' ');
+                _eolAdvance = (int) (emptyEolScale * glyphs.get(' '));
+            }
+            _tabAdvance = tabLength * _spaceAdvance;
+            _fixedAdvance = findFixedAdvance();
+        }
+
+        /**
+         * @return The advance shared by the printable ASCII chars as they
+         * are laid out, or 0 if they differ
+         */
+        private int findFixedAdvance() {
+            int advance = _glyphs.get(' ');
+            for (char c = 0x20; c < 0x7F; ++c) {
+                if (_glyphs.get(c) != advance) {
+                    return 0;
+                }
+            }
+            // spaces are drawn as glyphs when non-printing chars are shown
+            return (advance > 0 && _spaceAdvance == advance) ? advance : 0;
+        }
+
+        @Override
+        public int getAdvance(char c) {
+            switch (c) {
+                case 0xd83c:
+                case 0xd83d:
+                    // the high surrogate of an emoji; the low one is measured
+                    return 0;
+                case ' ':
+                    return _spaceAdvance;
+                case Language.NEWLINE: // fall-through
+                case Language.EOF:
+                    return _eolAdvance;
+                case Language.TAB:
+                    return _tabAdvance;
+                default:
+                    return _glyphs.get(c);
+            }
+        }
+
+        @Override
+        public int getRowWidth() {
+            return _rowWidth;
+        }
+
+        @Override
+        public int getFixedAdvance() {
+            return _fixedAdvance;
+        }
+    }
+}
@@ -9,14 +9,14 @@
 package com.mrikso.codeeditor.util;
 
 import com.mrikso.codeeditor.lang.Language;
-import com.mrikso.codeeditor.lang.LanguageNonProg;
 
 import java.util.ArrayList;
 import java.util.List;
 
 /**
  * Does lexical analysis of a text for C-like languages.
- * The programming language syntax used is set as a static class variable.
+ * The programming language syntax used is the one set on the document
+ * being analyzed, see DocumentProvider.setLanguage(Language).
  */
 public class Lexer {
     public final static int UNKNOWN = -1;
@@ -42,18 +42,20 @@ public class Lexer {
     public final static int SINGLE_SYMBOL_LINE_A = 20;
     public final static int SINGLE_SYMBOL_LINE_B = 21;
     /**
-     * Tokens that extend from a two start symbols, inclusive, until the end of line.
+     * Tokens that extend from a start sequence, inclusive, until the end of line.
+     * The start sequences are given by Language.getDelimiterMatcher().
      * Examples:
      * //this is a comment in C
      */
     public final static int DOUBLE_SYMBOL_LINE = 30;
     /**
      * Tokens that are enclosed between a start and end sequence, inclusive,
-     * that can span multiple lines. The start and end sequences contain exactly
-     * 2 symbols.
+     * that can span multiple lines. The start and end sequences can be of any
+     * length and are given by Language.getDelimiterMatcher().
      * Examples:
      * {- this is a...
      * ...multi-line comment in Haskell -}
+     * <!-- comment in XML -->
      */
     public final static int DOUBLE_SYMBOL_DELIMITED_MULTILINE = 40;
     /**
@@ -63,8 +65,10 @@ public class Lexer {
      */
     public final static int SINGLE_SYMBOL_DELIMITED_A = 50;
     public final static int SINGLE_SYMBOL_DELIMITED_B = 51;
-    private final static int MAX_KEYWORD_LENGTH = 31;
-    private static Language _globalLanguage = LanguageNonProg.getInstance();
+    /**
+     * Longest word collected for keyword matching and the identifier index
+     */
+    private final static int MAX_WORD_LENGTH = 255;
     LexCallback _callback = null;
     private DocumentProvider _hDoc;
     private LexThread _workerThread = null;
@@ -72,37 +76,51 @@ public class Lexer {
         _callback = callback;
     }
 
-    synchronized public static Language getLanguage() {
-        return _globalLanguage;
-    }
-
-    synchronized public static void setLanguage(Language lang) {
-        _globalLanguage = lang;
-    }
-
     public void tokenize(DocumentProvider hDoc) {
-        if (!Lexer.getLanguage().isProgLang()) {
+        if (!hDoc.getLanguage().isProgLang()) {
             return;
         }
 
-        //tokenize will modify the state of hDoc; make a copy
-        setDocument(new DocumentProvider(hDoc));
-        if (_workerThread == null) {
-            _workerThread = new LexThread(this);
-            _workerThread.start();
-        } else {
-            _workerThread.restart();
+        synchronized (this) {
+            //tokenize will modify the state of hDoc; make a copy
+            setDocument(new DocumentProvider(hDoc));
+            if (_workerThread == null) {
+                _workerThread = new LexThread(this);
+                _workerThread.start();
+            } else {
+                _workerThread.restart();
+            }
         }
     }
 
-    void tokenizeDone(List<Pair> result) {
-        if (_callback != null) {
-            _callback.lexDone(result);
+    /**
+     * Called by the worker when a scan completes.
+     *
+     * @return false if the result is outdated, either because another
+     * tokenize request arrived or the text was edited while the scan ran.
+     * The worker should then scan again.
+     */
+    synchronized boolean tokenizeDone(LexThread worker, List<Pair> result,
+                                      IdentifierIndex identifiers, FoldScanner folds, int version) {
+        if (_workerThread != worker) {
+            // cancelled
+            return true;
+        }
+        if (worker.rescan || getDocument().getVersion() != version) {
+            return false;
         }
         _workerThread = null;
+        getDocument().setIdentifiers(identifiers, version);
+        if (folds != null) {
+            getDocument().setFoldRegions(folds.getStarts(), folds.getEnds(), folds.size(), version);
+        }
+        if (_callback != null) {
+            _callback.lexDone(result, version);
+        }
+        return true;
     }
 
-    public void cancelTokenize() {
+    public synchronized void cancelTokenize() {
         if (_workerThread != null) {
             _workerThread.abort();
             _workerThread = null;
@@ -119,7 +137,13 @@ public class Lexer {
 
 
     public interface LexCallback {
-        public void lexDone(List<Pair> results);
+        /**
+         * @param results The spans found
+         * @param version The document version the spans were computed from.
+         *                Compare against DocumentProvider.getVersion() to find
+         *                out if the spans are outdated.
+         */
+        public void lexDone(List<Pair> results, int version);
     }
 
     private class LexThread extends Thread {
@@ -128,12 +152,24 @@ public class Lexer {
          * can be set by another thread to stop the scan immediately
          */
         private final Flag _abort;
+        /**
+         * set when another tokenize request arrives during a scan;
+         * guarded by the Lexer lock
+         */
         private boolean rescan = false;
         /**
          * A collection of Pairs, where Pair.first is the start
          * position of the token, and Pair.second is the type of the token.
          */
         private ArrayList<Pair> _tokens;
+        /**
+         * Identifiers found in the same scan as _tokens
+         */
+        private IdentifierIndex _identifiers;
+        /**
+         * Fold regions found in the same scan as _tokens
+         */
+        private FoldScanner _folds;
 
         public LexThread(Lexer p) {
             _lexManager = p;
@@ -142,21 +178,26 @@ public class Lexer {
 
         @Override
         public void run() {
-            do {
-                rescan = false;
-                _abort.clear();
-                tokenize();
-            }
-            while (rescan);
-
-            if (!_abort.isSet()) {
-                // lex complete
-                _lexManager.tokenizeDone(_tokens);
+            boolean done = false;
+            while (!done) {
+                synchronized (_lexManager) {
+                    if (_workerThread != this) {
+                        return;
+                    }
+                    rescan = false;
+                    _abort.clear();
+                }
+                DocumentProvider hDoc = getDocument();
+                int version = hDoc.getVersion();
+                tokenize(hDoc);
+                done = _lexManager.tokenizeDone(this, _tokens, _identifiers, _folds, version);
             }
         }
 
         public void restart() {
-            rescan = true;
+            synchronized (_lexManager) {
+                rescan = true;
+            }
             _abort.set();
         }
 
@@ -168,18 +209,26 @@ public class Lexer {
          * Scans the document referenced by _lexManager for tokens.
          * The result is stored internally.
          */
-        public void tokenize() {
-            DocumentProvider hDoc = getDocument();
-            Language language = Lexer.getLanguage();
+        public void tokenize(DocumentProvider hDoc) {
+            Language language = hDoc.getLanguage();
             ArrayList<Pair> tokens = new ArrayList<Pair>();
+            IdentifierIndex identifiers = new IdentifierIndex();
+            FoldScanner folds = new FoldScanner(language);
 
             if (!language.isProgLang()) {
                 tokens.add(new Pair(0, NORMAL));
                 _tokens = tokens;
+                _identifiers = IdentifierIndex.EMPTY;
+                _folds = null;
                 return;
             }
 
-            char[] candidateWord = new char[MAX_KEYWORD_LENGTH];
+            DelimiterMatcher delimiters = language.getDelimiterMatcher();
+            int matchState = DelimiterMatcher.ROOT;
+            // start delimiter of the current multi-line token
+            int openDelimiter = DelimiterMatcher.NO_MATCH;
+
+            char[] candidateWord = new char[MAX_WORD_LENGTH];
             int currentCharInWord = 0;
 
             int spanStartPosition = 0;
@@ -190,6 +239,53 @@ public class Lexer {
             hDoc.seekChar(0);
             while (hDoc.hasNext() && !_abort.isSet()) {
                 char currentChar = hDoc.next();
+                matchState = delimiters.next(matchState, currentChar);
+
+                int delimiter = DelimiterMatcher.NO_MATCH;
+                int delimiterStart = 0;
+                if (state != DOUBLE_SYMBOL_DELIMITED_MULTILINE) {
+                    delimiter = delimiters.startAt(matchState);
+                }
+                if (delimiter != DelimiterMatcher.NO_MATCH) {
+                    delimiterStart = workingPosition - delimiters.length(delimiter) + 1;
+                    // Inside a line comment or string, a delimiter only counts if it
+                    // encloses the opening of that token, like --[[ after -- in Lua
+                    if (!isWordState(state) && delimiterStart > spanStartPosition) {
+                        delimiter = DelimiterMatcher.NO_MATCH;
+                    }
+                }
+
+                if (delimiter != DelimiterMatcher.NO_MATCH) {
+                    // the chars of the delimiter before this one were already
+                    // scanned and may have opened tokens of their own
+                    while (!tokens.isEmpty()
+                            && tokens.get(tokens.size() - 1).getFirst() >= delimiterStart) {
+                        tokens.remove(tokens.size() - 1);
+                    }
+
+                    // If a span appears mid-word, mark the chars preceding
+                    // it as NORMAL, if the previous span isn't already NORMAL
+                    int wordStart = workingPosition - currentCharInWord;
+                    if (currentCharInWord > 0 && wordStart < delimiterStart && state != NORMAL) {
+                        tokens.add(new Pair(wordStart, NORMAL));
+                    }
+
+                    if (delimiters.isLineStart(delimiter)) {
+                        state = DOUBLE_SYMBOL_LINE;
+                    } else {
+                        state = DOUBLE_SYMBOL_DELIMITED_MULTILINE;
+                        openDelimiter = delimiter;
+                        // the end delimiter must not overlap the start delimiter
+                        matchState = DelimiterMatcher.ROOT;
+                    }
+                    spanStartPosition = delimiterStart;
+                    tokens.add(new Pair(spanStartPosition, state));
+                    currentCharInWord = 0;
+                    folds.charScanned(currentChar, workingPosition);
+                    ++workingPosition;
+                    prevChar = currentChar;
+                    continue;
+                }
 
                 switch (state) {
                     case UNKNOWN: //fall-through
@@ -198,13 +294,7 @@ public class Lexer {
                     case SINGLE_SYMBOL_WORD:
                         int pendingState = state;
                         boolean stateChanged = false;
-                        if (language.isLineStart(prevChar, currentChar)) {
-                            pendingState = DOUBLE_SYMBOL_LINE;
-                            stateChanged = true;
-                        } else if (language.isMultilineStartDelimiter(prevChar, currentChar)) {
-                            pendingState = DOUBLE_SYMBOL_DELIMITED_MULTILINE;
-                            stateChanged = true;
-                        } else if (language.isDelimiterA(currentChar)) {
+                        if (language.isDelimiterA(currentChar)) {
                             pendingState = SINGLE_SYMBOL_DELIMITED_A;
                             stateChanged = true;
                         } else if (language.isDelimiterB(currentChar)) {
@@ -220,17 +310,7 @@ public class Lexer {
 
 
                         if (stateChanged) {
-                            if (pendingState == DOUBLE_SYMBOL_LINE ||
-                                    pendingState == DOUBLE_SYMBOL_DELIMITED_MULTILINE) {
-                                // account for previous char
-                                spanStartPosition = workingPosition - 1;
-								//TODO consider less greedy approach and avoid adding token for previous char
-                                if (tokens.get(tokens.size() - 1).getFirst() == spanStartPosition) {
-                                    tokens.remove(tokens.size() - 1);
-                                }
-                            } else {
-                                spanStartPosition = workingPosition;
-                            }
+                            spanStartPosition = workingPosition;
 
                             // If a span appears mid-word, mark the chars preceding
                             // it as NORMAL, if the previous span isn't already NORMAL
@@ -252,21 +332,35 @@ public class Lexer {
                                     spanStartPosition = workingPosition - currentCharInWord;
                                     state = KEYWORD;
                                     tokens.add(new Pair(spanStartPosition, state));
-                                } else if (state != NORMAL) {
-                                    spanStartPosition = workingPosition - currentCharInWord;
-                                    state = NORMAL;
-                                    tokens.add(new Pair(spanStartPosition, state));
+                                } else {
+                                    if (state != NORMAL) {
+                                        spanStartPosition = workingPosition - currentCharInWord;
+                                        state = NORMAL;
+                                        tokens.add(new Pair(spanStartPosition, state));
+                                    }
+                                    // longer words were cut off and are left out
+                                    if (currentCharInWord < MAX_WORD_LENGTH
+                                            && isIdentifier(candidateWord, currentCharInWord)) {
+                                        identifiers.add(candidateWord, 0, currentCharInWord);
+                                    }
                                 }
+                                folds.wordFound(candidateWord, currentCharInWord);
                                 currentCharInWord = 0;
                             }
 
+                            if (currentChar == '{') {
+                                folds.braceOpened();
+                            } else if (currentChar == '}') {
+                                folds.braceClosed();
+                            }
+
                             // mark operators as normal
                             if (state != NORMAL && language.isOperator(currentChar)) {
                                 state = NORMAL;
                                 tokens.add(new Pair(workingPosition, state));
                             }
-                        } else if (currentCharInWord < MAX_KEYWORD_LENGTH) {
-                            // collect non-whitespace chars up to MAX_KEYWORD_LENGTH
+                        } else if (currentCharInWord < MAX_WORD_LENGTH) {
+                            // collect non-whitespace chars up to MAX_WORD_LENGTH
                             candidateWord[currentCharInWord] = currentChar;
                             currentCharInWord++;
                         }
@@ -311,8 +405,9 @@ public class Lexer {
                         break;
 
                     case DOUBLE_SYMBOL_DELIMITED_MULTILINE:
-                        if (language.isMultilineEndDelimiter(prevChar, currentChar)) {
+                        if (delimiters.isEndAt(matchState, openDelimiter)) {
                             state = UNKNOWN;
+                            matchState = DelimiterMatcher.ROOT;
                         }
                         break;
 
@@ -320,6 +415,7 @@ public class Lexer {
                         TextWarriorException.fail("Invalid state in TokenScanner");
                         break;
                 }
+                folds.charScanned(currentChar, workingPosition);
                 ++workingPosition;
                 prevChar = currentChar;
             }
@@ -331,9 +427,28 @@ public class Lexer {
                 tokens.add(new Pair(0, NORMAL));
             }
 
+            folds.finish(workingPosition);
+
             _tokens = tokens;
+            _identifiers = identifiers;
+            _folds = folds;
         }
 
+        private boolean isIdentifier(char[] word, int length) {
+            if (!Character.isJavaIdentifierStart(word[0])) {
+                return false;
+            }
+            for (int i = 1; i < length; ++i) {
+                if (!Character.isJavaIdentifierPart(word[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
 
+        private boolean isWordState(int state) {
+            return state == UNKNOWN || state == NORMAL
+                    || state == KEYWORD || state == SINGLE_SYMBOL_WORD;
+        }
     }//end inner class
 }
@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) 2013 Tah Wei Hoon.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Apache License Version 2.0,
+ * with full text available at http://www.apache.org/licenses/LICENSE-2.0.html
+ *
+ * This software is provided "as is". Use at your own risk.
+ */
+package com.mrikso.codeeditor.util;
+
+import com.mrikso.codeeditor.lang.Language;
+
+import java.util.TreeMap;
+
+/**
+ * The drawn width of every line of a document, and the widest of them.
+ *
+ * Widths are measured by the text field and stored with setWidth(). They are
+ * kept in an int array with a gap, moved to the edited line like the text of
+ * TextBuffer, so inserting and removing lines is cheap near the last edit.
+ * Every known width is also counted in a sorted map from width to number of
+ * lines, so the widest line is found, and kept up to date as lines change,
+ * in O(log n).
+ *
+ * Edits to the document are received through TextBuffer.EditListener. Lines
+ * an edit touches become unmeasured, and lines it inserts or removes are
+ * inserted or removed here too. getMaxWidth() is exact once isExact().
+ *
+ * Not thread-safe. Use it, and pass the edits of the document to it, on
+ * one thread.
+ */
+public class LineWidths implements TextBuffer.EditListener {
+    private final static int MIN_CAPACITY = 16;
+    private final static int UNKNOWN = -1;
+
+    private final Document _doc;
+    private int[] _widths;
+    private int _gapStartIndex;
+    /**
+     * Index of the first width after the gap
+     */
+    private int _gapEndIndex;
+    private int _unknownCount;
+    /**
+     * Where nextUnmeasuredLine() looks first
+     */
+    private int _nextUnknown;
+    /**
+     * Number of lines of each known width
+     */
+    private final TreeMap<Integer, Integer> _counts = new TreeMap<>();
+
+    public LineWidths(DocumentProvider src) {
+        _doc = src.getDocument();
+        invalidateAll();
+    }
+
+    /**
+     * Marks every line as unmeasured, as when the font changes
+     */
+    public void invalidateAll() {
+        int lineCount = _doc.getLineCount();
+        _widths = new int[Math.max(MIN_CAPACITY, lineCount)];
+        for (int i = 0; i < lineCount; ++i) {
+            _widths[i] = UNKNOWN;
+        }
+        _gapStartIndex = lineCount;
+        _gapEndIndex = _widths.length;
+        _unknownCount = lineCount;
+        _nextUnknown = 0;
+        _counts.clear();
+    }
+
+    public int size() {
+        return _widths.length - (_gapEndIndex - _gapStartIndex);
+    }
+
+    /**
+     * Whether every line has been measured
+     */
+    public boolean isExact() {
+        return _unknownCount == 0;
+    }
+
+    /**
+     * @return The width of the widest measured line, or 0 if there is none
+     */
+    public int getMaxWidth() {
+        return _counts.isEmpty() ? 0 : _counts.lastKey();
+    }
+
+    public boolean isMeasured(int line) {
+        return _widths[index(line)] != UNKNOWN;
+    }
+
+    public void setWidth(int line, int width) {
+        int i = index(line);
+        if (_widths[i] == UNKNOWN) {
+            --_unknownCount;
+        } else {
+            uncount(_widths[i]);
+        }
+        _widths[i] = width;
+        Integer count = _counts.get(width);
+        _counts.put(width, (count == null) ? 1 : count + 1);
+    }
+
+    /**
+     * @return An unmeasured line, starting the search after the one
+     * returned last time, or -1 if every line is measured
+     */
+    public int nextUnmeasuredLine() {
+        if (isExact()) {
+            return -1;
+        }
+        int size = size();
+        int line = (_nextUnknown < size) ? _nextUnknown : 0;
+        while (isMeasured(line)) {
+            line = (line + 1 < size) ? line + 1 : 0;
+        }
+        _nextUnknown = line + 1;
+        return line;
+    }
+
+    @Override
+    public void onInsert(int charOffset, int length) {
+        char[] inserted = new char[length];
+        _doc.getChars(charOffset, charOffset + length, inserted, 0);
+        int newLines = 0;
+        for (char c : inserted) {
+            if (c == Language.NEWLINE) {
+                ++newLines;
+            }
+        }
+        int line = _doc.findLineNumber(charOffset);
+        invalidate(line);
+        moveGap(line + 1);
+        for (int i = 0; i < newLines; ++i) {
+            if (_gapStartIndex == _gapEndIndex) {
+                grow();
+            }
+            _widths[_gapStartIndex++] = UNKNOWN;
+            ++_unknownCount;
+        }
+    }
+
+    @Override
+    public void onDelete(int charOffset, int length) {
+        // the text is gone, so the removed lines are counted from the document
+        int removed = size() - _doc.getLineCount();
+        int line = _doc.findLineNumber(charOffset);
+        moveGap(line + 1);
+        for (int i = 0; i < removed; ++i) {
+            int width = _widths[_gapEndIndex++];
+            if (width == UNKNOWN) {
+                --_unknownCount;
+            } else {
+                uncount(width);
+            }
+        }
+        invalidate(line);
+    }
+
+    @Override
+    public void onReset() {
+        invalidateAll();
+    }
+
+    private void invalidate(int line) {
+        int i = index(line);
+        if (_widths[i] != UNKNOWN) {
+            uncount(_widths[i]);
+            _widths[i] = UNKNOWN;
+            ++_unknownCount;
+        }
+        _nextUnknown = Math.min(_nextUnknown, line);
+    }
+
+    private void uncount(int width) {
+        int count = _counts.get(width);
+        if (count == 1) {
+            _counts.remove(width);
+        } else {
+            _counts.put(width, count - 1);
+        }
+    }
+
+    private int index(int line) {
+        return (line < _gapStartIndex) ? line : line + _gapEndIndex - _gapStartIndex;
+    }
+
+    /**
+     * Moves the gap to just before line
+     */
+    private void moveGap(int line) {
+        if (line < _gapStartIndex) {
+            int count = _gapStartIndex - line;
+            System.arraycopy(_widths, line, _widths, _gapEndIndex - count, count);
+            _gapStartIndex = line;
+            _gapEndIndex -= count;
+        } else if (line > _gapStartIndex) {
+            int count = line - _gapStartIndex;
+            System.arraycopy(_widths, _gapEndIndex, _widths, _gapStartIndex, count);
+            _gapStartIndex += count;
+            _gapEndIndex += count;
+        }
+    }
+
+    private void grow() {
+        int[] widths = new int[_widths.length * 2];
+        int afterGap = _widths.length - _gapEndIndex;
+        System.arraycopy(_widths, 0, widths, 0, _gapStartIndex);
+        System.arraycopy(_widths, _gapEndIndex, widths, widths.length - afterGap, afterGap);
+        _gapEndIndex = widths.length - afterGap;
+        _widths = widths;
+    }
+}
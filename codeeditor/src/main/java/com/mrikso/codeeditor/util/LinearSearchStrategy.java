@@ -11,8 +11,18 @@ package com.mrikso.codeeditor.util;
 
 import com.mrikso.codeeditor.lang.Language;
 
+import java.util.Arrays;
+
 public class LinearSearchStrategy implements SearchStrategy {
-    private int _unitsDone = 0;
+    protected volatile int _unitsDone = 0;
+    protected int _matchLength = 0;
+    /**
+     * Checked by the search loops, at least once per chunk of text
+     */
+    protected volatile boolean _isCancelled = false;
+    // the last target folded by equals(), reused by repeated calls
+    private String _foldedTarget = null;
+    private char[] _folded;
 
     @Override
     // only applicable to replaceAll operation
@@ -20,6 +30,21 @@ public class LinearSearchStrategy implements SearchStrategy {
         return _unitsDone;
     }
 
+    @Override
+    public int getMatchLength() {
+        return _matchLength;
+    }
+
+    @Override
+    public void cancel() {
+        _isCancelled = true;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return _isCancelled;
+    }
+
     @Override
     public int wrappedFind(DocumentProvider src, String target, int start,
                            boolean isCaseSensitive, boolean isWholeWord) {
@@ -28,7 +53,7 @@ public class LinearSearchStrategy implements SearchStrategy {
         int foundOffset = find(src, target, start, src.docLength(),
                 isCaseSensitive, isWholeWord);
         // ...then from beginning of doc
-        if (foundOffset < 0) {
+        if (foundOffset < 0 && !_isCancelled) {
             foundOffset = find(src, target, 0, start,
                     isCaseSensitive, isWholeWord);
         }
@@ -54,6 +79,9 @@ public class LinearSearchStrategy implements SearchStrategy {
         end = Math.min(end, src.docLength() - target.length() + 1);
         int offset = start;
         while (offset < end) {
+            if (_isCancelled) {
+                return -1;
+            }
             if (equals(src, target, offset, isCaseSensitive) &&
                     (!isWholeWord || isSandwichedByWhitespace(src, offset, target.length()))) {
                 break;
@@ -64,6 +92,7 @@ public class LinearSearchStrategy implements SearchStrategy {
         }
 
         if (offset < end) {
+            _matchLength = target.length();
             return offset;
         } else {
             return -1;
@@ -78,7 +107,7 @@ public class LinearSearchStrategy implements SearchStrategy {
         int foundOffset = findBackwards(src, target, start, -1,
                 isCaseSensitive, isWholeWord);
         // ...then from end of doc
-        if (foundOffset < 0) {
+        if (foundOffset < 0 && !_isCancelled) {
             foundOffset = findBackwards(src, target, src.docLength() - 1, start,
                     isCaseSensitive, isWholeWord);
         }
@@ -103,15 +132,20 @@ public class LinearSearchStrategy implements SearchStrategy {
         }
         int offset = Math.min(start, src.docLength() - target.length());
         while (offset > end) {
+            if (_isCancelled) {
+                return -1;
+            }
             if (equals(src, target, offset, isCaseSensitive) &&
                     (!isWholeWord || isSandwichedByWhitespace(src, offset, target.length()))) {
                 break;
             }
 
             --offset;
+            ++_unitsDone;
         }
 
         if (offset > end) {
+            _matchLength = target.length();
             return offset;
         } else {
             return -1;
@@ -122,40 +156,62 @@ public class LinearSearchStrategy implements SearchStrategy {
     public Pair replaceAll(DocumentProvider src, String searchText,
                            String replacementText, int mark,
                            boolean isCaseSensitive, boolean isWholeWord) {
-        int replacementCount = 0;
-        int anchor = mark;
-        _unitsDone = 0;
+        while (true) {
+            int anchor = mark;
+            _unitsDone = 0;
 
-        final char[] replacement = replacementText.toCharArray();
-        int foundIndex = find(src, searchText, 0, src.docLength(),
-                isCaseSensitive, isWholeWord);
-        long timestamp = System.nanoTime();
-
-        src.beginBatchEdit();
-        while (foundIndex != -1) {
-            src.deleteAt(foundIndex, searchText.length(), timestamp);
-            src.insertBefore(replacement, foundIndex, timestamp);
-            if (foundIndex < anchor) {
-                // adjust anchor because of differences in doc length
-                // after word replacement
-                anchor += replacementText.length() - searchText.length();
+            // find every match in the unchanged text, then replace them all
+            // in one pass over the document
+            int version = src.getVersion();
+            int[] offsets = new int[16];
+            int count = 0;
+            int foundIndex = find(src, searchText, 0, src.docLength(),
+                    isCaseSensitive, isWholeWord);
+            while (foundIndex != -1) {
+                if (count == offsets.length) {
+                    offsets = Arrays.copyOf(offsets, count * 2);
+                }
+                offsets[count++] = foundIndex;
+                if (foundIndex < mark) {
+                    // adjust anchor because of differences in doc length
+                    // after word replacement
+                    anchor += replacementText.length() - searchText.length();
+                }
+                _unitsDone += searchText.length(); //skip replaced chars
+                foundIndex = find(
+                        src,
+                        searchText,
+                        foundIndex + searchText.length(),
+                        src.docLength(),
+                        isCaseSensitive,
+                        isWholeWord);
+            }
+
+            if (_isCancelled) {
+                return null;
+            }
+            int[] lengths = new int[count];
+            Arrays.fill(lengths, searchText.length());
+            if (src.replace(offsets, lengths, count, replacementText.toCharArray(), null, version)) {
+                return new Pair(count, Math.max(anchor, 0));
             }
-            ++replacementCount;
-            _unitsDone += searchText.length(); //skip replaced chars
-            foundIndex = find(
-                    src,
-                    searchText,
-                    foundIndex + replacementText.length(),
-                    src.docLength(),
-                    isCaseSensitive,
-                    isWholeWord);
-        }
-        src.endBatchEdit();
-
-        return new Pair(replacementCount, Math.max(anchor, 0));
+            // the text changed while it was searched; search it again
+        }
     }
 
 
+    /**
+     * Narrows down the start positions in [start, end) that have to be
+     * searched for target, using the trigram index of the document.
+     *
+     * @return Pairs of start and end offsets of the ranges to search, or
+     * null to search all of [start, end)
+     */
+    protected int[] candidates(DocumentProvider src, String target, int start, int end) {
+        TrigramIndex index = src.getTrigramIndex();
+        return (index == null) ? null : index.candidates(target, start, end);
+    }
+
     protected boolean equals(DocumentProvider src, String target,
                              int srcOffset, boolean isCaseSensitive) {
         if ((src.docLength() - srcOffset) < target.length()) {
@@ -163,21 +219,26 @@ public class LinearSearchStrategy implements SearchStrategy {
             return false;
         }
 
-        int i;
-        for (i = 0; i < target.length(); ++i) {
-            if (isCaseSensitive &&
-                    target.charAt(i) != src.charAt(i + srcOffset)) {
-                return false;
+        if (isCaseSensitive) {
+            for (int i = 0; i < target.length(); ++i) {
+                if (target.charAt(i) != src.charAt(i + srcOffset)) {
+                    return false;
+                }
             }
-            // for case-insensitive search, compare both strings in lower case
-            if (!isCaseSensitive &&
-                    Character.toLowerCase(target.charAt(i)) !=
-                            Character.toLowerCase(src.charAt(i + srcOffset))) {
+            return true;
+        }
+
+        // for case-insensitive search, compare both strings case folded
+        if (!target.equals(_foldedTarget)) {
+            _foldedTarget = target;
+            _folded = CaseFolding.fold(target);
+        }
+        final char[] folded = _folded;
+        for (int i = 0; i < folded.length; ++i) {
+            if (CaseFolding.fold(src.charAt(i + srcOffset)) != folded[i]) {
                 return false;
             }
-
         }
-
         return true;
     }
 
@@ -187,7 +248,7 @@ public class LinearSearchStrategy implements SearchStrategy {
      */
     protected boolean isSandwichedByWhitespace(DocumentProvider src,
                                                int start, int length) {
-        Language charSet = Lexer.getLanguage();
+        Language charSet = src.getLanguage();
         boolean startWithWhitespace = (start == 0) || charSet.isWhitespace(src.charAt(start - 1));
 
         int end = start + length;
@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2013 Tah Wei Hoon.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Apache License Version 2.0,
+ * with full text available at http://www.apache.org/licenses/LICENSE-2.0.html
+ *
+ * This software is provided "as is". Use at your own risk.
+ */
+package com.mrikso.codeeditor.util;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Finds every match of a target in a document.
+ *
+ * The document is split into chunks that are searched in parallel on a
+ * fork/join pool. Each chunk covers the match start positions in its range
+ * and reads past its end as far as a match extends, so chunks overlap by up
+ * to one match. Matches do not overlap each other; where a match found in
+ * one chunk runs into the next chunk, the start of the next chunk is searched
+ * again from the end of that match, so the result is the same as that of a
+ * single scan from the start of the document.
+ */
+public class ParallelFinder {
+    private final static int CHUNK_SIZE = 256 * 1024;
+    private static ForkJoinPool _pool = null;
+
+    private final DocumentProvider _src;
+    private final String _target;
+    private final boolean _isCaseSensitive;
+    private final boolean _isWholeWord;
+    private final boolean _isRegex;
+    private final AtomicInteger _unitsDone = new AtomicInteger(0);
+    private volatile boolean _isCancelled = false;
+
+    private int[] _offsets = new int[0];
+    private int[] _lengths = new int[0];
+
+    public ParallelFinder(DocumentProvider src, String target,
+                          boolean isCaseSensitive, boolean isWholeWord, boolean isRegex) {
+        _src = src;
+        _target = target;
+        _isCaseSensitive = isCaseSensitive;
+        _isWholeWord = isWholeWord;
+        _isRegex = isRegex;
+    }
+
+    private static synchronized ForkJoinPool getPool() {
+        if (_pool == null) {
+            _pool = new ForkJoinPool();
+        }
+        return _pool;
+    }
+
+    /**
+     * Searches the whole document. Blocks until done.
+     *
+     * @return The start offsets of all matches, in ascending order
+     */
+    public int[] findAll() {
+        _unitsDone.set(0);
+        Matches found = getPool().invoke(new ChunkTask(0, _src.docLength()));
+        _offsets = Arrays.copyOf(found.offsets, found.size);
+        _lengths = Arrays.copyOf(found.lengths, found.size);
+        return _offsets;
+    }
+
+    /**
+     * @return The start offsets found by the last call to findAll()
+     */
+    public int[] getOffsets() {
+        return _offsets;
+    }
+
+    /**
+     * @return The lengths of the matches found by the last call to findAll().
+     * For literal searches, these are all the length of the target.
+     */
+    public int[] getLengths() {
+        return _lengths;
+    }
+
+    /**
+     * The number of characters that have been searched so far
+     */
+    public int getProgress() {
+        return _unitsDone.get();
+    }
+
+    /**
+     * Makes findAll() return as soon as possible, with only some of the
+     * matches. Can be called from any thread.
+     */
+    public void cancel() {
+        _isCancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return _isCancelled;
+    }
+
+    private SearchStrategy newStrategy() {
+        // strategies keep per-search state, so each task needs its own
+        return _isRegex ? new RegexSearchStrategy() : new HorspoolSearchStrategy();
+    }
+
+    /**
+     * Matches starting from start (inclusive) to end (exclusive), searching
+     * from start, and not overlapping each other
+     */
+    private Matches scan(SearchStrategy finder, int start, int end, Matches into) {
+        int offset = finder.find(_src, _target, start, end, _isCaseSensitive, _isWholeWord);
+        while (offset >= 0 && !_isCancelled) {
+            into.add(offset, finder.getMatchLength());
+            offset = finder.find(_src, _target, offset + finder.getMatchLength(), end,
+                    _isCaseSensitive, _isWholeWord);
+        }
+        return into;
+    }
+
+    /**
+     * Appends right to left. The first matches of right were found by
+     * searching from the start of its chunk; if they overlap the last match
+     * of left, search again from the end of that match until the results
+     * agree with right.
+     */
+    private Matches merge(Matches left, Matches right, int rightEnd) {
+        int leftEnd = (left.size == 0) ? 0 : left.end(left.size - 1);
+        int i = 0;
+        if (right.size > 0 && right.offsets[0] < leftEnd) {
+            SearchStrategy finder = newStrategy();
+            int offset = finder.find(_src, _target, leftEnd, rightEnd, _isCaseSensitive, _isWholeWord);
+            while (true) {
+                while (i < right.size && right.offsets[i] < offset) {
+                    ++i;
+                }
+                if (offset < 0) {
+                    i = right.size;
+                    break;
+                }
+                if (i < right.size && right.offsets[i] == offset) {
+                    // same position, so the rest of right is the same too
+                    break;
+                }
+                left.add(offset, finder.getMatchLength());
+                offset = finder.find(_src, _target, offset + finder.getMatchLength(), rightEnd,
+                        _isCaseSensitive, _isWholeWord);
+            }
+        }
+        for (; i < right.size; ++i) {
+            left.add(right.offsets[i], right.lengths[i]);
+        }
+        return left;
+    }
+
+    private class ChunkTask extends RecursiveTask<Matches> {
+        private static final long serialVersionUID = 1L;
+        private final int _start;
+        private final int _end;
+
+        ChunkTask(int start, int end) {
+            _start = start;
+            _end = end;
+        }
+
+        @Override
+        protected Matches compute() {
+            if (_isCancelled) {
+                return new Matches();
+            }
+            if (_end - _start <= CHUNK_SIZE) {
+                Matches found = scan(newStrategy(), _start, _end, new Matches());
+                _unitsDone.addAndGet(_end - _start);
+                return found;
+            }
+
+            int middle = _start + (_end - _start) / 2;
+            ChunkTask right = new ChunkTask(middle, _end);
+            right.fork();
+            Matches left = new ChunkTask(_start, middle).compute();
+            return merge(left, right.join(), _end);
+        }
+    }
+
+    /**
+     * Growable pair of int arrays
+     */
+    private static class Matches {
+        int[] offsets = new int[16];
+        int[] lengths = new int[16];
+        int size = 0;
+
+        void add(int offset, int length) {
+            if (size == offsets.length) {
+                offsets = Arrays.copyOf(offsets, size * 2);
+                lengths = Arrays.copyOf(lengths, size * 2);
+            }
+            offsets[size] = offset;
+            lengths[size] = length;
+            ++size;
+        }
+
+        int end(int i) {
+            return offsets[i] + lengths[i];
+        }
+    }
+}
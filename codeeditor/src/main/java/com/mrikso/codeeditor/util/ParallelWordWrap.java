@@ -0,0 +1,278 @@
+/*
+ * Copyright (c) 2013 Tah Wei Hoon.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Apache License Version 2.0,
+ * with full text available at http://www.apache.org/licenses/LICENSE-2.0.html
+ *
+ * This software is provided "as is". Use at your own risk.
+ */
+package com.mrikso.codeeditor.util;
+
+import com.mrikso.codeeditor.lang.Language;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Word wraps a whole document in parallel.
+ *
+ * Lines are wrapped independently of each other, so the document is split
+ * at line breaks into chunks that are wrapped on a fork/join pool, and the
+ * rows of the chunks are joined in order. Each chunk copies its text out of
+ * the document with getChars(), so the document can be used while the rows
+ * are computed. If it is edited or analyzed again in the meantime, apply()
+ * drops the rows.
+ *
+ * start() runs the wrap on a background thread shared by all instances, one
+ * wrap at a time. Chunks are wrapped a slice of lines at a time, so a
+ * cancelled wrap stops within a slice.
+ *
+ * The chunks are measured from several threads at once, with metrics that
+ * must allow that and must not change while the rows are computed, such
+ * as those returned by LayoutEngine.snapshot().
+ */
+public class ParallelWordWrap {
+    private final static int CHUNK_SIZE = 256 * 1024;
+    /**
+     * Chars read at a time while looking for the end of a line
+     */
+    private final static int SCAN_SIZE = 4 * 1024;
+    /**
+     * Chars of a chunk wrapped between checks for cancel()
+     */
+    private final static int SLICE_SIZE = 16 * 1024;
+    private static ForkJoinPool _pool = null;
+    private static ExecutorService _executor = null;
+
+    private final Document _doc;
+    private final int _version;
+    private final int _wrapVersion;
+    private final int _length;
+    private final Document.TextFieldMetrics _metrics;
+    private volatile boolean _isCancelled = false;
+
+    private RowTable[] _chunkRows;
+    private volatile boolean _isDone = false;
+    private volatile boolean _isFinished = false;
+
+    /**
+     * Must be called on the thread that edits src, after the word wrap
+     * of src was analyzed with the same settings as metrics
+     *
+     * @param metrics Thread-safe metrics that never change
+     */
+    public ParallelWordWrap(DocumentProvider src, Document.TextFieldMetrics metrics) {
+        _doc = src.getDocument();
+        synchronized (_doc) {
+            _version = _doc.getVersion();
+            _wrapVersion = _doc.getWrapVersion();
+            _length = _doc.getTextLength();
+        }
+        _metrics = metrics;
+    }
+
+    private static synchronized ForkJoinPool getPool() {
+        if (_pool == null) {
+            _pool = new ForkJoinPool();
+        }
+        return _pool;
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (_executor == null) {
+            _executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "ParallelWordWrap");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return _executor;
+    }
+
+    /**
+     * Calls run() on the background thread shared by all instances, and then
+     * onDone on that thread, whether run() succeeded or not
+     */
+    public void start(final Runnable onDone) {
+        getExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                if (_isCancelled) {
+                    _isFinished = true;
+                } else {
+                    ParallelWordWrap.this.run();
+                }
+                onDone.run();
+            }
+        });
+    }
+
+    /**
+     * Computes the rows. Blocks until done; can be called from any thread.
+     *
+     * @return False if cancelled or the document changed while running
+     */
+    public boolean run() {
+        int chunkCount = (_length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        _chunkRows = new RowTable[chunkCount];
+        try {
+            getPool().invoke(new ChunkTask(0, chunkCount));
+            _isDone = !_isCancelled && _doc.getVersion() == _version;
+        } catch (RuntimeException e) {
+            // the text changed under a chunk while it was read
+            _isDone = false;
+        }
+        _isFinished = true;
+        return _isDone;
+    }
+
+    /**
+     * Whether run() has returned, or start() found it cancelled
+     */
+    public boolean isFinished() {
+        return _isFinished;
+    }
+
+    /**
+     * Whether the document was not edited since this object was created
+     */
+    public boolean isForCurrentText() {
+        return _doc.getVersion() == _version;
+    }
+
+    /**
+     * Replaces the rows of the document with the ones computed by run().
+     * Must be called on the thread that edits the document.
+     *
+     * @return False if run() failed, or the document was edited or its word
+     * wrap analyzed again since this object was created
+     */
+    public boolean apply() {
+        if (!_isDone) {
+            return false;
+        }
+        RowTable rows = new RowTable();
+        for (int i = 0; i < _chunkRows.length; ++i) {
+            RowTable chunk = _chunkRows[i];
+            if (chunk == null) {
+                continue;
+            }
+            // row 0 of the chunk is the last row so far
+            for (int row = 1; row < chunk.size(); ++row) {
+                rows.insert(rows.size(), chunk.get(row));
+            }
+        }
+        return _doc.setRowTable(rows, _version, _wrapVersion);
+    }
+
+    /**
+     * Whether the word wrap of the document was not analyzed again since
+     * this object was created. Edits to the text do not count.
+     */
+    public boolean isForCurrentWordWrap() {
+        return _doc.getWrapVersion() == _wrapVersion;
+    }
+
+    /**
+     * Makes run() return as soon as possible. Can be called from any thread.
+     */
+    public void cancel() {
+        _isCancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return _isCancelled;
+    }
+
+    /**
+     * Wraps the lines starting in [i * CHUNK_SIZE, (i + 1) * CHUNK_SIZE).
+     * Row 0 of the result starts the first of these lines, and is followed
+     * by the rows after it up to and including the start of the next line
+     * after the chunk, if any.
+     */
+    private void wrapChunk(int i) {
+        int start = i * CHUNK_SIZE;
+        int end = Math.min(start + CHUNK_SIZE, _length);
+        int lineStart = (start == 0) ? 0 : nextLineStart(start - 1);
+        if (lineStart >= end) {
+            // inside a line started by an earlier chunk
+            return;
+        }
+        int lineEnd = (end == _length) ? _length : nextLineStart(end - 1);
+
+        char[] text = new char[lineEnd - lineStart];
+        _doc.getChars(lineStart, lineEnd, text, 0);
+        RowTable rows = new RowTable();
+        int rowIndex = 1;
+        int sliceStart = 0;
+        while (sliceStart < text.length) {
+            if (_isCancelled) {
+                return;
+            }
+            // slices end after a line break, where a row starts
+            int sliceEnd = Math.min(sliceStart + SLICE_SIZE, text.length);
+            while (sliceEnd < text.length && text[sliceEnd - 1] != Language.NEWLINE) {
+                ++sliceEnd;
+            }
+            rowIndex = Document.wrapRows(text, text.length, text.length, lineStart,
+                    lineStart + sliceStart, lineStart + sliceEnd, _metrics, rows, rowIndex);
+            sliceStart = sliceEnd;
+        }
+        _chunkRows[i] = rows;
+    }
+
+    /**
+     * @return The offset after the first line break at or after offset, or
+     * the length of the document if there is none
+     */
+    private int nextLineStart(int offset) {
+        char[] buffer = new char[SCAN_SIZE];
+        while (offset < _length && !_isCancelled) {
+            int count = Math.min(SCAN_SIZE, _length - offset);
+            _doc.getChars(offset, offset + count, buffer, 0);
+            for (int j = 0; j < count; ++j) {
+                if (buffer[j] == Language.NEWLINE) {
+                    return offset + j + 1;
+                }
+            }
+            offset += count;
+        }
+        return _length;
+    }
+
+    private class ChunkTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final int _from;
+        private final int _to;
+
+        /**
+         * Wraps chunks from (inclusive) to to (exclusive)
+         */
+        ChunkTask(int from, int to) {
+            _from = from;
+            _to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (_isCancelled) {
+                return;
+            }
+            if (_to - _from <= 1) {
+                if (_from < _to) {
+                    wrapChunk(_from);
+                }
+                return;
+            }
+
+            int middle = _from + (_to - _from) / 2;
+            invokeAll(new ChunkTask(_from, middle), new ChunkTask(middle, _to));
+        }
+    }
+}
@@ -36,9 +36,12 @@ public interface ProgressSource {
 	static final public int FIND_BACKWARDS = 8;
 	static final public int REPLACE_ALL = 16;
 	static final public int ANALYZE_TEXT = 32;
+	static final public int FIND_ALL = 64;
+	static final public int FIND_IN_FILES = 128;
 	
 	/* Error codes */
 	static final public int ERROR_UNKNOWN = 0;
 	static final public int ERROR_OUT_OF_MEMORY = 1;
 	static final public int ERROR_INDEX_OUT_OF_RANGE = 2;
+	static final public int ERROR_INVALID_PATTERN = 3;
 }
@@ -0,0 +1,446 @@
+/*
+ * Copyright (c) 2013 Tah Wei Hoon.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Apache License Version 2.0,
+ * with full text available at http://www.apache.org/licenses/LICENSE-2.0.html
+ *
+ * This software is provided "as is". Use at your own risk.
+ */
+package com.mrikso.codeeditor.util;
+
+import com.mrikso.codeeditor.lang.Language;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Vector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Searches every file under a directory, like grep -r.
+ *
+ * Files are memory-mapped, decoded and searched with the same SearchStrategy
+ * as FindThread, on a pool of worker threads. Matches are sent to observers
+ * as they are found: onComplete(FIND_IN_FILES, FileResults) is called once or
+ * more for each file with matches, then onComplete(FIND_IN_FILES, Summary)
+ * once at the end. If the search is stopped with forceStop(), onCancel() is
+ * called instead of the final onComplete(), and onError() if the pattern is
+ * not a valid regex. Observers are called on the search thread.
+ *
+ * Results found but not yet sent to observers are limited to about
+ * maxPendingChars chars of previews. Workers wait when the limit is reached,
+ * so a slow observer cannot make the search run out of memory.
+ *
+ * A search should not be reused after it has completed. Create a new one for
+ * another search.
+ */
+public class ProjectSearch extends Thread implements ProgressSource {
+    private final static int MAX_PROGRESS = 100;
+    private final static int MAX_PREVIEW_LENGTH = 200;
+    /**
+     * Rough memory cost of a Match without its preview, in chars
+     */
+    private final static int MATCH_OVERHEAD = 32;
+    /**
+     * Put in the result queue after the last batch of a file
+     */
+    private final static Object FILE_DONE = new Object();
+
+    private final File _root;
+    private final FileFilter _filter;
+    private final String _searchText;
+    private final boolean _isCaseSensitive;
+    private final boolean _isWholeWord;
+    private final boolean _isRegex;
+    private int _threadCount = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+    private int _maxPendingChars = 1024 * 1024;
+    private long _maxFileSize = 16 * 1024 * 1024;
+    private Charset _charset = Charset.forName("UTF-8");
+
+    private final Vector<ProgressObserver> _progressObservers = new Vector<ProgressObserver>();
+    private final LinkedBlockingQueue<Object> _results = new LinkedBlockingQueue<Object>();
+    private Semaphore _pendingChars;
+    private final AtomicLong _bytesDone = new AtomicLong(0);
+    private long _totalBytes = 0;
+    private volatile boolean _isStopped = false;
+    private volatile boolean _isDone = false;
+
+    /**
+     * @param filter Files to search, or null to search all files
+     */
+    public ProjectSearch(File root, FileFilter filter, String searchText,
+                         boolean isCaseSensitive, boolean isWholeWord, boolean isRegex) {
+        _root = root;
+        _filter = filter;
+        _searchText = searchText;
+        _isCaseSensitive = isCaseSensitive;
+        _isWholeWord = isWholeWord;
+        _isRegex = isRegex;
+    }
+
+    /**
+     * @return A filter that accepts files with any of the given extensions,
+     * such as ".smali"
+     */
+    public static FileFilter extensionFilter(final String... extensions) {
+        return new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                for (String extension : extensions) {
+                    if (file.getName().endsWith(extension)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Sets the number of files searched at the same time
+     */
+    public void setThreadCount(int threadCount) {
+        _threadCount = Math.max(1, threadCount);
+    }
+
+    /**
+     * Sets how many chars of results may wait to be sent to observers
+     */
+    public void setMaxPendingChars(int maxPendingChars) {
+        _maxPendingChars = Math.max(MAX_PREVIEW_LENGTH + MATCH_OVERHEAD, maxPendingChars);
+    }
+
+    /**
+     * Files larger than this are skipped
+     */
+    public void setMaxFileSize(long maxFileSize) {
+        _maxFileSize = maxFileSize;
+    }
+
+    public void setCharset(Charset charset) {
+        _charset = charset;
+    }
+
+    @Override
+    public void run() {
+        if (_isRegex) {
+            try {
+                Pattern.compile(_searchText);
+            } catch (PatternSyntaxException e) {
+                notifyError(ProgressSource.ERROR_INVALID_PATTERN, e.getMessage());
+                return;
+            }
+        }
+        _pendingChars = new Semaphore(_maxPendingChars);
+        Summary summary = new Summary();
+        ArrayList<File> files = new ArrayList<File>();
+        collectFiles(_root, files, new HashSet<String>());
+        for (File file : files) {
+            _totalBytes += file.length();
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(_threadCount);
+        try {
+            searchFiles(files, pool, summary);
+        } catch (InterruptedException e) {
+            _isStopped = true;
+        } finally {
+            // interrupts workers waiting for room in the queue
+            pool.shutdownNow();
+        }
+
+        if (_isStopped) {
+            notifyCancel();
+        } else {
+            notifyComplete(summary);
+        }
+    }
+
+    /**
+     * Hands files to the pool and sends the results to observers. At most
+     * 2 files per thread are handed out but not finished at any time.
+     */
+    private void searchFiles(ArrayList<File> files, ExecutorService pool, Summary summary)
+            throws InterruptedException {
+        final int maxQueued = 2 * _threadCount;
+        int next = 0;
+        int finished = 0;
+        while (finished < files.size() && !_isStopped) {
+            while (next < files.size() && next - finished < maxQueued) {
+                pool.execute(new FileTask(files.get(next++), summary));
+            }
+
+            Object result = _results.poll(100, TimeUnit.MILLISECONDS);
+            if (result == FILE_DONE) {
+                ++finished;
+            } else if (result != null) {
+                FileResults fileResults = (FileResults) result;
+                notifyComplete(fileResults);
+                _pendingChars.release(fileResults.cost);
+            }
+        }
+    }
+
+    /**
+     * @param visited Canonical paths of the directories collected so far,
+     *                so that a symbolic link to a parent is not followed
+     *                round and round
+     */
+    private void collectFiles(File dir, ArrayList<File> files, HashSet<String> visited) {
+        try {
+            if (!visited.add(dir.getCanonicalPath())) {
+                return;
+            }
+        } catch (IOException e) {
+            return;
+        }
+        File[] children = dir.listFiles();
+        if (children == null || _isStopped) {
+            return;
+        }
+        for (File child : children) {
+            if (child.isDirectory()) {
+                collectFiles(child, files, visited);
+            } else if (_filter == null || _filter.accept(child)) {
+                files.add(child);
+            }
+        }
+    }
+
+    private class FileTask implements Runnable {
+        private final File _file;
+        private final Summary _summary;
+
+        FileTask(File file, Summary summary) {
+            _file = file;
+            _summary = summary;
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (!_isStopped) {
+                    search();
+                }
+            } catch (IOException e) {
+                _summary.skip();
+            } catch (InterruptedException e) {
+                // stopped
+            } finally {
+                _bytesDone.addAndGet(_file.length());
+                _results.offer(FILE_DONE);
+            }
+        }
+
+        private void search() throws IOException, InterruptedException {
+            if (_file.length() > _maxFileSize) {
+                _summary.skip();
+                return;
+            }
+            DocumentProvider src = read();
+            SearchStrategy finder = _isRegex ? new RegexSearchStrategy() : new HorspoolSearchStrategy();
+            final int batchCost = _maxPendingChars / 8;
+
+            FileResults batch = new FileResults(_file);
+            int offset = finder.find(src, _searchText, 0, src.docLength(), _isCaseSensitive, _isWholeWord);
+            while (offset >= 0 && !_isStopped) {
+                batch.add(newMatch(src, offset, finder.getMatchLength()));
+                if (batch.cost >= batchCost) {
+                    publish(batch);
+                    batch = new FileResults(_file);
+                }
+                offset = finder.find(src, _searchText, offset + finder.getMatchLength(), src.docLength(),
+                        _isCaseSensitive, _isWholeWord);
+            }
+            if (!batch.matches.isEmpty()) {
+                publish(batch);
+            }
+            _summary.searched();
+        }
+
+        private void publish(FileResults batch) throws InterruptedException {
+            // waits while too many results are still to be sent
+            _pendingChars.acquire(batch.cost);
+            _summary.add(batch);
+            _results.offer(batch);
+        }
+
+        private DocumentProvider read() throws IOException {
+            FileInputStream in = new FileInputStream(_file);
+            CharBuffer text;
+            try {
+                FileChannel channel = in.getChannel();
+                MappedByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                text = _charset.newDecoder()
+                        .onMalformedInput(CodingErrorAction.REPLACE)
+                        .onUnmappableCharacter(CodingErrorAction.REPLACE)
+                        .decode(bytes);
+            } finally {
+                in.close();
+            }
+
+            int length = text.remaining();
+            char[] contents = new char[TextBuffer.memoryNeeded(length)];
+            text.get(contents, 0, length);
+            int lineCount = 1;
+            for (int i = 0; i < length; ++i) {
+                if (contents[i] == '\n') {
+                    ++lineCount;
+                }
+            }
+            // never word wrapped, so it needs no metrics
+            Document doc = new Document(null);
+            doc.setBuffer(contents, length, lineCount);
+            return new DocumentProvider(doc);
+        }
+
+        private Match newMatch(DocumentProvider src, int offset, int length) {
+            int line = src.findLineNumber(offset);
+            int lineStart = src.getLineOffset(line);
+            CharSequence preview = src.subSequence(lineStart, MAX_PREVIEW_LENGTH);
+            int previewEnd = 0;
+            while (previewEnd < preview.length() && preview.charAt(previewEnd) != Language.NEWLINE
+                    && preview.charAt(previewEnd) != Language.EOF) {
+                ++previewEnd;
+            }
+            while (previewEnd > 0 && Character.isWhitespace(preview.charAt(previewEnd - 1))) {
+                --previewEnd;
+            }
+            return new Match(line, offset - lineStart, length,
+                    preview.subSequence(0, previewEnd).toString());
+        }
+    }
+
+    @Override
+    public final int getMin() {
+        return 0;
+    }
+
+    @Override
+    public final int getMax() {
+        return MAX_PROGRESS;
+    }
+
+    /**
+     * Progress by the size of the files searched
+     */
+    @Override
+    public final int getCurrent() {
+        long total = _totalBytes;
+        return (total == 0) ? 0 : (int) (_bytesDone.get() * MAX_PROGRESS / total);
+    }
+
+    @Override
+    public final void forceStop() {
+        _isStopped = true;
+    }
+
+    @Override
+    public final boolean isDone() {
+        return _isDone;
+    }
+
+    @Override
+    synchronized public final void registerObserver(ProgressObserver po) {
+        _progressObservers.addElement(po);
+    }
+
+    @Override
+    synchronized public final void removeObservers() {
+        _progressObservers.clear();
+    }
+
+    synchronized protected void notifyComplete(Object result) {
+        if (result instanceof Summary) {
+            _isDone = true;
+        }
+        for (ProgressObserver po : _progressObservers) {
+            po.onComplete(ProgressSource.FIND_IN_FILES, result);
+        }
+    }
+
+    synchronized protected void notifyError(int errorCode, String message) {
+        _isDone = true;
+        for (ProgressObserver po : _progressObservers) {
+            po.onError(ProgressSource.FIND_IN_FILES, errorCode, message);
+        }
+    }
+
+    synchronized protected void notifyCancel() {
+        _isDone = true;
+        for (ProgressObserver po : _progressObservers) {
+            po.onCancel(ProgressSource.FIND_IN_FILES);
+        }
+    }
+
+    /**
+     * A match in a file. Lines and columns are counted from 0.
+     */
+    public static class Match {
+        public final int line;
+        public final int column;
+        public final int length;
+        /** The line of the match, up to MAX_PREVIEW_LENGTH chars */
+        public final String preview;
+
+        Match(int line, int column, int length, String preview) {
+            this.line = line;
+            this.column = column;
+            this.length = length;
+            this.preview = preview;
+        }
+    }
+
+    /**
+     * Some of the matches in a file, in the order they occur
+     */
+    public static class FileResults {
+        public final File file;
+        public final ArrayList<Match> matches = new ArrayList<Match>();
+        /** Memory held, in chars */
+        int cost = 0;
+
+        FileResults(File file) {
+            this.file = file;
+        }
+
+        void add(Match match) {
+            matches.add(match);
+            cost += MATCH_OVERHEAD + match.preview.length();
+        }
+    }
+
+    public static class Summary {
+        public int filesSearched = 0;
+        /** Files that were too large or could not be read */
+        public int filesSkipped = 0;
+        public int matchCount = 0;
+
+        synchronized void searched() {
+            ++filesSearched;
+        }
+
+        synchronized void skip() {
+            ++filesSkipped;
+        }
+
+        synchronized void add(FileResults batch) {
+            matchCount += batch.matches.size();
+        }
+    }
+}
@@ -0,0 +1,459 @@
+/*
+ * Copyright (c) 2013 Tah Wei Hoon.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Apache License Version 2.0,
+ * with full text available at http://www.apache.org/licenses/LICENSE-2.0.html
+ *
+ * This software is provided "as is". Use at your own risk.
+ */
+package com.mrikso.codeeditor.util;
+
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Finds text matching a java.util.regex pattern.
+ *
+ * Matching runs over DocumentProvider.asCharSequence(), so the document is
+ * never copied into a String. The document is searched in windows of
+ * WINDOW_SIZE chars, so a pattern like ".*" cannot make one find walk the
+ * whole document. A match may extend up to MAX_MATCH_OVERHANG chars past the
+ * window it starts in; longer matches are cut short at that point.
+ *
+ * Replacement text may refer to groups of the match with $n; \ escapes the
+ * next char. This is the syntax of Matcher.appendReplacement(), except that
+ * named references like ${name} are rejected, as Android only supports
+ * named groups from API level 26 on.
+ *
+ * If the document has a TrigramIndex, patterns that match a plain string
+ * are only searched for in the ranges the index lets through.
+ *
+ * An invalid pattern throws java.util.regex.PatternSyntaxException.
+ *
+ * The matcher reads the document through a view that checks for cancel()
+ * every CANCEL_CHECK_INTERVAL chars, so that a pattern which backtracks a
+ * lot inside one window can still be stopped.
+ *
+ * The view is read without locking the document, which may be edited on
+ * another thread meanwhile. The version of the document is checked after
+ * every window and before a match is returned; if it changed, the search
+ * starts over on the new text.
+ */
+public class RegexSearchStrategy extends LinearSearchStrategy {
+    private final static int WINDOW_SIZE = 64 * 1024;
+    private final static int MAX_MATCH_OVERHANG = 4 * 1024;
+    private final static int CACHE_SIZE = 16;
+    private final static int CANCEL_CHECK_INTERVAL = 64 * 1024;
+
+    /**
+     * Compiled patterns, keyed by flags and pattern, least recently used first
+     */
+    private final static LinkedHashMap<String, Pattern> _patternCache =
+            new LinkedHashMap<String, Pattern>(CACHE_SIZE, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Pattern> eldest) {
+                    return size() > CACHE_SIZE;
+                }
+            };
+
+    @Override
+    public int find(DocumentProvider src, String target, int start, int end,
+                    boolean isCaseSensitive, boolean isWholeWord) {
+        if (target.length() == 0) {
+            return -1;
+        }
+        while (true) {
+            try {
+                return findOnce(src, target, start, end, isCaseSensitive, isWholeWord);
+            } catch (ConcurrentModificationException e) {
+                // the text changed while it was read; search it again, in
+                // the range that is still there
+                end = Math.min(end, src.docLength());
+            }
+        }
+    }
+
+    private int findOnce(DocumentProvider src, String target, int start, int end,
+                         boolean isCaseSensitive, boolean isWholeWord) {
+        int version = src.getVersion();
+        CharSequence text = src.asCharSequence();
+        if (start < 0) {
+            TextWarriorException.fail("TextBuffer.find: Invalid start position");
+            start = 0;
+        }
+        end = Math.min(end, text.length());
+
+        Matcher matcher = newMatcher(text, target, isCaseSensitive, isWholeWord);
+        int[] ranges = candidates(src, target, start, end);
+        try {
+            if (ranges == null) {
+                return findIn(src, version, matcher, text, start, end);
+            }
+            int searched = start;
+            for (int r = 0; r < ranges.length; r += 2) {
+                _unitsDone += ranges[r] - searched; // ruled out by the index
+                int found = findIn(src, version, matcher, text, ranges[r], ranges[r + 1]);
+                if (found >= 0) {
+                    return found;
+                }
+                searched = ranges[r + 1];
+            }
+            _unitsDone += Math.max(end - searched, 0);
+            return -1;
+        } catch (CancellationException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Finds the first match starting in [start, end)
+     */
+    private int findIn(DocumentProvider src, int version, Matcher matcher,
+                       CharSequence text, int start, int end) {
+        for (int windowStart = start; windowStart < end && !_isCancelled; windowStart += WINDOW_SIZE) {
+            int windowEnd = Math.min(end, windowStart + WINDOW_SIZE);
+            matcher.region(windowStart, Math.min(text.length(), windowEnd + MAX_MATCH_OVERHANG));
+            while (matcher.find() && matcher.start() < windowEnd) {
+                if (matcher.end() > matcher.start()) {
+                    checkUnchanged(src, version);
+                    _unitsDone += matcher.start() - windowStart;
+                    _matchLength = matcher.end() - matcher.start();
+                    return matcher.start();
+                }
+            }
+            checkUnchanged(src, version);
+            _unitsDone += windowEnd - windowStart;
+        }
+
+        return -1;
+    }
+
+    @Override
+    public int findBackwards(DocumentProvider src, String target, int start, int end,
+                             boolean isCaseSensitive, boolean isWholeWord) {
+        if (target.length() == 0) {
+            return -1;
+        }
+        while (true) {
+            try {
+                return findBackwardsOnce(src, target, start, end, isCaseSensitive, isWholeWord);
+            } catch (ConcurrentModificationException e) {
+                // the text changed while it was read; search it again, in
+                // the range that is still there
+                start = Math.min(start, src.docLength() - 1);
+            }
+        }
+    }
+
+    private int findBackwardsOnce(DocumentProvider src, String target, int start, int end,
+                                  boolean isCaseSensitive, boolean isWholeWord) {
+        int version = src.getVersion();
+        CharSequence text = src.asCharSequence();
+        if (end < -1) {
+            TextWarriorException.fail("Invalid end position given to TextBuffer.find");
+            end = -1;
+        }
+
+        Matcher matcher = newMatcher(text, target, isCaseSensitive, isWholeWord);
+        start = Math.min(start, text.length() - 1);
+        int[] ranges = candidates(src, target, end + 1, start + 1);
+        try {
+            if (ranges == null) {
+                return findBackwardsIn(src, version, matcher, text, start, end);
+            }
+            for (int r = ranges.length - 2; r >= 0; r -= 2) {
+                int found = findBackwardsIn(src, version, matcher, text, ranges[r + 1] - 1, ranges[r] - 1);
+                if (found >= 0) {
+                    return found;
+                }
+            }
+            return -1;
+        } catch (CancellationException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Finds the last match starting in (end, start]
+     */
+    private int findBackwardsIn(DocumentProvider src, int version, Matcher matcher,
+                                CharSequence text, int start, int end) {
+        // match starts are in (end, offset]
+        int offset = start;
+        while (offset > end && !_isCancelled) {
+            int windowStart = Math.max(end + 1, offset - WINDOW_SIZE + 1);
+            int regionEnd = Math.min(text.length(), offset + 1 + MAX_MATCH_OVERHANG);
+
+            // the last match of the window is the closest one. Matches may
+            // overlap, so look for the next one right after each match start
+            int found = -1;
+            int position = windowStart;
+            while (position <= offset) {
+                matcher.region(position, regionEnd);
+                if (!matcher.find() || matcher.start() > offset) {
+                    break;
+                }
+                if (matcher.end() > matcher.start()) {
+                    found = matcher.start();
+                    _matchLength = matcher.end() - matcher.start();
+                }
+                position = matcher.start() + 1;
+            }
+            checkUnchanged(src, version);
+            _unitsDone += offset - (found >= 0 ? found : windowStart - 1);
+            if (found >= 0) {
+                return found;
+            }
+            offset = windowStart - 1;
+        }
+
+        return -1;
+    }
+
+    @Override
+    public Pair replaceAll(DocumentProvider src, String searchText,
+                           String replacementText, int mark,
+                           boolean isCaseSensitive, boolean isWholeWord) {
+        if (searchText.length() == 0) {
+            _unitsDone = 0;
+            return new Pair(0, mark);
+        }
+        while (true) {
+            try {
+                return replaceAllOnce(src, searchText, replacementText, mark,
+                        isCaseSensitive, isWholeWord);
+            } catch (ConcurrentModificationException e) {
+                // the text changed while it was read; search it again
+            }
+        }
+    }
+
+    private Pair replaceAllOnce(DocumentProvider src, String searchText,
+                                String replacementText, int mark,
+                                boolean isCaseSensitive, boolean isWholeWord) {
+        _unitsDone = 0;
+        // the view is only valid until the text is replaced, so collect
+        // every match with its expanded replacement first
+        int version = src.getVersion();
+        CharSequence text = src.asCharSequence();
+        Matcher matcher = newMatcher(text, searchText, isCaseSensitive, isWholeWord);
+        int[] offsets = new int[16];
+        int[] lengths = new int[16];
+        int[] replacementLengths = new int[16];
+        StringBuilder replacements = new StringBuilder();
+        int count = 0;
+        int anchor = mark;
+        try {
+            int offset = 0;
+            while (offset < text.length()) {
+                if (_isCancelled) {
+                    return null;
+                }
+                int windowEnd = Math.min(text.length(), offset + WINDOW_SIZE);
+                matcher.region(offset, Math.min(text.length(), windowEnd + MAX_MATCH_OVERHANG));
+                int next = windowEnd;
+                while (matcher.find() && matcher.start() < windowEnd) {
+                    if (matcher.end() > matcher.start()) {
+                        if (count == offsets.length) {
+                            offsets = Arrays.copyOf(offsets, count * 2);
+                            lengths = Arrays.copyOf(lengths, count * 2);
+                            replacementLengths = Arrays.copyOf(replacementLengths, count * 2);
+                        }
+                        String replacement = expand(matcher, replacementText);
+                        offsets[count] = matcher.start();
+                        lengths[count] = matcher.end() - matcher.start();
+                        replacementLengths[count] = replacement.length();
+                        replacements.append(replacement);
+                        if (matcher.start() < mark) {
+                            // adjust anchor because of differences in doc length
+                            // after word replacement
+                            anchor += replacement.length() - lengths[count];
+                        }
+                        ++count;
+                        next = Math.max(next, matcher.end());
+                    }
+                }
+                checkUnchanged(src, version);
+                _unitsDone += next - offset;
+                offset = next;
+            }
+        } catch (CancellationException e) {
+            return null;
+        }
+
+        char[] replacementChars = new char[replacements.length()];
+        replacements.getChars(0, replacements.length(), replacementChars, 0);
+        if (!src.replace(offsets, lengths, count, replacementChars, replacementLengths, version)) {
+            throw new ConcurrentModificationException();
+        }
+
+        return new Pair(count, Math.max(anchor, 0));
+    }
+
+    /**
+     * Uses the trigram index of the document only for patterns that match
+     * a plain string
+     */
+    @Override
+    protected int[] candidates(DocumentProvider src, String regex, int start, int end) {
+        String literal = literalOf(regex);
+        return (literal == null) ? null : super.candidates(src, literal, start, end);
+    }
+
+    /**
+     * The string matched by regex if it has no special constructs other
+     * than escaped punctuation, or null
+     */
+    private static String literalOf(String regex) {
+        if (regex.startsWith("\\Q") && regex.endsWith("\\E")
+                && regex.indexOf("\\E") == regex.length() - 2) {
+            // quoted by Pattern.quote()
+            return regex.substring(2, regex.length() - 2);
+        }
+        StringBuilder literal = new StringBuilder(regex.length());
+        for (int i = 0; i < regex.length(); ++i) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                if (++i == regex.length()) {
+                    return null;
+                }
+                c = regex.charAt(i);
+                if (Character.isLetterOrDigit(c)) {
+                    // a class like \d, an anchor like \b or a back reference
+                    return null;
+                }
+            } else if ("^$.|?*+()[]{}".indexOf(c) >= 0) {
+                return null;
+            }
+            literal.append(c);
+        }
+        return literal.toString();
+    }
+
+    /**
+     * Throws ConcurrentModificationException if src was edited since
+     * version, as the text read since then may be torn
+     */
+    private static void checkUnchanged(DocumentProvider src, int version) {
+        if (src.getVersion() != version) {
+            throw new ConcurrentModificationException();
+        }
+    }
+
+    private Matcher newMatcher(CharSequence text, String regex,
+                               boolean isCaseSensitive, boolean isWholeWord) {
+        int flags = Pattern.MULTILINE;
+        if (!isCaseSensitive) {
+            flags |= Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE;
+        }
+        if (isWholeWord) {
+            // same as isSandwichedByWhitespace()
+            regex = "(?<!\\S)(?:" + regex + ")(?!\\S)";
+        }
+        Matcher matcher = compile(regex, flags).matcher(new CancellableText(text));
+        // let lookarounds and anchors see past the search windows
+        matcher.useTransparentBounds(true);
+        matcher.useAnchoringBounds(false);
+        return matcher;
+    }
+
+    private static Pattern compile(String regex, int flags) {
+        String key = flags + "/" + regex;
+        synchronized (_patternCache) {
+            Pattern pattern = _patternCache.get(key);
+            if (pattern == null) {
+                pattern = Pattern.compile(regex, flags);
+                _patternCache.put(key, pattern);
+            }
+            return pattern;
+        }
+    }
+
+    /**
+     * Substitutes the group references in replacement with the text
+     * captured by the current match of matcher
+     */
+    private static String expand(Matcher matcher, String replacement) {
+        StringBuilder result = new StringBuilder(replacement.length());
+        int i = 0;
+        while (i < replacement.length()) {
+            char c = replacement.charAt(i++);
+            if (c == '\\' && i < replacement.length()) {
+                result.append(replacement.charAt(i++));
+            } else if (c == '$' && i < replacement.length()) {
+                if (replacement.charAt(i) == '{') {
+                    // Matcher.group(String) needs API level 26
+                    throw new IllegalArgumentException("Named group references are not supported");
+                }
+                // take as many digits as still name an existing group
+                int groupNumber = Character.digit(replacement.charAt(i), 10);
+                if (groupNumber < 0) {
+                    throw new IllegalArgumentException("Illegal group reference");
+                }
+                if (groupNumber > matcher.groupCount()) {
+                    throw new IllegalArgumentException("No group " + groupNumber);
+                }
+                ++i;
+                while (i < replacement.length()) {
+                    int digit = Character.digit(replacement.charAt(i), 10);
+                    if (digit < 0 || groupNumber * 10 + digit > matcher.groupCount()) {
+                        break;
+                    }
+                    groupNumber = groupNumber * 10 + digit;
+                    ++i;
+                }
+                String group = matcher.group(groupNumber);
+                if (group != null) {
+                    result.append(group);
+                }
+            } else {
+                result.append(c);
+            }
+        }
+        return result.toString();
+    }
+
+    /**
+     * View of the document for the matcher. Throws CancellationException
+     * from charAt() once the search has been cancelled.
+     */
+    private class CancellableText implements CharSequence {
+        private final CharSequence _text;
+        private int _reads = 0;
+
+        CancellableText(CharSequence text) {
+            _text = text;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (++_reads == CANCEL_CHECK_INTERVAL) {
+                _reads = 0;
+                if (_isCancelled) {
+                    throw new CancellationException();
+                }
+            }
+            return _text.charAt(index);
+        }
+
+        @Override
+        public int length() {
+            return _text.length();
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return _text.subSequence(start, end);
+        }
+
+        @Override
+        public String toString() {
+            return _text.toString();
+        }
+    }
+}
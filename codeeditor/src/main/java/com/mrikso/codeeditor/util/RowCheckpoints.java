@@ -0,0 +1,284 @@
+/*
+ * Copyright (c) 2013 Tah Wei Hoon.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Apache License Version 2.0,
+ * with full text available at http://www.apache.org/licenses/LICENSE-2.0.html
+ *
+ * This software is provided "as is". Use at your own risk.
+ */
+package com.mrikso.codeeditor.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Checkpoints of the x-coordinate every CHECKPOINT_INTERVAL chars or so
+ * along long rows, so that drawing a row, or finding a char on it, only
+ * measures the chars near the columns needed instead of every char from the
+ * start of the row.
+ *
+ * The checkpoints of a row are measured a block of CHECKPOINT_INTERVAL chars
+ * at a time by a Measurer, only as far along the row as has been asked for.
+ * A block never ends between the chars of a surrogate pair, which are
+ * measured together. The rows used last are kept, up to MAX_ROWS of them.
+ * X-coordinates are from the start of the row.
+ *
+ * Edits to the document are received through TextBuffer.EditListener. The
+ * checkpoints of a row after an edit in it are dropped, and rows after an
+ * edit are moved by its length. The rows must be measured again with
+ * invalidateAll() when the font or the layout settings change.
+ *
+ * Not thread-safe. Use it, and pass the edits of the document to it, on
+ * one thread.
+ */
+public class RowCheckpoints implements TextBuffer.EditListener {
+    public final static int CHECKPOINT_INTERVAL = 256;
+    /**
+     * Rows shorter than this are cheap enough to measure from the start
+     */
+    private final static int MIN_ROW_LENGTH = 4 * CHECKPOINT_INTERVAL;
+    private final static int MAX_ROWS = 64;
+
+    private final Document _doc;
+    private final Measurer _measurer;
+    private final char[] _block = new char[CHECKPOINT_INTERVAL];
+    /**
+     * Checkpoints of each row by the offset of its first char, least
+     * recently used first
+     */
+    private LinkedHashMap<Integer, Checkpoints> _rows = newRowMap();
+
+    public RowCheckpoints(DocumentProvider src, Measurer measurer) {
+        _doc = src.getDocument();
+        _measurer = measurer;
+    }
+
+    private static LinkedHashMap<Integer, Checkpoints> newRowMap() {
+        return new LinkedHashMap<Integer, Checkpoints>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Checkpoints> eldest) {
+                return size() > MAX_ROWS;
+            }
+        };
+    }
+
+    /**
+     * Whether a row of rowLength chars is long enough to be worth using
+     * checkpoints for
+     */
+    public static boolean isLongRow(int rowLength) {
+        return rowLength >= MIN_ROW_LENGTH;
+    }
+
+    public void invalidateAll() {
+        _rows.clear();
+    }
+
+    /**
+     * Finds the last checkpoint at or before index on the row of rowLength
+     * chars starting at rowOffset
+     *
+     * @return The index of the checkpoint on the row, and its x-coordinate
+     */
+    public Pair findByIndex(int rowOffset, int rowLength, int index) {
+        Checkpoints row = getRow(rowOffset);
+        index = Math.min(index, rowLength);
+        while (row.lastIndex() < index) {
+            measureBlock(rowOffset, rowLength, row);
+        }
+        int i = row.findLastAtOrBefore(index);
+        return new Pair(row._indices[i], row._xs[i]);
+    }
+
+    /**
+     * Finds the last checkpoint before x on the row of rowLength chars
+     * starting at rowOffset. The first char of the row whose right edge is
+     * at or after x is less than CHECKPOINT_INTERVAL chars after it, if
+     * there is such a char.
+     *
+     * @return The index of the checkpoint on the row, and its x-coordinate
+     */
+    public Pair findByX(int rowOffset, int rowLength, int x) {
+        Checkpoints row = getRow(rowOffset);
+        while (row.lastX() < x && row.lastIndex() < rowLength) {
+            measureBlock(rowOffset, rowLength, row);
+        }
+        int i = row.findLastBeforeX(x);
+        while (i > 0 && row._indices[i] > rowLength) {
+            // measured further while the row was longer
+            --i;
+        }
+        return new Pair(row._indices[i], row._xs[i]);
+    }
+
+    /**
+     * Measures about maxChars more chars of the row of rowLength chars
+     * starting at rowOffset, so that a long row can be measured a slice at
+     * a time
+     *
+     * @return The index of the last checkpoint on the row, which is
+     * rowLength once the whole row is measured, and its x-coordinate
+     */
+    public Pair measureMore(int rowOffset, int rowLength, int maxChars) {
+        Checkpoints row = getRow(rowOffset);
+        if (row.lastIndex() > rowLength) {
+            // measured further while the row was longer
+            row.truncate(rowLength);
+        }
+        int end = Math.min(row.lastIndex() + maxChars, rowLength);
+        while (row.lastIndex() < end) {
+            measureBlock(rowOffset, rowLength, row);
+        }
+        return new Pair(row.lastIndex(), row.lastX());
+    }
+
+    private Checkpoints getRow(int rowOffset) {
+        Checkpoints row = _rows.get(rowOffset);
+        if (row == null) {
+            row = new Checkpoints();
+            _rows.put(rowOffset, row);
+        }
+        return row;
+    }
+
+    private void measureBlock(int rowOffset, int rowLength, Checkpoints row) {
+        int start = row.lastIndex();
+        int end = Math.min(start + CHECKPOINT_INTERVAL, rowLength);
+        int length = end - start;
+        _doc.getChars(rowOffset + start, rowOffset + end, _block, 0);
+        if (end < rowLength && Character.isHighSurrogate(_block[length - 1])) {
+            // leave the pair to the next block
+            --length;
+        }
+        int x = _measurer.measure(_block, 0, length, row.lastX());
+        row.add(start + length, x);
+    }
+
+    @Override
+    public void onInsert(int charOffset, int length) {
+        if (_rows.isEmpty()) {
+            return;
+        }
+        LinkedHashMap<Integer, Checkpoints> rows = newRowMap();
+        for (Map.Entry<Integer, Checkpoints> entry : _rows.entrySet()) {
+            int rowOffset = entry.getKey();
+            Checkpoints row = entry.getValue();
+            if (charOffset < rowOffset) {
+                rows.put(rowOffset + length, row);
+            } else {
+                row.truncate(charOffset - rowOffset);
+                rows.put(rowOffset, row);
+            }
+        }
+        _rows = rows;
+    }
+
+    @Override
+    public void onDelete(int charOffset, int length) {
+        if (_rows.isEmpty()) {
+            return;
+        }
+        LinkedHashMap<Integer, Checkpoints> rows = newRowMap();
+        for (Map.Entry<Integer, Checkpoints> entry : _rows.entrySet()) {
+            int rowOffset = entry.getKey();
+            Checkpoints row = entry.getValue();
+            if (charOffset + length <= rowOffset) {
+                rows.put(rowOffset - length, row);
+            } else if (charOffset >= rowOffset) {
+                row.truncate(charOffset - rowOffset);
+                rows.put(rowOffset, row);
+            }
+            // else the first char of the row was deleted
+        }
+        _rows = rows;
+    }
+
+    @Override
+    public void onReset() {
+        invalidateAll();
+    }
+
+    /**
+     * Measures text for RowCheckpoints
+     */
+    public interface Measurer {
+        /**
+         * Measures the chars of text from start (inclusive) to end
+         * (exclusive) as they are drawn on a row, starting at x. The char
+         * before start is never the first char of a surrogate pair.
+         *
+         * @return The x-coordinate after the chars
+         */
+        public int measure(char[] text, int start, int end, int x);
+    }
+
+    /**
+     * The checkpoints of a row in ascending order, starting at the start
+     * of the row
+     */
+    private static class Checkpoints {
+        private int[] _indices = new int[16];
+        private int[] _xs = new int[16];
+        private int _count = 1;
+
+        int lastIndex() {
+            return _indices[_count - 1];
+        }
+
+        int lastX() {
+            return _xs[_count - 1];
+        }
+
+        void add(int index, int x) {
+            if (_count == _indices.length) {
+                int[] indices = new int[_count * 2];
+                int[] xs = new int[_count * 2];
+                System.arraycopy(_indices, 0, indices, 0, _count);
+                System.arraycopy(_xs, 0, xs, 0, _count);
+                _indices = indices;
+                _xs = xs;
+            }
+            _indices[_count] = index;
+            _xs[_count] = x;
+            ++_count;
+        }
+
+        /**
+         * Drops the checkpoints after index, whose chars before them changed
+         */
+        void truncate(int index) {
+            _count = findLastAtOrBefore(index) + 1;
+        }
+
+        int findLastAtOrBefore(int index) {
+            int low = 0;
+            int high = _count - 1;
+            while (low < high) {
+                int middle = (low + high + 1) >>> 1;
+                if (_indices[middle] <= index) {
+                    low = middle;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * The first checkpoint is returned if none is before x
+         */
+        int findLastBeforeX(int x) {
+            int low = 0;
+            int high = _count - 1;
+            while (low < high) {
+                int middle = (low + high + 1) >>> 1;
+                if (_xs[middle] < x) {
+                    low = middle;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            return low;
+        }
+    }
+}
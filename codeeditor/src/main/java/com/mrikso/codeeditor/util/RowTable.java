@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2013 Tah Wei Hoon.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Apache License Version 2.0,
+ * with full text available at http://www.apache.org/licenses/LICENSE-2.0.html
+ *
+ * This software is provided "as is". Use at your own risk.
+ */
+package com.mrikso.codeeditor.util;
+
+/**
+ * The char offset of every row of a Document, in ascending order.
+ *
+ * Offsets are kept in an int array with a gap, like the text of TextBuffer.
+ * Rows are inserted and removed at the gap, which is moved to the edited
+ * row first. Offsets after the gap are stored relative to _delta, so moving
+ * every row after an edit by the length of the edit only changes _delta.
+ * Edits near each other, as when typing, therefore cost about as much as
+ * the number of rows they change, however many rows follow them.
+ *
+ * A row can be marked as an estimate, for a row that was guessed instead
+ * of measured.
+ *
+ * Not thread-safe; Document synchronizes access to it.
+ */
+class RowTable {
+    private final static int MIN_CAPACITY = 16;
+
+    private int[] _offsets;
+    /**
+     * Whether the row with the same index in _offsets is an estimate
+     */
+    private boolean[] _isEstimate;
+    private int _estimateCount;
+    private int _gapStartIndex;
+    /**
+     * Index of the first offset after the gap
+     */
+    private int _gapEndIndex;
+    /**
+     * Added to the stored value of every offset after the gap
+     */
+    private int _delta;
+    /**
+     * Incremented whenever rows are inserted, removed or moved
+     */
+    private int _modCount = 0;
+
+    RowTable() {
+        reset();
+    }
+
+    /**
+     * Drops every row except the first one, which starts at offset 0
+     */
+    void reset() {
+        _offsets = new int[MIN_CAPACITY];
+        _isEstimate = new boolean[MIN_CAPACITY];
+        _estimateCount = 0;
+        _offsets[0] = 0;
+        _gapStartIndex = 1;
+        _gapEndIndex = _offsets.length;
+        _delta = 0;
+        ++_modCount;
+    }
+
+    int modCount() {
+        return _modCount;
+    }
+
+    int size() {
+        return _offsets.length - (_gapEndIndex - _gapStartIndex);
+    }
+
+    int get(int row) {
+        if (row < _gapStartIndex) {
+            return _offsets[row];
+        }
+        return _offsets[row + _gapEndIndex - _gapStartIndex] + _delta;
+    }
+
+    boolean isEstimate(int row) {
+        return _isEstimate[(row < _gapStartIndex) ? row : row + _gapEndIndex - _gapStartIndex];
+    }
+
+    void setEstimate(int row, boolean isEstimate) {
+        int i = (row < _gapStartIndex) ? row : row + _gapEndIndex - _gapStartIndex;
+        if (_isEstimate[i] != isEstimate) {
+            _isEstimate[i] = isEstimate;
+            _estimateCount += isEstimate ? 1 : -1;
+        }
+    }
+
+    /**
+     * @return The number of rows marked as estimates
+     */
+    int estimateCount() {
+        return _estimateCount;
+    }
+
+    /**
+     * Inserts a row starting at charOffset before row
+     */
+    void insert(int row, int charOffset) {
+        insert(row, charOffset, false);
+    }
+
+    void insert(int row, int charOffset, boolean isEstimate) {
+        moveGap(row);
+        if (_gapStartIndex == _gapEndIndex) {
+            grow();
+        }
+        _isEstimate[_gapStartIndex] = isEstimate;
+        _offsets[_gapStartIndex++] = charOffset;
+        if (isEstimate) {
+            ++_estimateCount;
+        }
+        ++_modCount;
+    }
+
+    /**
+     * Removes the rows from fromRow (inclusive) to toRow (exclusive)
+     */
+    void remove(int fromRow, int toRow) {
+        if (fromRow >= toRow) {
+            return;
+        }
+        moveGap(fromRow);
+        int end = _gapEndIndex + toRow - fromRow;
+        for (int i = _gapEndIndex; i < end; ++i) {
+            if (_isEstimate[i]) {
+                --_estimateCount;
+            }
+        }
+        _gapEndIndex = end;
+        ++_modCount;
+    }
+
+    /**
+     * Adds delta to the offsets of fromRow and every row after it
+     */
+    void shift(int fromRow, int delta) {
+        moveGap(fromRow);
+        _delta += delta;
+        ++_modCount;
+    }
+
+    /**
+     * @return The last row starting at or before charOffset
+     */
+    int find(int charOffset) {
+        int low = 0;
+        int high = size() - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (get(middle) <= charOffset) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Moves the gap to just before row. The offsets moved across the gap
+     * are converted between absolute and relative values.
+     */
+    private void moveGap(int row) {
+        if (row < _gapStartIndex) {
+            // the source may overlap the destination on its right
+            int count = _gapStartIndex - row;
+            int destination = _gapEndIndex - count;
+            for (int i = count - 1; i >= 0; --i) {
+                _offsets[destination + i] = _offsets[row + i] - _delta;
+            }
+            System.arraycopy(_isEstimate, row, _isEstimate, destination, count);
+            _gapStartIndex = row;
+            _gapEndIndex = destination;
+        } else if (row > _gapStartIndex) {
+            // the source may overlap the destination on its left
+            int count = row - _gapStartIndex;
+            for (int i = 0; i < count; ++i) {
+                _offsets[_gapStartIndex + i] = _offsets[_gapEndIndex + i] + _delta;
+            }
+            System.arraycopy(_isEstimate, _gapEndIndex, _isEstimate, _gapStartIndex, count);
+            _gapStartIndex += count;
+            _gapEndIndex += count;
+        }
+        if (_gapEndIndex == _offsets.length) {
+            // no relative offsets left
+            _delta = 0;
+        }
+    }
+
+    private void grow() {
+        int[] offsets = new int[Math.max(MIN_CAPACITY, _offsets.length * 2)];
+        boolean[] isEstimate = new boolean[offsets.length];
+        int afterGap = _offsets.length - _gapEndIndex;
+        System.arraycopy(_offsets, 0, offsets, 0, _gapStartIndex);
+        System.arraycopy(_offsets, _gapEndIndex, offsets, offsets.length - afterGap, afterGap);
+        System.arraycopy(_isEstimate, 0, isEstimate, 0, _gapStartIndex);
+        System.arraycopy(_isEstimate, _gapEndIndex, isEstimate, isEstimate.length - afterGap, afterGap);
+        _gapEndIndex = offsets.length - afterGap;
+        _offsets = offsets;
+        _isEstimate = isEstimate;
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2013 Tah Wei Hoon.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Apache License Version 2.0,
+ * with full text available at http://www.apache.org/licenses/LICENSE-2.0.html
+ *
+ * This software is provided "as is". Use at your own risk.
+ */
+package com.mrikso.codeeditor.util;
+
+/**
+ * Ranges of a document to highlight as search matches.
+ *
+ * The ranges are kept sorted and disjoint in two int arrays, so the first
+ * range in view is found with a binary search and the rest are read in
+ * order while painting, without searching the document again.
+ *
+ * Edits to the document are received through TextBuffer.EditListener. Ranges
+ * after an edit are shifted by its length. Ranges that an edit falls inside
+ * or removes text from are dropped, since they may no longer match.
+ *
+ * Not thread-safe. Use it, and pass the edits of the document to it, on
+ * one thread.
+ */
+public class SearchHighlights implements TextBuffer.EditListener {
+    private int[] _starts = new int[0];
+    private int[] _ends = new int[0];
+    private int _count = 0;
+
+    /**
+     * Replaces the highlighted ranges
+     *
+     * @param offsets Start offsets of the matches, in ascending order
+     * @param lengths lengths[i] is the length of the match at offsets[i]
+     */
+    public void setMatches(int[] offsets, int[] lengths) {
+        _starts = new int[offsets.length];
+        _ends = new int[offsets.length];
+        _count = 0;
+        for (int i = 0; i < offsets.length; ++i) {
+            add(offsets[i], offsets[i] + lengths[i]);
+        }
+    }
+
+    /**
+     * Replaces the highlighted ranges with matches of the same length
+     *
+     * @param offsets Start offsets of the matches, in ascending order
+     */
+    public void setMatches(int[] offsets, int length) {
+        _starts = new int[offsets.length];
+        _ends = new int[offsets.length];
+        _count = 0;
+        for (int offset : offsets) {
+            add(offset, offset + length);
+        }
+    }
+
+    /**
+     * Appends the range [start, end), joining it with the last range if
+     * they overlap
+     */
+    private void add(int start, int end) {
+        if (end <= start) {
+            return;
+        }
+        if (_count > 0 && start <= _ends[_count - 1]) {
+            _ends[_count - 1] = Math.max(_ends[_count - 1], end);
+            return;
+        }
+        _starts[_count] = start;
+        _ends[_count] = end;
+        ++_count;
+    }
+
+    public void clear() {
+        _starts = new int[0];
+        _ends = new int[0];
+        _count = 0;
+    }
+
+    public boolean isEmpty() {
+        return _count == 0;
+    }
+
+    public int size() {
+        return _count;
+    }
+
+    public int getStart(int i) {
+        return _starts[i];
+    }
+
+    /**
+     * @return The offset just after range i
+     */
+    public int getEnd(int i) {
+        return _ends[i];
+    }
+
+    /**
+     * @return The index of the first range that ends after charOffset,
+     * or size() if there is none
+     */
+    public int findFirstEndingAfter(int charOffset) {
+        int low = 0;
+        int high = _count;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (_ends[middle] <= charOffset) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    @Override
+    public void onInsert(int charOffset, int length) {
+        shift(charOffset, charOffset, length);
+    }
+
+    @Override
+    public void onDelete(int charOffset, int length) {
+        shift(charOffset, charOffset + length, -length);
+    }
+
+    @Override
+    public void onReset() {
+        clear();
+    }
+
+    /**
+     * Drops the ranges that [editStart, editEnd) touches the inside of and
+     * moves the ones after it by delta
+     */
+    private void shift(int editStart, int editEnd, int delta) {
+        int i = findFirstEndingAfter(editStart);
+        int kept = i;
+        for (; i < _count; ++i) {
+            if (_starts[i] >= editEnd) {
+                _starts[kept] = _starts[i] + delta;
+                _ends[kept] = _ends[i] + delta;
+                ++kept;
+            }
+        }
+        _count = kept;
+    }
+}
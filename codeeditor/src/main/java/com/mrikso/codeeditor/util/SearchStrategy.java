@@ -48,6 +48,8 @@ public interface SearchStrategy {
 	
 	/**
 	 * Replace all matches of searchText in src with replacementText.
+	 * The matches are replaced in one edit, and only if src did not change
+	 * while they were found; otherwise src is searched again.
 	 * 
 	 * @param mark Optional. A position in src that can be tracked for changes.
 	 * 		After replacements are made, the position may be shifted because of
@@ -57,6 +59,7 @@ public interface SearchStrategy {
 	 * 
 	 * @return Pair.first is the number of replacements made.
 	 * 		Pair.second is new position of mark after replacements are made.
+	 * 		null if stopped by cancel() before any change was made.
 	 */
 	public Pair replaceAll(DocumentProvider src, String searchText,
                            String replacementText, int mark,
@@ -64,11 +67,28 @@ public interface SearchStrategy {
 	
 	
 	/**
-	 * The number of characters that have been examined by the current find
-	 * operation. This method is not synchronized, and the value returned
-	 * may be outdated.
+	 * The length of the text found by the last successful find operation.
+	 * For literal searches, this is the length of the target.
+	 */
+	public int getMatchLength();
+
+	/**
+	 * The number of characters that have been examined by the find
+	 * operations of this strategy so far, forwards or backwards. It only
+	 * increases, except that replaceAll starts counting from 0 again.
+	 * This method is not synchronized, and the value returned may be
+	 * slightly outdated.
 	 * 
 	 * @return The number of characters searched so far
 	 */
 	public int getProgress();
+
+	/**
+	 * Stops the current and all later operations of this strategy as soon
+	 * as possible. A stopped find returns -1, and a replaceAll stopped before
+	 * it changes the document returns null. Can be called from any thread.
+	 */
+	public void cancel();
+
+	public boolean isCancelled();
 }
@@ -9,6 +9,7 @@
 package com.mrikso.codeeditor.util;
 
 import com.mrikso.codeeditor.lang.Language;
+import com.mrikso.codeeditor.lang.LanguageNonProg;
 
 import java.util.List;
 import java.util.Vector;
@@ -32,14 +33,26 @@ public class TextBuffer implements CharSequence
 	/** One past end of gap */
 	protected int _gapEndIndex;
 	protected int _lineCount;
+	/** Incremented on every change to the contents of the buffer */
+	private int _version = 0;
 	/** The number of times memory is allocated for the buffer */
 	private int _allocMultiplier;
 	private TextBufferCache _cache;
 	private UndoStack _undoStack;
+	private final Vector<EditListener> _editListeners = new Vector<EditListener>();
 
 	/** Continuous seq of chars that have the same format (color, font, etc.) */
 	protected List<Pair> _spans;
 
+	/** Syntax used to find the spans of this buffer */
+	private Language _language = LanguageNonProg.getInstance();
+
+	/** Identifiers found by the lexer along with the spans */
+	private IdentifierIndex _identifiers = IdentifierIndex.EMPTY;
+
+	/** Narrows down searches of the buffer; null if not indexed */
+	private TrigramIndex _trigramIndex = null;
+
 
 	public TextBuffer(){
 		_contents = new char[MIN_GAP_SIZE + 1]; // extra char for EOF
@@ -76,6 +89,8 @@ public class TextBuffer implements CharSequence
 		initGap(textSize);
 		_lineCount = lineCount;
 		_allocMultiplier = 1;
+		++_version;
+		notifyReset();
 	}
 
 	synchronized public void setBuffer(char[] newBuffer){
@@ -346,6 +361,53 @@ public class TextBuffer implements CharSequence
 		return new String(chars);
 	}
 
+	/**
+	 * Copies the chars from srcBegin (inclusive) to srcEnd (exclusive) into
+	 * dst, starting at dstBegin. Works like String.getChars(); the text on
+	 * either side of the gap is copied in bulk.
+	 *
+	 * No error checking is done
+	 */
+	synchronized public void getChars(int srcBegin, int srcEnd, char[] dst, int dstBegin){
+		if(srcBegin < _gapStartIndex){
+			int count = Math.min(srcEnd, _gapStartIndex) - srcBegin;
+			System.arraycopy(_contents, srcBegin, dst, dstBegin, count);
+			srcBegin += count;
+			dstBegin += count;
+		}
+		if(srcBegin < srcEnd){
+			System.arraycopy(_contents, srcBegin + gapSize(), dst, dstBegin, srcEnd - srcBegin);
+		}
+	}
+
+	/**
+	 * Like getChars(), but only if the text has not changed since
+	 * getVersion() returned version, so that a reader on another thread
+	 * never reads a range that an edit moved or removed
+	 *
+	 * @return Whether the chars were copied
+	 */
+	synchronized public boolean getCharsIfUnchanged(int version, int srcBegin, int srcEnd,
+			char[] dst, int dstBegin){
+		if(version != _version){
+			return false;
+		}
+		getChars(srcBegin, srcEnd, dst, dstBegin);
+		return true;
+	}
+
+	/**
+	 * Returns a read-only view of the text, without the EOF sentinel.
+	 * No chars are copied. The view reads the buffer without locking, so
+	 * once the text changes it may read torn text. A reader on another
+	 * thread must get getVersion() before taking the view, and drop what it
+	 * read unless getVersion() is still the same afterwards.
+	 */
+	synchronized public CharSequence asCharSequence(){
+		return new GapCharSequence(_contents, _gapStartIndex, _gapEndIndex,
+				getTextLength() - 1);
+	}
+
 	/**
 	 * Gets charCount number of consecutive characters starting from _gapStartIndex.
 	 *
@@ -396,7 +458,9 @@ public class TextBuffer implements CharSequence
 			++_gapStartIndex;
 		}
 
+		++_version;
 		_cache.invalidateCache(charOffset);
+		notifyInsert(charOffset, c.length);
 	}
 
 	/**
@@ -431,7 +495,103 @@ public class TextBuffer implements CharSequence
 			}
 		}
 
+		++_version;
 		_cache.invalidateCache(charOffset);
+		notifyDelete(charOffset, totalChars);
+	}
+
+	/**
+	 * Replaces count ranges of text in one edit. Range i starts at offsets[i]
+	 * and is lengths[i] chars long. Ranges must be in ascending order and must
+	 * not overlap. Range i is replaced by the next replacementLengths[i] chars
+	 * of replacements, or by all of replacements if replacementLengths is null.
+	 *
+	 * The new text is copied once into a new array instead of moving the gap
+	 * to every range, and is recorded as a single undo entry.
+	 *
+	 * No error checking is done
+	 */
+	public synchronized void replace(int[] offsets, int[] lengths, int count,
+			char[] replacements, int[] replacementLengths, boolean undoable){
+		if(count == 0){
+			return;
+		}
+
+		final int textLength = getTextLength() - 1; // without EOF
+		long newTextLength = textLength;
+		int removedLength = 0;
+		for(int i = 0; i < count; ++i){
+			int replacementLength = (replacementLengths == null)
+					? replacements.length : replacementLengths[i];
+			newTextLength += replacementLength - lengths[i];
+			removedLength += lengths[i];
+		}
+		int bufferSize = (newTextLength < Integer.MAX_VALUE)
+				? memoryNeeded((int) newTextLength) : -1;
+		if(bufferSize < 0){
+			TextWarriorException.fail("TextBuffer.replace: Text too long");
+			return;
+		}
+
+		char[] removed = new char[removedLength];
+		char[] newContents = new char[bufferSize];
+		int lineCount = _lineCount;
+		int from = 0;
+		int to = 0;
+		int nextRemoved = 0;
+		int nextReplacement = 0;
+		for(int i = 0; i < count; ++i){
+			getChars(from, offsets[i], newContents, to);
+			to += offsets[i] - from;
+
+			getChars(offsets[i], offsets[i] + lengths[i], removed, nextRemoved);
+			lineCount -= countNewlines(removed, nextRemoved, lengths[i]);
+			nextRemoved += lengths[i];
+
+			int replacementLength = (replacementLengths == null)
+					? replacements.length : replacementLengths[i];
+			int replacementStart = (replacementLengths == null) ? 0 : nextReplacement;
+			System.arraycopy(replacements, replacementStart, newContents, to, replacementLength);
+			lineCount += countNewlines(replacements, replacementStart, replacementLength);
+			to += replacementLength;
+			nextReplacement += replacementLength;
+
+			from = offsets[i] + lengths[i];
+		}
+		getChars(from, textLength, newContents, to);
+		to += textLength - from;
+
+		if(undoable){
+			_undoStack.captureReplace(offsets, lengths, count, new String(removed),
+					replacements, replacementLengths);
+		}
+
+		// the text is at the start of the new array, followed by the gap
+		newContents[newContents.length - 1] = Language.EOF;
+		_contents = newContents;
+		_gapStartIndex = to;
+		_gapEndIndex = newContents.length - 1;
+		_lineCount = lineCount;
+		_allocMultiplier = 1;
+		++_version;
+		_cache.invalidateCache(offsets[0]);
+		notifyReset();
+	}
+
+	/**
+	 * Like replace(), but only if the text has not changed since
+	 * getVersion() returned version, as when the ranges were found on
+	 * another thread without holding the lock
+	 *
+	 * @return Whether the ranges were replaced
+	 */
+	public synchronized boolean replaceIfUnchanged(int version, int[] offsets, int[] lengths,
+			int count, char[] replacements, int[] replacementLengths, boolean undoable){
+		if(version != _version){
+			return false;
+		}
+		replace(offsets, lengths, count, replacements, replacementLengths, undoable);
+		return true;
 	}
 
 	/**
@@ -450,7 +610,46 @@ public class TextBuffer implements CharSequence
 		}
 
 		_gapStartIndex += displacement;
+		++_version;
 		_cache.invalidateCache(realToLogicalIndex(_gapStartIndex - 1) + 1);
+		// the text before the gap grew or shrank at its end
+		if(displacement >= 0){
+			notifyInsert(_gapStartIndex - displacement, displacement);
+		}
+		else{
+			notifyDelete(_gapStartIndex, -displacement);
+		}
+	}
+
+	/**
+	 * Registers a listener to be informed of every change to the text.
+	 * Listeners are called on the thread making the change, while the
+	 * buffer is locked, so they should only do short work.
+	 */
+	synchronized public void addEditListener(EditListener listener){
+		_editListeners.addElement(listener);
+	}
+
+	synchronized public void removeEditListener(EditListener listener){
+		_editListeners.removeElement(listener);
+	}
+
+	private void notifyInsert(int charOffset, int length){
+		for (EditListener listener : _editListeners){
+			listener.onInsert(charOffset, length);
+		}
+	}
+
+	private void notifyDelete(int charOffset, int length){
+		for (EditListener listener : _editListeners){
+			listener.onDelete(charOffset, length);
+		}
+	}
+
+	private void notifyReset(){
+		for (EditListener listener : _editListeners){
+			listener.onReset();
+		}
 	}
 
 	//does NOT skip the gap when examining consecutive positions
@@ -465,6 +664,16 @@ public class TextBuffer implements CharSequence
 		return newlines;
 	}
 
+	private static int countNewlines(char[] chars, int start, int length){
+		int newlines = 0;
+		for(int i = start; i < start + length; ++i){
+			if(chars[i] == Language.NEWLINE){
+				++newlines;
+			}
+		}
+		return newlines;
+	}
+
 	/**
 	 * Adjusts gap so that _gapStartIndex is at newGapStart
 	 */
@@ -542,6 +751,15 @@ public class TextBuffer implements CharSequence
 		return _lineCount;
 	}
 
+	/**
+	 * Returns a stamp that changes whenever the text is modified. Results
+	 * computed from the text, like spans, can be compared against it to
+	 * find out if they are outdated.
+	 */
+	synchronized public int getVersion(){
+		return _version;
+	}
+
 	final synchronized public boolean isValid(int charOffset){
 		return (charOffset >= 0 && charOffset < getTextLength());
 	}
@@ -572,6 +790,41 @@ public class TextBuffer implements CharSequence
 		return i < _gapStartIndex;
 	}
 
+	synchronized public Language getLanguage(){
+		return _language;
+	}
+
+	/**
+	 * Sets the programming language syntax of the text. Language tables are
+	 * read-only once constructed, so one instance can be shared by many
+	 * buffers and lexed concurrently.
+	 */
+	synchronized public void setLanguage(Language language){
+		_language = language;
+	}
+
+	synchronized public IdentifierIndex getIdentifiers(){
+		return _identifiers;
+	}
+
+	/**
+	 * Sets the identifiers found by lexing the text at the given version.
+	 * The index is dropped if the text has changed since then.
+	 */
+	synchronized public void setIdentifiers(IdentifierIndex identifiers, int version){
+		if (version == _version){
+			_identifiers = identifiers;
+		}
+	}
+
+	synchronized public TrigramIndex getTrigramIndex(){
+		return _trigramIndex;
+	}
+
+	synchronized public void setTrigramIndex(TrigramIndex index){
+		_trigramIndex = index;
+	}
+
 	public void clearSpans(){
 		_spans = new Vector<Pair>();
 	    _spans.add(new Pair(0, Lexer.NORMAL));
@@ -647,5 +900,63 @@ public class TextBuffer implements CharSequence
 		return new String(buf);
 	}
 
+	/**
+	 * CharSequence over the contents of a gap buffer, skipping the gap
+	 */
+	private static class GapCharSequence implements CharSequence{
+		private final char[] _contents;
+		private final int _gapStart;
+		private final int _gapSize;
+		private final int _length;
+
+		GapCharSequence(char[] contents, int gapStart, int gapEnd, int length){
+			_contents = contents;
+			_gapStart = gapStart;
+			_gapSize = gapEnd - gapStart;
+			_length = length;
+		}
+
+		@Override
+		public int length(){
+			return _length;
+		}
+
+		@Override
+		public char charAt(int index){
+			if(index < 0 || index >= _length){
+				throw new IndexOutOfBoundsException("index " + index + ", length " + _length);
+			}
+			return (index < _gapStart) ? _contents[index] : _contents[index + _gapSize];
+		}
+
+		@Override
+		public CharSequence subSequence(int start, int end){
+			if(start < 0 || end > _length || start > end){
+				throw new IndexOutOfBoundsException("start " + start + ", end " + end + ", length " + _length);
+			}
+			char[] chars = new char[end - start];
+			int beforeGap = Math.max(0, Math.min(end, _gapStart) - start);
+			System.arraycopy(_contents, start, chars, 0, beforeGap);
+			System.arraycopy(_contents, start + beforeGap + _gapSize, chars, beforeGap,
+					chars.length - beforeGap);
+			return new String(chars);
+		}
 
+		@Override
+		public String toString(){
+			return subSequence(0, _length).toString();
+		}
+	}
+
+	/**
+	 * Informed of the ranges of text that change
+	 */
+	public interface EditListener{
+		/** length chars were inserted at charOffset */
+		public void onInsert(int charOffset, int length);
+		/** length chars starting from charOffset were deleted */
+		public void onDelete(int charOffset, int length);
+		/** The whole text was replaced */
+		public void onReset();
+	}
 }
@@ -0,0 +1,387 @@
+/*
+ * Copyright (c) 2013 Tah Wei Hoon.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Apache License Version 2.0,
+ * with full text available at http://www.apache.org/licenses/LICENSE-2.0.html
+ *
+ * This software is provided "as is". Use at your own risk.
+ */
+package com.mrikso.codeeditor.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Narrows down where a target can occur in a large document, so that only
+ * those parts of the document have to be searched.
+ *
+ * The document is split into blocks of about blockSize chars. For each block,
+ * a bit set of bitsPerBlock bits records the trigrams (sequences of 3 chars)
+ * that start in it. A target can only start in a block if every trigram of
+ * the target is recorded in that block or in the blocks the target would run
+ * into. Trigrams are recorded with their case folded, so the same index
+ * serves case-sensitive and case-insensitive searches.
+ *
+ * The index takes about bitsPerBlock / 8 bytes for every blockSize chars of
+ * text. Fewer bits use less memory but let more blocks through.
+ *
+ * The bit sets are built on a background thread. Edits to the document are
+ * received through TextBuffer.EditListener and only rebuild the blocks they
+ * touch. Blocks that are not built yet never rule anything out, so the index
+ * can be used at any time. Create the index on the thread that edits the
+ * document, and call dispose() when it is no longer needed.
+ *
+ * Once created, the index is set on the document and used by the search
+ * strategies to skip the blocks that cannot hold a match.
+ */
+public class TrigramIndex implements TextBuffer.EditListener {
+    public final static int DEFAULT_BLOCK_SIZE = 4 * 1024;
+    public final static int DEFAULT_BITS_PER_BLOCK = 8 * 1024;
+
+    private final DocumentProvider _src;
+    private final int _blockSize;
+    private final int _bitsPerBlock;
+    /**
+     * A trigram hash is shifted right by this much to get its bit
+     */
+    private final int _hashShift;
+
+    private final ArrayList<Block> _blocks = new ArrayList<Block>();
+    /**
+     * Document length, as seen through the edits received
+     */
+    private int _length;
+    /**
+     * Incremented on every edit, so that the builder can tell if the text
+     * it read is still current
+     */
+    private int _edits = 0;
+    private int _dirtyCount = 0;
+    /**
+     * No block before this one needs to be built
+     */
+    private int _buildCursor = 0;
+    private boolean _isDisposed = false;
+
+    public TrigramIndex(DocumentProvider src) {
+        this(src, DEFAULT_BLOCK_SIZE, DEFAULT_BITS_PER_BLOCK);
+    }
+
+    /**
+     * @param blockSize     Number of chars covered by one block
+     * @param bitsPerBlock  Size of the bit set of each block. Rounded up to
+     *                      a power of 2 of at least 64.
+     */
+    public TrigramIndex(DocumentProvider src, int blockSize, int bitsPerBlock) {
+        TextWarriorException.assertVerbose(blockSize >= 3,
+                "TrigramIndex: block size too small");
+        _src = src;
+        _blockSize = Math.max(blockSize, 3);
+        int bits = 64;
+        while (bits < bitsPerBlock && bits < (1 << 30)) {
+            bits <<= 1;
+        }
+        _bitsPerBlock = bits;
+        _hashShift = Integer.numberOfLeadingZeros(bits) + 1;
+
+        src.addEditListener(this);
+        onReset();
+        src.setTrigramIndex(this);
+
+        Thread builder = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                build();
+            }
+        }, "TrigramIndex");
+        builder.setDaemon(true);
+        builder.setPriority(Thread.MIN_PRIORITY);
+        builder.start();
+    }
+
+    /**
+     * Stops tracking edits to the document, stops the builder and frees
+     * the index
+     */
+    public void dispose() {
+        _src.removeEditListener(this);
+        if (_src.getTrigramIndex() == this) {
+            _src.setTrigramIndex(null);
+        }
+        synchronized (this) {
+            _isDisposed = true;
+            _blocks.clear();
+            notifyAll();
+        }
+    }
+
+    /**
+     * Whether every block has been built
+     */
+    public synchronized boolean isReady() {
+        return _dirtyCount == 0;
+    }
+
+    /**
+     * Finds the ranges of start positions in [start, end) where target
+     * may occur. Every occurrence of target, ignoring case, starts in one
+     * of the ranges.
+     *
+     * @return The ranges as pairs of start (inclusive) and end (exclusive)
+     * offsets, in ascending order; or null if the index cannot narrow down
+     * the search, as for targets shorter than 3 chars
+     */
+    public synchronized int[] candidates(String target, int start, int end) {
+        if (_isDisposed || target.length() < 3) {
+            return null;
+        }
+        start = Math.max(start, 0);
+        end = Math.min(end, _length);
+
+        int[] bits = new int[target.length() - 2];
+        for (int i = 0; i < bits.length; ++i) {
+            bits[i] = bit(target.charAt(i), target.charAt(i + 1), target.charAt(i + 2));
+        }
+
+        int[] ranges = new int[8];
+        int count = 0;
+        for (int i = findBlock(start); i < _blocks.size() && blockStart(i) < end; ++i) {
+            if (!mayContain(i, bits, target.length())) {
+                continue;
+            }
+            int rangeStart = Math.max(start, blockStart(i));
+            int rangeEnd = Math.min(end, blockEnd(i));
+            if (count > 0 && ranges[count - 1] == rangeStart) {
+                // extend the previous range
+                ranges[count - 1] = rangeEnd;
+                continue;
+            }
+            if (count == ranges.length) {
+                ranges = Arrays.copyOf(ranges, count * 2);
+            }
+            ranges[count++] = rangeStart;
+            ranges[count++] = rangeEnd;
+        }
+        return Arrays.copyOf(ranges, count);
+    }
+
+    /**
+     * Whether a target with the given trigram bits and length could start
+     * in block i. The trigrams of such a target start in block i or in the
+     * blocks after it that the target runs into.
+     */
+    private boolean mayContain(int i, int[] bits, int targetLength) {
+        int reach = blockEnd(i) + targetLength - 3;
+        for (int bit : bits) {
+            boolean isFound = false;
+            for (int j = i; j < _blocks.size() && blockStart(j) <= reach; ++j) {
+                long[] filter = _blocks.get(j).filter;
+                if (filter == null || (filter[bit >>> 6] & (1L << bit)) != 0) {
+                    isFound = true;
+                    break;
+                }
+            }
+            if (!isFound) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized void onInsert(int charOffset, int length) {
+        ++_edits;
+        _length += length;
+        int i = findBlock(charOffset);
+        for (int j = i + 1; j < _blocks.size(); ++j) {
+            _blocks.get(j).start += length;
+        }
+        markDirty(i);
+        markTrigramsBefore(i, charOffset);
+        if (blockEnd(i) - blockStart(i) > 2 * _blockSize) {
+            split(i);
+        }
+        notifyAll();
+    }
+
+    @Override
+    public synchronized void onDelete(int charOffset, int length) {
+        ++_edits;
+        _length -= length;
+        int deleteEnd = charOffset + length;
+        // blocks that started in the deleted range now start at charOffset.
+        // What is left of them is a part of their old text, so their bits
+        // still cover it.
+        for (int j = findBlock(charOffset) + 1; j < _blocks.size(); ++j) {
+            Block block = _blocks.get(j);
+            block.start = (block.start <= deleteEnd) ? charOffset : block.start - length;
+        }
+        // of the blocks starting at the same offset, keep the last one
+        int i = findBlock(charOffset);
+        while (i > 0 && blockStart(i - 1) == blockStart(i)) {
+            removeBlock(i - 1);
+            --i;
+        }
+        markDirty(i);
+        markTrigramsBefore(i, charOffset);
+        notifyAll();
+    }
+
+    @Override
+    public synchronized void onReset() {
+        ++_edits;
+        // called with the document locked, so its length is current
+        _length = _src.docLength();
+        _blocks.clear();
+        _dirtyCount = 0;
+        _buildCursor = 0;
+        for (int start = 0; start < _length || start == 0; start += _blockSize) {
+            _blocks.add(new Block(start));
+            ++_dirtyCount;
+        }
+        notifyAll();
+    }
+
+    /**
+     * Trigrams starting up to 2 chars before an edit include edited chars
+     */
+    private void markTrigramsBefore(int i, int charOffset) {
+        if (i > 0 && charOffset - 2 < blockStart(i)) {
+            markDirty(i - 1);
+        }
+    }
+
+    private void markDirty(int i) {
+        Block block = _blocks.get(i);
+        if (block.filter != null) {
+            block.filter = null;
+            ++_dirtyCount;
+        }
+        _buildCursor = Math.min(_buildCursor, i);
+    }
+
+    private void removeBlock(int i) {
+        if (_blocks.remove(i).filter == null) {
+            --_dirtyCount;
+        }
+    }
+
+    /**
+     * Splits block i into blocks of _blockSize chars
+     */
+    private void split(int i) {
+        int end = blockEnd(i);
+        int start = blockStart(i) + _blockSize;
+        while (start < end) {
+            _blocks.add(++i, new Block(start));
+            ++_dirtyCount;
+            start += _blockSize;
+        }
+    }
+
+    private int blockStart(int i) {
+        return _blocks.get(i).start;
+    }
+
+    private int blockEnd(int i) {
+        return (i + 1 < _blocks.size()) ? _blocks.get(i + 1).start : _length;
+    }
+
+    /**
+     * @return The index of the block that charOffset is in
+     */
+    private int findBlock(int charOffset) {
+        int low = 0;
+        int high = _blocks.size() - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (blockStart(middle) <= charOffset) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Builds dirty blocks until disposed. The text of a block is read
+     * without holding the lock of the index, and the result is dropped if
+     * the document was edited in the meantime.
+     */
+    private void build() {
+        while (true) {
+            Block block;
+            int start;
+            int readEnd;
+            int blockLength;
+            int edits;
+            synchronized (this) {
+                int i = nextDirtyBlock();
+                while (i < 0 && !_isDisposed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    i = nextDirtyBlock();
+                }
+                if (_isDisposed) {
+                    return;
+                }
+                block = _blocks.get(i);
+                start = blockStart(i);
+                blockLength = blockEnd(i) - start;
+                // include the trigrams that run into the next block
+                readEnd = Math.min(start + blockLength + 2, _length);
+                edits = _edits;
+            }
+
+            CharSequence text = _src.subSequence(start, readEnd - start);
+            long[] filter = new long[_bitsPerBlock / 64];
+            int last = Math.min(blockLength, text.length() - 2);
+            for (int j = 0; j < last; ++j) {
+                int bit = bit(text.charAt(j), text.charAt(j + 1), text.charAt(j + 2));
+                filter[bit >>> 6] |= 1L << bit;
+            }
+
+            synchronized (this) {
+                if (edits == _edits && block.filter == null) {
+                    block.filter = filter;
+                    --_dirtyCount;
+                }
+            }
+        }
+    }
+
+    private int nextDirtyBlock() {
+        while (_buildCursor < _blocks.size()) {
+            if (_blocks.get(_buildCursor).filter == null) {
+                return _buildCursor;
+            }
+            ++_buildCursor;
+        }
+        return -1;
+    }
+
+    /**
+     * Case is folded so that chars matched by a case-insensitive search get
+     * the same bit
+     */
+    private int bit(char a, char b, char c) {
+        int hash = (CaseFolding.fold(a) * 31 + CaseFolding.fold(b)) * 31 + CaseFolding.fold(c);
+        return (hash * 0x9E3779B1) >>> _hashShift;
+    }
+
+    private static class Block {
+        int start;
+        /**
+         * Bits set by the trigrams starting in the block; null if not built
+         */
+        long[] filter = null;
+
+        Block(int start) {
+            this.start = start;
+        }
+    }
+}
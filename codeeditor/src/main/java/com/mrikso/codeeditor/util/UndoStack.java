@@ -1,6 +1,7 @@
 
 package com.mrikso.codeeditor.util;
 
+import java.util.Arrays;
 import java.util.LinkedList;
 
 /**
@@ -173,6 +174,27 @@ public class UndoStack {
 		_lastEditTime = time;
 	}
 	
+	/**
+	 * Records a replacement of several ranges of text as one entry. Should
+	 * be called before the text is actually replaced. Unlike insertions and
+	 * deletions, the affected text is copied right away, since the replaced
+	 * text does not stay in the gap.
+	 *
+	 * @param removed The text of all replaced ranges, one after another
+	 */
+	public void captureReplace(int[] offsets, int[] lengths, int count, String removed,
+			char[] replacements, int[] replacementLengths){
+		if(canUndo()){
+			_stack.get(_top - 1).recordData();
+		}
+
+		push(new ReplaceCommand(offsets, lengths, count, removed,
+				replacements, replacementLengths, _groupId));
+		if(!_isBatchEdit){
+			_groupId++;
+		}
+	}
+
 	private void push(Command c){
 		trimStack();
 		++_top;
@@ -262,6 +284,7 @@ public class UndoStack {
 			if((time - _lastEditTime) < MERGE_TIME
 					&& newStart == _start + _length){
 				_length += length;
+				_data = null; // recorded again when needed
 				trimStack();
 				return true;
 			}
@@ -271,6 +294,10 @@ public class UndoStack {
 
 		@Override
 		public void recordData() {
+			if(_data != null){
+				// already recorded; the text may have moved on since
+				return;
+			}
 			//TODO handle memory allocation failure
 			_data = _buf.subSequence(_start, _length).toString();
 		}
@@ -326,6 +353,7 @@ public class UndoStack {
 					&& newStart == _start - _length - length + 1){
 				_start = newStart;
 				_length += length;
+				_data = null; // recorded again when needed
 				trimStack();
 				return true;
 			}
@@ -335,6 +363,10 @@ public class UndoStack {
 
 		@Override
 		public void recordData() {
+			if(_data != null){
+				// already recorded; the gap may hold other text by now
+				return;
+			}
 			//TODO handle memory allocation failure
 			_data = new String(_buf.gapSubSequence(_length));
 		}
@@ -367,4 +399,73 @@ public class UndoStack {
 			return _start + _length;
 		}
 	}// end inner class
+
+
+	private class ReplaceCommand extends Command{
+		/** Ranges in the text before the replacement */
+		private final int[] _offsets;
+		private final int[] _lengths;
+		private final int _count;
+		private final char[] _replacements;
+		/** null if every range is replaced by all of _replacements */
+		private final int[] _replacementLengths;
+
+		/**
+		 * Corresponds to a replacement of count ranges of text. _data holds
+		 * the replaced text of all the ranges.
+		 */
+		public ReplaceCommand(int[] offsets, int[] lengths, int count, String removed,
+				char[] replacements, int[] replacementLengths, int groupNumber){
+			_offsets = Arrays.copyOf(offsets, count);
+			_lengths = Arrays.copyOf(lengths, count);
+			_count = count;
+			_replacements = replacements;
+			_replacementLengths = replacementLengths;
+			_start = offsets[0];
+			_length = removed.length();
+			_data = removed;
+			_group = groupNumber;
+		}
+
+		@Override
+		public boolean merge(int start, int length, long time) {
+			return false;
+		}
+
+		@Override
+		public void recordData() {
+			// recorded on construction
+		}
+
+		@Override
+		public void undo() {
+			// the replacements are now where the replaced ranges were,
+			// moved by the change in length of the ranges before them
+			int[] offsets = new int[_count];
+			int[] lengths = new int[_count];
+			int delta = 0;
+			for(int i = 0; i < _count; ++i){
+				lengths[i] = (_replacementLengths == null)
+						? _replacements.length : _replacementLengths[i];
+				offsets[i] = _offsets[i] + delta;
+				delta += lengths[i] - _lengths[i];
+			}
+			_buf.replace(offsets, lengths, _count, _data.toCharArray(), _lengths, false);
+		}
+
+		@Override
+		public void redo() {
+			_buf.replace(_offsets, _lengths, _count, _replacements, _replacementLengths, false);
+		}
+
+		@Override
+		public int findRedoPosition() {
+			return _start;
+		}
+
+		@Override
+		public int findUndoPosition() {
+			return _start;
+		}
+	}
 }
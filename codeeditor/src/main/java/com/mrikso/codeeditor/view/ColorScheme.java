@@ -19,7 +19,7 @@ public abstract class ColorScheme {
         FOREGROUND, BACKGROUND, SELECTION_FOREGROUND, SELECTION_BACKGROUND,
         CARET_FOREGROUND, CARET_BACKGROUND, CARET_DISABLED, LINE_HIGHLIGHT,
         NON_PRINTING_GLYPH, COMMENT, KEYWORD, NAME, NUMBER, STRING,
-        SECONDARY
+        SECONDARY, SEARCH_HIGHLIGHT
     }
 
     protected HashMap<Colorable, Integer> _colors = generateDefaultColors();
@@ -93,6 +93,7 @@ public abstract class ColorScheme {
         colors.put(Colorable.CARET_BACKGROUND, LIGHT_BLUE2);
         colors.put(Colorable.CARET_DISABLED, GREY);
         colors.put(Colorable.LINE_HIGHLIGHT, 0x20888888);
+        colors.put(Colorable.SEARCH_HIGHLIGHT, 0x60FFC107);//搜索结果的背景色
 
         colors.put(Colorable.NON_PRINTING_GLYPH, 0xff2b91af);//行号
         colors.put(Colorable.COMMENT, OLIVE_GREEN); //注释
@@ -35,6 +35,7 @@ import android.content.Context;
 import android.content.DialogInterface;
 import android.content.DialogInterface.OnDismissListener;
 import android.content.res.Resources;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.graphics.Rect;
@@ -69,7 +70,13 @@ import com.mrikso.codeeditor.lang.Language;
 import com.mrikso.codeeditor.util.Document;
 import com.mrikso.codeeditor.util.DocumentProvider;
 import com.mrikso.codeeditor.util.HelperUtils;
+import com.mrikso.codeeditor.util.IdentifierIndex;
+import com.mrikso.codeeditor.util.LayoutEngine;
+import com.mrikso.codeeditor.util.LineWidths;
 import com.mrikso.codeeditor.util.Pair;
+import com.mrikso.codeeditor.util.ParallelWordWrap;
+import com.mrikso.codeeditor.util.RowCheckpoints;
+import com.mrikso.codeeditor.util.SearchHighlights;
 import com.mrikso.codeeditor.util.TextWarriorException;
 import com.mrikso.codeeditor.view.autocomplete.AutoCompletePanel;
 
@@ -81,8 +88,9 @@ import java.util.List;
  * blinking caret and allows a variety of navigation methods to be easily
  * integrated.
  * <p>
- * It also has a built-in syntax highlighting feature. The global programming
- * language syntax to use is specified with Lexer.setLanguage(Language).
+ * It also has a built-in syntax highlighting feature. The programming
+ * language syntax to use is specified with setLanguage(Language) and is
+ * stored in the document, so every text field can use its own language.
  * To disable syntax highlighting, simply pass LanguageNonProg to that function.
  * <p>
  * Responsibilities
@@ -109,7 +117,7 @@ import java.util.List;
  * this extra char. Some bounds manipulation is done so that this implementation
  * detail is hidden from client classes.
  */
-public abstract class FreeScrollingTextField extends View implements Document.TextFieldMetrics {
+public abstract class FreeScrollingTextField extends View {
 
     //---------------------------------------------------------------------
     //--------------------------  Caret Scroll  ---------------------------
@@ -130,6 +138,19 @@ public abstract class FreeScrollingTextField extends View implements Document.Te
     protected static int BASE_TEXT_SIZE_PIXELS = 16;
     protected static long SCROLL_PERIOD = 250; //in milliseconds
     protected static int SCROLL_EDGE_SLOP = 150;
+    /**
+     * Chars of estimated word wrap rows measured per run of
+     * mRefineWordWrapTask, small enough not to drop frames
+     */
+    protected static int WORD_WRAP_SLICE_CHARS = 32 * 1024;
+    /**
+     * Chars of unmeasured lines measured per run of mMeasureLinesTask
+     */
+    protected static int LINE_WIDTH_SLICE_CHARS = 32 * 1024;
+    /**
+     * Drawn after a line whose following lines are folded
+     */
+    private final static String GLYPH_FOLDED = " \u2026";
     /*
      * Hash map for determining which characters to let the user choose from when
      * a hardware key is long-pressed. For example, long-pressing "e" displays
@@ -243,7 +264,21 @@ public abstract class FreeScrollingTextField extends View implements Document.Te
      * displayed on screen so far
      */
     private int mTopOffset, mLeftOffset;
-    private int mLineMaxWidth, xExtent;
+    /**
+     * Width of every line, for the horizontal scroll range
+     */
+    private LineWidths mLineWidths;
+    /**
+     * X-coordinates along the long rows, so that only their visible
+     * columns are measured and drawn
+     */
+    private RowCheckpoints mRowCheckpoints;
+    private final RowCheckpoints.Measurer mRowMeasurer = new RowCheckpoints.Measurer() {
+        @Override
+        public int measure(char[] text, int start, int end, int x) {
+            return measureChars(text, start, end, mLeftOffset + x) - mLeftOffset;
+        }
+    };
     private int mAlphaWidth, mSpaceWidth;
     private long mLastScroll;
     private boolean isAutoCompeted = true; //代码提示
@@ -291,6 +326,89 @@ public abstract class FreeScrollingTextField extends View implements Document.Te
             }
         }
     };
+    /**
+     * Measures estimated word wrap rows of the document a slice at a time,
+     * between frames, keeping the text at the top of the view in place
+     */
+    private final Runnable mRefineWordWrapTask = new Runnable() {
+        @Override
+        public void run() {
+            isRefineWordWrapPosted = false;
+            if (!mScroller.isFinished()) {
+                // rows moving under a fling would make it jump
+                scheduleWordWrapRefinement(SCROLL_PERIOD);
+                return;
+            }
+            int anchorRow = getScrollY() / rowHeight();
+            int anchorOffset = hDoc.getRowOffset(anchorRow);
+            boolean isLeft = hDoc.refineWordWrap(WORD_WRAP_SLICE_CHARS);
+            restoreScrollAnchor(anchorRow, anchorOffset);
+            if (isLeft) {
+                scheduleWordWrapRefinement(0);
+            }
+        }
+    };
+    private boolean isRefineWordWrapPosted = false;
+    /**
+     * Measures the lines of the document whose width is not known yet a
+     * slice at a time, so that the horizontal scroll range becomes exact.
+     * A long line is measured across several runs through mRowCheckpoints,
+     * which keeps how far it got.
+     */
+    private final Runnable mMeasureLinesTask = new Runnable() {
+        @Override
+        public void run() {
+            isMeasureLinesPosted = false;
+            if (isWordWrap()) {
+                return;
+            }
+            int oldMaxWidth = mLineWidths.getMaxWidth();
+            int budget = LINE_WIDTH_SLICE_CHARS;
+            while (budget > 0) {
+                int line = mMeasuringLine;
+                if (line < 0 || line >= mLineWidths.size() || mLineWidths.isMeasured(line)) {
+                    line = mLineWidths.nextUnmeasuredLine();
+                    if (line < 0) {
+                        break;
+                    }
+                }
+                // without word wrap, every line is one row
+                int rowLength = hDoc.getRowSize(line);
+                if (RowCheckpoints.isLongRow(rowLength)) {
+                    mMeasuringLine = line;
+                    Pair reached = mRowCheckpoints.measureMore(hDoc.getRowOffset(line),
+                            rowLength, budget);
+                    if (reached.getFirst() < rowLength) {
+                        // go on with it next time
+                        break;
+                    }
+                    mLineWidths.setWidth(line, reached.getSecond());
+                    mMeasuringLine = -1;
+                    budget -= rowLength;
+                } else {
+                    String lineText = hDoc.getRow(line);
+                    mLineWidths.setWidth(line, measureLineWidth(lineText));
+                    budget -= lineText.length() + 1;
+                }
+            }
+            if (!mLineWidths.isExact()) {
+                scheduleLineMeasuring();
+            }
+            if (mLineWidths.getMaxWidth() != oldMaxWidth) {
+                // for the scroll bars
+                invalidate();
+            }
+        }
+    };
+    private boolean isMeasureLinesPosted = false;
+    /**
+     * The long line mMeasureLinesTask is partway through, or -1
+     */
+    private int mMeasuringLine = -1;
+    /**
+     * The last background word wrap of the whole document, if any
+     */
+    private ParallelWordWrap mParallelWordWrap = null;
     private boolean isUseGboard = false;
     private RectF mVerticalScrollBar, mRect;
     private EdgeEffect mTopEdge;
@@ -298,9 +416,41 @@ public abstract class FreeScrollingTextField extends View implements Document.Te
     private ClipboardPanel mClipboardPanel;
     private ClipboardManager mClipboardManager;
     private float mZoomFactor = 1;
+    /**
+     * Whether a pinch zoom is in progress. The text is laid out at the
+     * final size only once the zoom ends; until then the frame shown when it
+     * started is drawn scaled by mZoomScale about the focus of the pinch.
+     */
+    private boolean isZooming = false;
+    private Bitmap mZoomFrame = null;
+    private final Paint mZoomFramePaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private float mZoomStartSize;
+    private float mZoomScale = 1;
+    private float mZoomFocusX, mZoomFocusY;
     private int mCaretX, mCaretY;
     private char mCharEmoji = '\0';
+    /**
+     * Measures the text drawn with mTextPaint, for this view and for the
+     * word wrap of hDoc, which may run on other threads
+     */
+    private LayoutEngine mLayout;
+    /**
+     * The advance of every printable ASCII char if the font gives them all
+     * the same one, as a monospace font does, or 0. Rows made of these chars
+     * and tabs are laid out by column arithmetic instead of measuring.
+     */
+    private int mMonoAdvance = 0;
+    /**
+     * Reused to draw single chars
+     */
+    private final char[] mCharBuffer = new char[1];
     private Pair mCaretSpan = new Pair(0, 0);
+    private final SearchHighlights mSearchHighlights = new SearchHighlights();
+    /**
+     * Passes the edits of hDoc on to the caches of this view on the UI
+     * thread, including the edits made by a replace all on FindThread
+     */
+    private UiThreadEditListener mEditListener;
     private Typeface defTypeface = Typeface.DEFAULT;
     private Typeface boldTypeface = Typeface.DEFAULT_BOLD;
     private Typeface italicTypeface = Typeface.create(Typeface.DEFAULT, Typeface.ITALIC);
@@ -354,7 +504,17 @@ public abstract class FreeScrollingTextField extends View implements Document.Te
 
     protected void initTextField(Context context) {
         mContext = context;
-        hDoc = new DocumentProvider(this);
+        mTextPaint = new Paint();
+        mTextPaint.setAntiAlias(true);
+        mTextPaint.setTextSize(BASE_TEXT_SIZE_PIXELS);
+        mLayout = new LayoutEngine(new PaintGlyphMeasurer(mTextPaint), EMPTY_CARET_WIDTH_SCALE);
+        mLayout.setTabLength(mTabLength);
+        hDoc = new DocumentProvider(mLayout);
+        mLineWidths = new LineWidths(hDoc);
+        mRowCheckpoints = new RowCheckpoints(hDoc, mRowMeasurer);
+        mEditListener = new UiThreadEditListener(this, mSearchHighlights, mLineWidths,
+                mRowCheckpoints);
+        hDoc.addEditListener(mEditListener);
         mNavMethod = new TouchNavigationMethod(this);
         mScroller = new Scroller(context);
 
@@ -423,14 +583,13 @@ public abstract class FreeScrollingTextField extends View implements Document.Te
         mZoomFactor = pix / BASE_TEXT_SIZE_PIXELS;
         mTextPaint.setTextSize(pix);
         mLineNumPaint.setTextSize(pix);
+        onFontChanged();
         if (hDoc.isWordWrap())
             hDoc.analyzeWordWrap();
         mFieldController.updateCaretRow();
         double x = getScrollX() * ((double) getAdvance('a') / oldWidth);
         double y = getScrollY() * ((double) rowHeight() / oldHeight);
         scrollTo((int) x, (int) y);
-        mAlphaWidth = (int) mTextPaint.measureText("a");
-        mSpaceWidth = (int) mTextPaint.measureText(" ");
         //int idx=coordToCharIndex(getScrollX(), getScrollY());
         //if (!makeCharVisible(idx))
         {
@@ -438,6 +597,77 @@ public abstract class FreeScrollingTextField extends View implements Document.Te
         }
     }
 
+    /**
+     * Starts a pinch zoom about (focusX, focusY), in coordinates relative to
+     * the view. The text keeps its layout until endZoom() is called, and
+     * meanwhile the frame on screen is drawn scaled by zoomBy().
+     */
+    public void beginZoom(float focusX, float focusY) {
+        if (isZooming) {
+            return;
+        }
+        isZooming = true;
+        mZoomStartSize = getTextSize();
+        mZoomScale = 1;
+        mZoomFocusX = focusX;
+        mZoomFocusY = focusY;
+        if (getWidth() > 0 && getHeight() > 0) {
+            try {
+                Bitmap frame = Bitmap.createBitmap(getWidth(), getHeight(), Bitmap.Config.ARGB_8888);
+                Canvas canvas = new Canvas(frame);
+                canvas.translate(-getScrollX(), -getScrollY());
+                draw(canvas);
+                mZoomFrame = frame;
+            } catch (OutOfMemoryError e) {
+                // zoom without a preview
+                mZoomFrame = null;
+            }
+        }
+    }
+
+    /**
+     * Scales the text of a pinch zoom by scale, relative to its size when
+     * the zoom began. Only the frame on screen is scaled until endZoom().
+     */
+    public void zoomBy(float scale) {
+        int size = (int) (mZoomStartSize * scale);
+        if (!isZooming || size <= 20 || size >= 80) {
+            // the same limits as setTextSize()
+            return;
+        }
+        mZoomScale = scale;
+        invalidate();
+    }
+
+    /**
+     * Ends a pinch zoom: the text is measured and wrapped again at the final
+     * size, and scrolled so that the text at the focus stays there
+     */
+    public void endZoom() {
+        if (!isZooming) {
+            return;
+        }
+        isZooming = false;
+        if (mZoomFrame != null) {
+            mZoomFrame.recycle();
+            mZoomFrame = null;
+        }
+        float oldHeight = rowHeight();
+        float oldWidth = getAdvance('a');
+        float focusX = getScrollX() + mZoomFocusX;
+        float focusY = getScrollY() + mZoomFocusY;
+        setTextSize((int) (mZoomStartSize * mZoomScale));
+        int x = (int) (focusX * getAdvance('a') / oldWidth - mZoomFocusX);
+        int y = (int) (focusY * rowHeight() / oldHeight - mZoomFocusY);
+        scrollTo(Math.max(0, Math.min(x, getMaxScrollX())),
+                Math.max(0, Math.min(y, getMaxScrollY())));
+        invalidate();
+    }
+
+    public boolean isZooming() {
+        return isZooming;
+    }
+
     public void replaceText(int from, int charCount, String text) {
         hDoc.beginBatchEdit();
         mFieldController.replaceText(from, charCount, text);
@@ -463,9 +693,7 @@ public abstract class FreeScrollingTextField extends View implements Document.Te
 
         mFieldController = new TextFieldController(this);
         mClipboardManager = (ClipboardManager) context.getSystemService(Context.CLIPBOARD_SERVICE);
-        mTextPaint = new Paint();
-        mTextPaint.setAntiAlias(true);
-        mTextPaint.setTextSize(BASE_TEXT_SIZE_PIXELS);
+        onFontChanged();
         mLineNumPaint = new Paint();
         mLineNumPaint.setAntiAlias(true);
         mLineNumPaint.setTextSize(BASE_TEXT_SIZE_PIXELS);
@@ -565,7 +793,6 @@ public abstract class FreeScrollingTextField extends View implements Document.Te
 
     private void resetView() {
         mCaretPosition = mCaretRow = 0;
-        xExtent = mLineMaxWidth = 0;
         mFieldController.setSelectText(false);
         mFieldController.stopTextComposing();
         ((InputMethodManager) mContext.getSystemService(Context.INPUT_METHOD_SERVICE)).restartInput(this);
@@ -590,13 +817,40 @@ public abstract class FreeScrollingTextField extends View implements Document.Te
      * state is reset and the view is invalidated as a side-effect.
      */
     public void setDocumentProvider(DocumentProvider doc) {
+        hDoc.removeEditListener(mEditListener);
+        mSearchHighlights.clear();
         hDoc = doc;
+        hDoc.setMetrics(mLayout);
+        mLineWidths = new LineWidths(hDoc);
+        mRowCheckpoints = new RowCheckpoints(hDoc, mRowMeasurer);
+        mEditListener = new UiThreadEditListener(this, mSearchHighlights, mLineWidths,
+                mRowCheckpoints);
+        hDoc.addEditListener(mEditListener);
         resetView();
         mFieldController.cancelSpanning(); //stop existing lex threads
         mFieldController.determineSpans();
         invalidate();
     }
 
+    /**
+     * Highlights the given matches until they are replaced or cleared.
+     * Matches are kept in place while the document is edited, and the ones
+     * that an edit touches are dropped.
+     *
+     * @param offsets Start offsets of the matches, in ascending order, as in
+     *                FindThread.FindResults.foundOffsets
+     * @param lengths lengths[i] is the length of the match at offsets[i]
+     */
+    public void setSearchHighlights(int[] offsets, int[] lengths) {
+        mSearchHighlights.setMatches(offsets, lengths);
+        invalidate();
+    }
+
+    public void clearSearchHighlights() {
+        mSearchHighlights.clear();
+        invalidate();
+    }
+
     /**
      * Returns a DocumentProvider that references the same Document used by the
      * FreeScrollingTextField.
@@ -681,11 +935,13 @@ public abstract class FreeScrollingTextField extends View implements Document.Te
             mAutoCompletePanel.show();
         }
         super.onLayout(changed, left, top, right, bottom);
+        updateRowWidth();
     }
 
     @Override
     protected void onSizeChanged(int w, int h, int oldw, int oldh) {
         super.onSizeChanged(w, h, oldw, oldh);
+        updateRowWidth();
         if (hDoc.isWordWrap() && oldw != w)
             hDoc.analyzeWordWrap();
         mFieldController.updateCaretRow();
@@ -764,6 +1020,10 @@ public abstract class FreeScrollingTextField extends View implements Document.Te
 
     @Override
     protected void onDraw(Canvas canvas) {
+        if (mZoomFrame != null) {
+            drawZoomFrame(canvas);
+            return;
+        }
 
         canvas.save();
 
@@ -779,23 +1039,31 @@ public abstract class FreeScrollingTextField extends View implements Document.Te
         mNavMethod.onTextDrawComplete(canvas);
     }
 
+    private void drawZoomFrame(Canvas canvas) {
+        canvas.save();
+        canvas.translate(getScrollX(), getScrollY());
+        canvas.scale(mZoomScale, mZoomScale, mZoomFocusX, mZoomFocusY);
+        canvas.drawBitmap(mZoomFrame, 0, 0, mZoomFramePaint);
+        canvas.restore();
+    }
+
     private void realDraw(Canvas canvas) {
         // log("_leftOffset:" + mLeftOffset);
 
         int currRowNum = getBeginPaintRow(canvas);
-        xExtent = mLeftOffset;
         int currentIndex = hDoc.getRowOffset(currRowNum);
 
         if (currentIndex < 0) {
             return;
         }
-        int currLineNum = isWordWrap() ? hDoc.findLineNumber(currentIndex) + 1 : currRowNum + 1;
+        int currLineNum = hDoc.findLineNumber(currentIndex) + 1;
         int lastLineNum = 0;
         if (isShowLineNumbers) {
             mLeftOffset = (int) mLineNumPaint.measureText(String.valueOf(hDoc.getRowCount())) + mSpaceWidth * 3 / 2;
         } else {
             mLeftOffset = 0;
         }
+        updateRowWidth();
         int endRowNum = getEndPaintRow(canvas);
 
         int paintX = 0;
@@ -842,12 +1110,29 @@ public abstract class FreeScrollingTextField extends View implements Document.Te
         }
         hDoc.seekChar(currentIndex);//从currentIndex开始迭代
 
+        // only the matches from the first visible char on are looked at
+        int matchIndex = mSearchHighlights.findFirstEndingAfter(currentIndex);
+        int matchCount = mSearchHighlights.size();
+        int visibleRight = getScrollX() + getContentWidth();
+
         while (currRowNum <= endRowNum) {
 
             if (currRowNum > rowCount) {
                 break;
             }
             int rowLen = hDoc.getRowSize(currRowNum);
+            int rowOffset = hDoc.getRowOffset(currRowNum);
+            if (rowOffset >= 0 && rowOffset != currentIndex) {
+                // the rows before this one are folded
+                currentIndex = rowOffset;
+                currLineNum = hDoc.findLineNumber(currentIndex) + 1;
+                while (nextSpan != null && nextSpan.getFirst() <= currentIndex) {
+                    currSpan = nextSpan;
+                    nextSpan = (spanIndex < spans.size()) ? spans.get(spanIndex++) : null;
+                }
+                spanColor = mColorScheme.getTokenColor(currSpan.getSecond());
+                mTextPaint.setColor(spanColor);
+            }
 
             int padx = (int) (mLeftOffset - mLineNumPaint.measureText(currLineNum + "") - mSpaceWidth);
             if (isShowLineNumbers && currLineNum != lastLineNum) {
@@ -857,10 +1142,26 @@ public abstract class FreeScrollingTextField extends View implements Document.Te
             }
             paintX = mLeftOffset;
             int i = 0;
+            if (RowCheckpoints.isLongRow(rowLen)) {
+                // start at the last checkpoint left of the visible columns
+                mCharEmoji = 0;
+                Pair checkpoint = mRowCheckpoints.findByX(currentIndex, rowLen,
+                        getScrollX() - mLeftOffset);
+                i = checkpoint.first;
+                currentIndex += i;
+                paintX += checkpoint.second;
+            }
+            boolean isRowCut = false;
 
             while (i < rowLen) {
+                if (paintX > visibleRight) {
+                    // the rest of the row is right of the visible columns
+                    currentIndex += rowLen - i;
+                    isRowCut = true;
+                    break;
+                }
                 // check if formatting changes are needed
-                if (reachedNextSpan(currentIndex, nextSpan)) {
+                while (reachedNextSpan(currentIndex, nextSpan)) {
                     currSpan = nextSpan;
                     spanColor = mColorScheme.getTokenColor(currSpan.getSecond());
                     mTextPaint.setColor(spanColor);
@@ -881,27 +1182,37 @@ public abstract class FreeScrollingTextField extends View implements Document.Te
                     mCaretSpan = currSpan;
                 }
 
+                while (matchIndex < matchCount
+                        && mSearchHighlights.getEnd(matchIndex) <= currentIndex) {
+                    ++matchIndex;
+                }
+
                 char c = hDoc.charAt(currentIndex);
                 if (mFieldController.inSelectionRange(currentIndex)) {
                     paintX += drawSelectedText(canvas, c, paintX, paintY);
+                } else if (matchIndex < matchCount
+                        && mSearchHighlights.getStart(matchIndex) <= currentIndex) {
+                    paintX += drawSearchHighlightedText(canvas, c, paintX, paintY);
                 } else {
                     paintX += drawChar(canvas, c, paintX, paintY);
                 }
                 ++currentIndex;
                 ++i;
             }
-            if (hDoc.charAt(currentIndex - 1) == Language.NEWLINE)
+            if (!isWordWrap() && !isRowCut && currLineNum <= mLineWidths.size()) {
+                // the row just drawn is a whole line
+                mLineWidths.setWidth(currLineNum - 1, paintX - mLeftOffset);
+            }
+
+            if (hDoc.charAt(currentIndex - 1) == Language.NEWLINE) {
                 ++currLineNum;
+                if (hDoc.getFoldState(currRowNum) == Document.FOLD_COLLAPSED) {
+                    drawFoldMarker(canvas, paintX, paintY);
+                }
+            }
 
             paintY += rowHeight();
 
-            if (paintX > xExtent) {
-                // record widest line seen so far
-                xExtent = paintX;
-            }
-            if (paintX > mLineMaxWidth)
-                mLineMaxWidth = paintX;
-
             ++currRowNum;
 
         }
@@ -930,6 +1241,16 @@ public abstract class FreeScrollingTextField extends View implements Document.Te
         }
     }
 
+    /**
+     * Marks the end of a line whose following lines are folded
+     */
+    private void drawFoldMarker(Canvas canvas, int paintX, int paintY) {
+        int originalColor = mTextPaint.getColor();
+        mTextPaint.setColor(mColorScheme.getColor(ColorScheme.Colorable.NON_PRINTING_GLYPH));
+        canvas.drawText(GLYPH_FOLDED, 0, GLYPH_FOLDED.length(), paintX, paintY, mTextPaint);
+        mTextPaint.setColor(originalColor);
+    }
+
     // 绘制文本
     //draw smiles, tab, whitespace
     private int drawChar(Canvas canvas, char c, int paintX, int paintY) {
@@ -937,7 +1258,11 @@ public abstract class FreeScrollingTextField extends View implements Document.Te
         int originalColor = mTextPaint.getColor();
         int charWidth = getAdvance(c, paintX);
 
-        if (paintX > getScrollX() || paintX < (getScrollX() + getContentWidth()))
+        boolean isVisible = paintX + charWidth >= getScrollX()
+                && paintX <= getScrollX() + getContentWidth();
+        // the first char of an emoji is kept for the second one, even if
+        // only the second one is visible
+        if (isVisible || c == 0xd83c || c == 0xd83d)
             switch (c) {
                 case 0xd83c:
                 case 0xd83d:
@@ -975,11 +1300,13 @@ public abstract class FreeScrollingTextField extends View implements Document.Te
                         canvas.drawText(new char[]{mCharEmoji, c}, 0, 2, paintX, paintY, mTextPaint);
                         mCharEmoji = 0;
                     } else {
-                        char[] ca = {c};
-                        canvas.drawText(ca, 0, 1, paintX, paintY, mTextPaint);
+                        mCharBuffer[0] = c;
+                        canvas.drawText(mCharBuffer, 0, 1, paintX, paintY, mTextPaint);
                     }
                     break;
             }
+        else
+            mCharEmoji = 0;
 
         return charWidth;
     }
@@ -994,6 +1321,18 @@ public abstract class FreeScrollingTextField extends View implements Document.Te
                 mTextPaint);
     }
 
+    private int drawSearchHighlightedText(Canvas canvas, char c, int paintX, int paintY) {
+        int oldColor = mTextPaint.getColor();
+        int advance = getAdvance(c, paintX);
+
+        mTextPaint.setColor(mColorScheme.getColor(ColorScheme.Colorable.SEARCH_HIGHLIGHT));
+        drawTextBackground(canvas, paintX, paintY, advance);
+
+        mTextPaint.setColor(oldColor);
+        drawChar(canvas, c, paintX, paintY);
+        return advance;
+    }
+
     private int drawSelectedText(Canvas canvas, char c, int paintX, int paintY) {
         int oldColor = mTextPaint.getColor();
         int advance = getAdvance(c);
@@ -1115,18 +1454,33 @@ public abstract class FreeScrollingTextField extends View implements Document.Te
         }
     }
 
-    @Override
+    /**
+     * Returns the engine that measures the text of this view, for documents
+     * to be displayed in it
+     */
+    public LayoutEngine getLayoutEngine() {
+        return mLayout;
+    }
+
     final public int getRowWidth() {
         return getContentWidth() - mLeftOffset;
     }
 
+    /**
+     * Lets mLayout know the row width, which changes with the size of the
+     * view and the width of the line number gutter
+     */
+    private void updateRowWidth() {
+        mLayout.setRowWidth(getRowWidth());
+    }
+
     /**
      * Get line Length
      *
      * @return Length of single line
      */
     public int getLineLength() {
-        int lineLength = Math.max(getWidth(), mLineMaxWidth + mLeftOffset);
+        int lineLength = Math.max(getWidth(), mLineWidths.getMaxWidth() + 2 * mLeftOffset);
         return lineLength;
     }
 
@@ -1139,7 +1493,6 @@ public abstract class FreeScrollingTextField extends View implements Document.Te
      * @param c Character to measure
      * @return Advance of character, in pixels
      */
-    @Override
     public int getAdvance(char c) {
         return getAdvance(c, 0);
     }
@@ -1166,8 +1519,7 @@ public abstract class FreeScrollingTextField extends View implements Document.Te
                     char[] ca = {mCharEmoji, c};
                     advance = (int) mTextPaint.measureText(ca, 0, 2);
                 } else {
-                    char[] ca = {c};
-                    advance = (int) mTextPaint.measureText(ca, 0, 1);
+                    advance = mLayout.getGlyphAdvance(c);
                 }
                 break;
         }
@@ -1179,43 +1531,138 @@ public abstract class FreeScrollingTextField extends View implements Document.Te
     //------------------- Scrolling and touch -----------------------------
 
     public int getCharAdvance(char c) {
-        int advance;
-        char[] ca = {c};
-        advance = (int) mTextPaint.measureText(ca, 0, 1);
-        return advance;
+        return mLayout.getGlyphAdvance(c);
     }
 
-    protected int getSpaceAdvance() {
-        if (isShowNonPrinting) {
-            return (int) mTextPaint.measureText(Language.GLYPH_SPACE,
-                    0, Language.GLYPH_SPACE.length());
-        } else {
-            return mSpaceWidth;
+    /**
+     * Remeasures the widths that depend on the typeface and text size of
+     * mTextPaint. Must be called whenever either of them changes.
+     */
+    private void onFontChanged() {
+        mLayout.setMeasurer(new PaintGlyphMeasurer(mTextPaint));
+        mAlphaWidth = mLayout.getGlyphAdvance('a');
+        mSpaceWidth = mLayout.getGlyphAdvance(' ');
+        updateMonospace();
+        mLineWidths.invalidateAll();
+        mRowCheckpoints.invalidateAll();
+    }
+
+    private void updateMonospace() {
+        mMonoAdvance = mLayout.getFixedAdvance();
+    }
+
+    private static boolean isMonoChar(char c) {
+        return c >= 0x20 && c < 0x7F;
+    }
+
+    /**
+     * Column of the char at end of rowText in monospace layout, where the
+     * char at column n starts at mLeftOffset + n * mMonoAdvance
+     *
+     * @return The column, or -1 if a char before end is not laid out by
+     * columns or monospace layout is off
+     */
+    private int monoColumn(String rowText, int end) {
+        if (mMonoAdvance == 0) {
+            return -1;
+        }
+        int column = 0;
+        for (int i = 0; i < end; ++i) {
+            char c = rowText.charAt(i);
+            if (c == Language.TAB) {
+                column += monoTabColumns(column);
+            } else if (isMonoChar(c)) {
+                ++column;
+            } else {
+                return -1;
+            }
         }
+        return column;
     }
 
-    protected int getEOLAdvance() {
-        if (isShowNonPrinting) {
-            return (int) mTextPaint.measureText(Language.GLYPH_NEWLINE,
-                    0, Language.GLYPH_NEWLINE.length());
-        } else {
-            return (int) (EMPTY_CARET_WIDTH_SCALE * mTextPaint.measureText(" ", 0, 1));
+    /**
+     * The x-coordinates of the left and right edges of the char at index of
+     * rowText in monospace layout, or null if it cannot be laid out by columns
+     */
+    private Pair getMonoCharExtent(String rowText, int index) {
+        if (index >= rowText.length()) {
+            return null;
+        }
+        int column = monoColumn(rowText, index);
+        if (column < 0) {
+            return null;
+        }
+        int left = mLeftOffset + column * mMonoAdvance;
+        char c = rowText.charAt(index);
+        if (isMonoChar(c)) {
+            return new Pair(left, left + mMonoAdvance);
+        } else if (c == Language.TAB) {
+            return new Pair(left, left + monoTabColumns(column) * mMonoAdvance);
+        } else if (c == Language.NEWLINE || c == Language.EOF) {
+            return new Pair(left, left + getEOLAdvance());
         }
+        return null;
     }
 
-    protected int getTabAdvance() {
-        if (isShowNonPrinting) {
-            return mTabLength * (int) mTextPaint.measureText(Language.GLYPH_SPACE,
-                    0, Language.GLYPH_SPACE.length());
-        } else {
-            return mTabLength * mSpaceWidth;
+    /**
+     * Finds the first char of rowText whose right edge is at or after x in
+     * monospace layout, for a row starting at left, like the measuring loops
+     * of coordToCharIndex() and coordToCharIndexStrict() do
+     *
+     * @return The index of the char, rowText.length() if there is none, or
+     * -1 if the row cannot be laid out by columns
+     */
+    private int monoIndexAt(String rowText, int left, int x) {
+        // tab stops are only columns for rows starting at mLeftOffset
+        if (mMonoAdvance == 0
+                || (left != mLeftOffset && rowText.indexOf(Language.TAB) >= 0)) {
+            return -1;
         }
+        int len = rowText.length();
+        int column = 0;
+        for (int i = 0; i < len; ++i) {
+            char c = rowText.charAt(i);
+            int right;
+            if (isMonoChar(c)) {
+                ++column;
+                right = left + column * mMonoAdvance;
+            } else if (c == Language.TAB) {
+                column += monoTabColumns(column);
+                right = left + column * mMonoAdvance;
+            } else if (c == Language.NEWLINE || c == Language.EOF) {
+                right = left + column * mMonoAdvance + getEOLAdvance();
+            } else {
+                return -1;
+            }
+            if (right >= x) {
+                return i;
+            }
+        }
+        return len;
+    }
+
+    /**
+     * Columns taken by a tab at column, matching getTabAdvance(int)
+     */
+    private int monoTabColumns(int column) {
+        return isShowNonPrinting ? mTabLength : mTabLength - column % mTabLength;
+    }
+
+    protected int getSpaceAdvance() {
+        return mLayout.getSpaceAdvance();
+    }
+
+    protected int getEOLAdvance() {
+        return mLayout.getEOLAdvance();
+    }
+
+    protected int getTabAdvance() {
+        return mLayout.getTabAdvance();
     }
 
     protected int getTabAdvance(int x) {
         if (isShowNonPrinting) {
-            return mTabLength * (int) mTextPaint.measureText(Language.GLYPH_SPACE,
-                    0, Language.GLYPH_SPACE.length());
+            return mLayout.getTabAdvance();
         } else {
             int i = (x - mLeftOffset) / mSpaceWidth % mTabLength;
             return (mTabLength - i) * mSpaceWidth;
@@ -1377,10 +1824,27 @@ public abstract class FreeScrollingTextField extends View implements Document.Te
     protected Pair getCharExtent(int charOffset) {
         int row = hDoc.findRowNumber(charOffset);
         int rowOffset = hDoc.getRowOffset(row);
+        int rowLength = hDoc.getRowSize(row);
         int left = mLeftOffset;
         int right = mLeftOffset;
         boolean isEmoji = false;
-        String rowText = hDoc.getRow(row);
+        String rowText;
+        if (RowCheckpoints.isLongRow(rowLength)) {
+            // measure from the last checkpoint before charOffset
+            Pair checkpoint = mRowCheckpoints.findByIndex(rowOffset, rowLength,
+                    charOffset - rowOffset);
+            right += checkpoint.second;
+            rowOffset += checkpoint.first;
+            // the char after charOffset completes an emoji
+            rowText = hDoc.subSequence(rowOffset,
+                    Math.min(charOffset - rowOffset + 2, rowLength - checkpoint.first)).toString();
+        } else {
+            rowText = hDoc.getRow(row);
+            Pair monoExtent = getMonoCharExtent(rowText, charOffset - rowOffset);
+            if (monoExtent != null) {
+                return monoExtent;
+            }
+        }
         int i = 0;
 
         int len = rowText.length();
@@ -1478,9 +1942,23 @@ public abstract class FreeScrollingTextField extends View implements Document.Te
             return charIndex; // coordinate is outside, to the left of view
         }
 
-        String rowText = hDoc.getRow(row);
-
         int extent = mLeftOffset;
+        String rowText;
+        int rowLength = hDoc.getRowSize(row);
+        if (RowCheckpoints.isLongRow(rowLength)) {
+            // the char at x is within an interval after the checkpoint
+            Pair checkpoint = mRowCheckpoints.findByX(charIndex, rowLength, x - mLeftOffset);
+            charIndex += checkpoint.first;
+            extent += checkpoint.second;
+            rowText = getCheckpointInterval(charIndex, rowLength - checkpoint.first);
+        } else {
+            rowText = hDoc.getRow(row);
+            int monoIndex = monoIndexAt(rowText, mLeftOffset, x);
+            if (monoIndex >= 0) {
+                return charIndex + Math.min(monoIndex, rowText.length() - 1);
+            }
+        }
+
         int i = 0;
         boolean isEmoji = false;
 
@@ -1548,9 +2026,23 @@ public abstract class FreeScrollingTextField extends View implements Document.Te
             return -1;
         }
 
-        String rowText = hDoc.getRow(row);
-
         int extent = 0;
+        String rowText;
+        int rowLength = hDoc.getRowSize(row);
+        if (RowCheckpoints.isLongRow(rowLength)) {
+            // the char at x is within an interval after the checkpoint
+            Pair checkpoint = mRowCheckpoints.findByX(charIndex, rowLength, x);
+            charIndex += checkpoint.first;
+            extent += checkpoint.second;
+            rowText = getCheckpointInterval(charIndex, rowLength - checkpoint.first);
+        } else {
+            rowText = hDoc.getRow(row);
+            int monoIndex = monoIndexAt(rowText, 0, x);
+            if (monoIndex >= 0) {
+                return (monoIndex < rowText.length()) ? charIndex + monoIndex : -1;
+            }
+        }
+
         int i = 0;
         boolean isEmoji = false;
 
@@ -1598,6 +2090,17 @@ public abstract class FreeScrollingTextField extends View implements Document.Te
         return -1;
     }
 
+    /**
+     * The chars from a checkpoint of a long row found by x, up to and
+     * including the char that completes an emoji at the next checkpoint
+     *
+     * @param charsLeft The number of chars of the row from charOffset on
+     */
+    private String getCheckpointInterval(int charOffset, int charsLeft) {
+        int count = Math.min(RowCheckpoints.CHECKPOINT_INTERVAL + 1, charsLeft);
+        return hDoc.subSequence(charOffset, count).toString();
+    }
+
     /**
      * Not private to allow access by TouchNavigationMethod
      *
@@ -1608,7 +2111,8 @@ public abstract class FreeScrollingTextField extends View implements Document.Te
         if (isWordWrap())
             return mLeftOffset - mSpaceWidth / 2;//0;
         else
-            return Math.max(0, xExtent - getContentWidth() + mNavMethod.getCaretBloat().right + mAlphaWidth);
+            return Math.max(0, mLeftOffset + mLineWidths.getMaxWidth() - getContentWidth()
+                    + mNavMethod.getCaretBloat().right + mAlphaWidth);
     }
 
     /**
@@ -1622,6 +2126,139 @@ public abstract class FreeScrollingTextField extends View implements Document.Te
         return Math.max(0, hDoc.getRowCount() * rowHeight() - getContentHeight() / 2 + mNavMethod.getCaretBloat().bottom);
     }
 
+    /**
+     * Measures the rows about to be drawn if their word wrap was only
+     * estimated, and schedules measuring the rest of the document
+     */
+    private void refineVisibleRows() {
+        if (hDoc.isWordWrapExact()) {
+            return;
+        }
+        int anchorRow = getScrollY() / rowHeight();
+        int anchorOffset = hDoc.getRowOffset(anchorRow);
+        hDoc.refineWordWrap(anchorRow, anchorRow + getNumVisibleRows());
+        if (mScroller.isFinished()) {
+            restoreScrollAnchor(anchorRow, anchorOffset);
+        }
+        scheduleWordWrapRefinement(0);
+        startParallelWordWrap();
+    }
+
+    /**
+     * Word wraps the whole document on a background thread, once for every
+     * time its word wrap is analyzed, and again if the document was edited
+     * before the rows were installed. Until then, mRefineWordWrapTask
+     * measures the document a slice at a time, and it measures any rows left
+     * as estimates afterwards.
+     */
+    private void startParallelWordWrap() {
+        if (mParallelWordWrap != null) {
+            if (mParallelWordWrap.isForCurrentWordWrap()
+                    && (!mParallelWordWrap.isFinished() || mParallelWordWrap.isForCurrentText())) {
+                return;
+            }
+            mParallelWordWrap.cancel();
+        }
+        final ParallelWordWrap wrap = new ParallelWordWrap(hDoc, mLayout.snapshot());
+        mParallelWordWrap = wrap;
+        wrap.start(new Runnable() {
+            @Override
+            public void run() {
+                post(new Runnable() {
+                    @Override
+                    public void run() {
+                        applyParallelWordWrap(wrap);
+                    }
+                });
+            }
+        });
+    }
+
+    private void applyParallelWordWrap(ParallelWordWrap wrap) {
+        if (wrap != mParallelWordWrap || wrap.isCancelled()) {
+            return;
+        }
+        int anchorRow = getScrollY() / rowHeight();
+        int anchorOffset = hDoc.getRowOffset(anchorRow);
+        if (wrap.apply()) {
+            if (mScroller.isFinished()) {
+                restoreScrollAnchor(anchorRow, anchorOffset);
+            }
+            invalidate();
+        } else if (!hDoc.isWordWrapExact()) {
+            // the document was edited while the rows were computed
+            startParallelWordWrap();
+        }
+    }
+
+    private void scheduleLineMeasuring() {
+        if (!isMeasureLinesPosted) {
+            isMeasureLinesPosted = true;
+            post(mMeasureLinesTask);
+        }
+    }
+
+    /**
+     * Width of a line drawn from mLeftOffset, the same as realDraw() gives
+     * the line when word wrap is off
+     */
+    private int measureLineWidth(String lineText) {
+        int last = lineText.length() - 1;
+        if (last >= 0) {
+            char c = lineText.charAt(last);
+            int column = monoColumn(lineText, last);
+            if (column >= 0 && (c == Language.NEWLINE || c == Language.EOF)) {
+                return column * mMonoAdvance + getEOLAdvance();
+            }
+        }
+
+        return measureChars(lineText.toCharArray(), 0, last + 1, mLeftOffset) - mLeftOffset;
+    }
+
+    /**
+     * Measures the chars of text from start (inclusive) to end (exclusive)
+     * the same way realDraw() advances over them, starting at x
+     *
+     * @return The x-coordinate after the chars
+     */
+    private int measureChars(char[] text, int start, int end, int x) {
+        char previous = 0;
+        for (int i = start; i < end; ++i) {
+            char c = text[i];
+            if (previous == 0xd83c || previous == 0xd83d) {
+                // drawn as a pair with the char before it, like drawChar() does
+                x += (int) mTextPaint.measureText(new char[]{previous, c}, 0, 2);
+            } else {
+                x += getAdvance(c, x);
+            }
+            previous = c;
+        }
+        return x;
+    }
+
+    private void scheduleWordWrapRefinement(long delay) {
+        if (!isRefineWordWrapPosted) {
+            isRefineWordWrapPosted = true;
+            postDelayed(mRefineWordWrapTask, delay);
+        }
+    }
+
+    /**
+     * Scrolls so that the char at anchorOffset, which was on anchorRow,
+     * stays where it was after rows before it changed
+     */
+    private void restoreScrollAnchor(int anchorRow, int anchorOffset) {
+        mFieldController.updateCaretRow();
+        if (anchorOffset < 0) {
+            return;
+        }
+        int row = hDoc.findRowNumber(anchorOffset);
+        if (row >= 0 && row != anchorRow) {
+            scrollTo(getScrollX(), getScrollY() + (row - anchorRow) * rowHeight());
+            invalidate();
+        }
+    }
+
     @Override
     protected int computeVerticalScrollOffset() {
         return getScrollY();
@@ -1645,6 +2282,11 @@ public abstract class FreeScrollingTextField extends View implements Document.Te
             ViewCompat.postInvalidateOnAnimation(this);
             postInvalidate();
         }
+        // called before every draw, once the scroll position is final
+        refineVisibleRows();
+        if (!isWordWrap() && !mLineWidths.isExact()) {
+            scheduleLineMeasuring();
+        }
     }
 
     public final void smoothScrollBy(int dx, int dy) {
@@ -1849,6 +2491,29 @@ public abstract class FreeScrollingTextField extends View implements Document.Te
         mFieldController.moveCaretUp();
     }
 
+    /**
+     * Folds the lines after the line of row if they form a fold region, or
+     * unfolds them if they are folded. A caret inside the folded lines is
+     * moved to the end of the line of row.
+     *
+     * @return Whether a fold region starts after the line of row
+     */
+    public boolean toggleFold(int row) {
+        if (!hDoc.toggleFold(row)) {
+            return false;
+        }
+        int caretRow = hDoc.findRowNumber(mCaretPosition);
+        int caretRowEnd = hDoc.getRowOffset(caretRow) + hDoc.getRowSize(caretRow);
+        if (mCaretPosition >= caretRowEnd) {
+            // the caret was folded
+            mFieldController.moveCaret(caretRowEnd - 1);
+        } else {
+            mFieldController.updateCaretRow();
+        }
+        invalidate();
+        return true;
+    }
+
     /**
      * Scrolls the caret into view if it is not on screen
      */
@@ -1978,7 +2643,7 @@ public abstract class FreeScrollingTextField extends View implements Document.Te
     }
 
     private boolean reachedNextSpan(int charIndex, Pair span) {
-        return span != null && (charIndex == span.first);
+        return span != null && (charIndex >= span.first);
     }
 
     public void respan() {
@@ -1999,6 +2664,7 @@ public abstract class FreeScrollingTextField extends View implements Document.Te
         italicTypeface = Typeface.create(typeface, Typeface.ITALIC);
         mTextPaint.setTypeface(typeface);
         mLineNumPaint.setTypeface(typeface);
+        onFontChanged();
         if (hDoc.isWordWrap())
             hDoc.analyzeWordWrap();
         mFieldController.updateCaretRow();
@@ -2015,6 +2681,33 @@ public abstract class FreeScrollingTextField extends View implements Document.Te
         boldTypeface = typeface;
     }
 
+    public Language getLanguage() {
+        return hDoc.getLanguage();
+    }
+
+    /**
+     * Returns the identifiers found in the current document the last time
+     * it was analyzed for spans
+     */
+    public IdentifierIndex getIdentifiers() {
+        return hDoc.getIdentifiers();
+    }
+
+    /**
+     * Sets the programming language syntax of the current document and
+     * re-analyzes it for spans
+     */
+    public void setLanguage(Language language) {
+        hDoc.setLanguage(language);
+        if (language.isProgLang()) {
+            respan();
+        } else {
+            cancelSpanning();
+            hDoc.clearSpans();
+            invalidate();
+        }
+    }
+
     public boolean isWordWrap() {
         return hDoc.isWordWrap();
     }
@@ -2022,7 +2715,6 @@ public abstract class FreeScrollingTextField extends View implements Document.Te
     public void setWordWrap(boolean enable) {
         hDoc.setWordWrap(enable);
         if (enable) {
-            xExtent = 0;
             scrollTo(0, 0);
         }
         mFieldController.updateCaretRow();
@@ -2047,10 +2739,10 @@ public abstract class FreeScrollingTextField extends View implements Document.Te
         int newSize = (int) (factor * BASE_TEXT_SIZE_PIXELS);
         mTextPaint.setTextSize(newSize);
         mLineNumPaint.setTextSize(newSize);
+        onFontChanged();
         if (hDoc.isWordWrap())
             hDoc.analyzeWordWrap();
         mFieldController.updateCaretRow();
-        mAlphaWidth = (int) mTextPaint.measureText("a");
         //if(!makeCharVisible(mCaretPosition)){
         invalidate();
         //}
@@ -2067,6 +2759,9 @@ public abstract class FreeScrollingTextField extends View implements Document.Te
             return;
         }
         mTabLength = spaceCount;
+        mLayout.setTabLength(spaceCount);
+        mLineWidths.invalidateAll();
+        mRowCheckpoints.invalidateAll();
         if (hDoc.isWordWrap())
             hDoc.analyzeWordWrap();
         mFieldController.updateCaretRow();
@@ -2113,6 +2808,10 @@ public abstract class FreeScrollingTextField extends View implements Document.Te
     public void setNonPrintingCharVisibility(boolean enable) {
         if (enable ^ isShowNonPrinting) {
             isShowNonPrinting = enable;
+            mLayout.setShowNonPrinting(enable);
+            updateMonospace();
+            mLineWidths.invalidateAll();
+            mRowCheckpoints.invalidateAll();
             if (hDoc.isWordWrap())
                 hDoc.analyzeWordWrap();
             mFieldController.updateCaretRow();
@@ -0,0 +1,50 @@
+/*
+ * Copyright (c) 2013 Tah Wei Hoon.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Apache License Version 2.0,
+ * with full text available at http://www.apache.org/licenses/LICENSE-2.0.html
+ *
+ * This software is provided "as is". Use at your own risk.
+ */
+package com.mrikso.codeeditor.view;
+
+import android.graphics.Paint;
+
+import com.mrikso.codeeditor.util.LayoutEngine;
+
+/**
+ * Measures glyphs for a LayoutEngine with a copy of the Paint text is drawn
+ * with, rounding down to whole pixels like Paint.measureText() results are
+ * everywhere else in the text field.
+ *
+ * The copy is taken when the measurer is created, so a new measurer must be
+ * created whenever the typeface or text size of the Paint changes, and the
+ * view can keep changing the colors of its Paint while the engine measures
+ * on other threads.
+ *
+ * All the chars given are measured with one call to Paint.getTextWidths().
+ * Each char is followed by a space in the measured run, so that neighboring
+ * chars are not shaped together and every advance is that of the char on
+ * its own.
+ */
+class PaintGlyphMeasurer implements LayoutEngine.GlyphMeasurer {
+    private final Paint _paint;
+
+    PaintGlyphMeasurer(Paint paint) {
+        _paint = new Paint(paint);
+    }
+
+    @Override
+    public void measure(char[] chars, int[] advances) {
+        char[] run = new char[2 * chars.length];
+        float[] widths = new float[run.length];
+        for (int i = 0; i < chars.length; ++i) {
+            run[2 * i] = chars[i];
+            run[2 * i + 1] = ' ';
+        }
+        _paint.getTextWidths(run, 0, run.length, widths);
+        for (int i = 0; i < chars.length; ++i) {
+            advances[i] = (int) widths[2 * i];
+        }
+    }
+}
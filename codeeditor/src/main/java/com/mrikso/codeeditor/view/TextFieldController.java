@@ -28,8 +28,8 @@ public class TextFieldController implements Lexer.LexCallback {
 
     /**
      * Analyze the text for programming language keywords and redraws the
-     * text view when done. The global programming language used is set with
-     * the static method Lexer.setLanguage(Language)
+     * text view when done. The programming language used is the one set
+     * on the document with DocumentProvider.setLanguage(Language)
      * <p>
      * Does nothing if the Lexer language is not a programming language
      */
@@ -43,10 +43,15 @@ public class TextFieldController implements Lexer.LexCallback {
 
     @Override
     //This is usually called from a non-UI thread
-    public void lexDone(final List<Pair> results) {
+    public void lexDone(final List<Pair> results, final int version) {
         mTextField.post(new Runnable() {
             @Override
             public void run() {
+                // the text was edited after the spans were computed and a
+                // newer lex request is pending; don't paint mismatched spans
+                if (version != mTextField.hDoc.getVersion()) {
+                    return;
+                }
                 mTextField.hDoc.setSpans(results);
                 mTextField.invalidate();
             }
@@ -191,17 +196,17 @@ public class TextFieldController implements Lexer.LexCallback {
             int currRow = mTextField.mCaretRow;
             int newRow = currRow + 1;
             int currColumn = mTextField.getColumn(currCaret);
-            int currRowLength = mTextField.hDoc.getRowSize(currRow);
+            // the new row does not follow the old one if rows are folded between them
+            int newRowOffset = mTextField.hDoc.getRowOffset(newRow);
             int newRowLength = mTextField.hDoc.getRowSize(newRow);
 
             if (currColumn < newRowLength) {
                 // Position at the same column as old row.
-                mTextField.mCaretPosition += currRowLength;
+                mTextField.mCaretPosition = newRowOffset + currColumn;
             } else {
                 // Column does not exist in the new row (new row is too short).
                 // Position at end of new row instead.
-                mTextField.mCaretPosition +=
-                        currRowLength - currColumn + newRowLength - 1;
+                mTextField.mCaretPosition = newRowOffset + newRowLength - 1;
             }
             ++mTextField.mCaretRow;
 
@@ -222,15 +227,16 @@ public class TextFieldController implements Lexer.LexCallback {
             int currRow = mTextField.mCaretRow;
             int newRow = currRow - 1;
             int currColumn = mTextField.getColumn(currCaret);
+            int newRowOffset = mTextField.hDoc.getRowOffset(newRow);
             int newRowLength = mTextField.hDoc.getRowSize(newRow);
 
             if (currColumn < newRowLength) {
                 // Position at the same column as old row.
-                mTextField.mCaretPosition -= newRowLength;
+                mTextField.mCaretPosition = newRowOffset + currColumn;
             } else {
                 // Column does not exist in the new row (new row is too short).
                 // Position at end of new row instead.
-                mTextField.mCaretPosition -= (currColumn + 1);
+                mTextField.mCaretPosition = newRowOffset + newRowLength - 1;
             }
             --mTextField.mCaretRow;
 
@@ -315,6 +321,10 @@ public class TextFieldController implements Lexer.LexCallback {
      * mTextFiledl.mCaretPosition, in order to to recalculate the new row the caret is on.
      */
     void updateCaretRow() {
+        if (mTextField.hDoc.expandFoldsAt(mTextField.mCaretPosition)) {
+            // the caret was moved into folded rows
+            mTextField.invalidate();
+        }
         int newRow = mTextField.hDoc.findRowNumber(mTextField.mCaretPosition);
         if (mTextField.mCaretRow != newRow) {
             mTextField.mCaretRow = newRow;
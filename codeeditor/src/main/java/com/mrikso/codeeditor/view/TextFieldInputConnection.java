@@ -6,7 +6,6 @@ import android.view.inputmethod.BaseInputConnection;
 
 import com.mrikso.codeeditor.lang.Language;
 import com.mrikso.codeeditor.util.DLog;
-import com.mrikso.codeeditor.util.Lexer;
 
 import static com.mrikso.codeeditor.util.DLog.log;
 
@@ -192,7 +191,7 @@ public class TextFieldInputConnection extends BaseInputConnection {
         if ((reqModes & InputType.TYPE_TEXT_FLAG_CAP_WORDS)
                 == InputType.TYPE_TEXT_FLAG_CAP_WORDS) {
             int prevChar = mCaretPosition - 1;
-            if (prevChar < 0 || Lexer.getLanguage().isWhitespace(textField.hDoc.charAt(prevChar))) {
+            if (prevChar < 0 || textField.hDoc.getLanguage().isWhitespace(textField.hDoc.charAt(prevChar))) {
                 capsMode |= InputType.TYPE_TEXT_FLAG_CAP_WORDS;
 
                 //set CAP_SENTENCES if client is interested in it
@@ -208,7 +207,7 @@ public class TextFieldInputConnection extends BaseInputConnection {
         // Android bug? Therefore, we assume TYPE_TEXT_FLAG_CAP_SENTENCES
         // is always set to be on the safe side.
         else {
-            Language lang = Lexer.getLanguage();
+            Language lang = textField.hDoc.getLanguage();
 
             int prevChar = mCaretPosition - 1;
             int whitespaceCount = 0;
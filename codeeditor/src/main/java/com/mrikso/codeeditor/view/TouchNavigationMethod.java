@@ -32,7 +32,7 @@ public class TouchNavigationMethod extends GestureDetector.SimpleOnGestureListen
     protected FreeScrollingTextField mTextField;
     protected boolean isCaretTouched = false;
     private GestureDetector mGestureDetector;
-    private float lastDist, lastSize;
+    private float lastDist;
     private float lastX, lastY;
     private int fling;
 
@@ -84,6 +84,11 @@ public class TouchNavigationMethod extends GestureDetector.SimpleOnGestureListen
     public boolean onSingleTapUp(MotionEvent e) {
         int x = screenToViewX((int) e.getX());
         int y = screenToViewY((int) e.getY());
+        if (mTextField.isShowLineNumbers() && x < mTextField.getLeftOffset()
+                && mTextField.toggleFold(y / mTextField.rowHeight())) {
+            // tapped the line number of a line that starts a fold region
+            return true;
+        }
         int charOffset = mTextField.coordToCharIndex(x, y);
 
         if (mTextField.isSelectText()) {
@@ -243,19 +248,18 @@ public class TouchNavigationMethod extends GestureDetector.SimpleOnGestureListen
                     lastDist = (float) Math.sqrt(x * x + y * y);
                     lastX = (e.getX(0) + e.getX(1)) / 2;
                     lastY = (e.getY(0) + e.getY(1)) / 2;
-                    lastSize = mTextField.getTextSize();
+                    // laid out again only once the fingers are lifted
+                    mTextField.beginZoom(lastX, lastY);
                 }
 
                 float dist = spacing(e);
                 if (lastDist != 0) {
-                    mTextField.setTextSize((int) (lastSize * (dist / lastDist)));
-                    //mTextField.scrollBy(0,(int)(lastY-lastY*(mTextField.getTextSize() / lastSize)));
+                    mTextField.zoomBy(dist / lastDist);
                 }
-                mTextField.setTextSize((int)(mTextField.getTextSize() * dist / lastDist));
-                //lastDist = dist;
                 return true;
             }
         }
+        mTextField.endZoom();
         lastDist = 0;
         return false;
     }
@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2013 Tah Wei Hoon.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Apache License Version 2.0,
+ * with full text available at http://www.apache.org/licenses/LICENSE-2.0.html
+ *
+ * This software is provided "as is". Use at your own risk.
+ */
+package com.mrikso.codeeditor.view;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.view.View;
+
+import com.mrikso.codeeditor.util.TextBuffer;
+
+/**
+ * Passes the edits of a document on to listeners that are only used on the
+ * UI thread, like the caches of the text field.
+ *
+ * Edits made on the UI thread are passed on at once. Edits made on other
+ * threads, as by a replace all of FindThread, are passed on later on the UI
+ * thread as a reset, since the listeners may read the document, which may
+ * have changed again by then. Edits on the UI thread while such a reset is
+ * pending are dropped, as the reset covers them. The view is redrawn after
+ * such a reset.
+ */
+class UiThreadEditListener implements TextBuffer.EditListener {
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final View mView;
+    private final TextBuffer.EditListener[] mListeners;
+    private volatile boolean isResetPending = false;
+
+    private final Runnable mResetTask = new Runnable() {
+        @Override
+        public void run() {
+            isResetPending = false;
+            for (TextBuffer.EditListener listener : mListeners) {
+                listener.onReset();
+            }
+            mView.invalidate();
+        }
+    };
+
+    UiThreadEditListener(View view, TextBuffer.EditListener... listeners) {
+        mView = view;
+        mListeners = listeners;
+    }
+
+    @Override
+    public void onInsert(int charOffset, int length) {
+        if (deferIfNotUiThread()) {
+            return;
+        }
+        for (TextBuffer.EditListener listener : mListeners) {
+            listener.onInsert(charOffset, length);
+        }
+    }
+
+    @Override
+    public void onDelete(int charOffset, int length) {
+        if (deferIfNotUiThread()) {
+            return;
+        }
+        for (TextBuffer.EditListener listener : mListeners) {
+            listener.onDelete(charOffset, length);
+        }
+    }
+
+    @Override
+    public void onReset() {
+        if (deferIfNotUiThread()) {
+            return;
+        }
+        for (TextBuffer.EditListener listener : mListeners) {
+            listener.onReset();
+        }
+    }
+
+    /**
+     * @return Whether the edit is left to a pending reset
+     */
+    private boolean deferIfNotUiThread() {
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            return isResetPending;
+        }
+        if (!isResetPending) {
+            isResetPending = true;
+            mHandler.post(mResetTask);
+        }
+        return true;
+    }
+}
@@ -13,13 +13,12 @@ import android.widget.TextView;
 
 import com.mrikso.codeeditor.R;
 import com.mrikso.codeeditor.lang.Language;
-import com.mrikso.codeeditor.lang.LanguageNonProg;
+import com.mrikso.codeeditor.util.IdentifierIndex;
 import com.mrikso.codeeditor.view.FreeScrollingTextField;
 
 
 public class AutoCompletePanel {
 
-    public static Language _globalLanguage = LanguageNonProg.getInstance();
     public CharSequence _constraint;
     private FreeScrollingTextField _textField;
     private Context _context;
@@ -41,12 +40,18 @@ public class AutoCompletePanel {
 
     }
 
-    synchronized public static Language getLanguage() {
-        return _globalLanguage;
+    /**
+     * Returns the language of the document shown in the text field
+     */
+    public Language getLanguage() {
+        return _textField.getLanguage();
     }
 
-    synchronized public static void setLanguage(Language lang) {
-        _globalLanguage = lang;
+    /**
+     * Returns the identifiers of the document shown in the text field
+     */
+    public IdentifierIndex getIdentifiers() {
+        return _textField.getIdentifiers();
     }
 
     public void setTextColor(int color) {
@@ -19,7 +19,9 @@ import android.widget.ImageView;
 import android.widget.TextView;
 
 import com.mrikso.codeeditor.R;
+import com.mrikso.codeeditor.lang.Language;
 import com.mrikso.codeeditor.util.Flag;
+import com.mrikso.codeeditor.util.IdentifierIndex;
 import com.mrikso.codeeditor.view.FreeScrollingTextField;
 
 import java.util.ArrayList;
@@ -164,18 +166,28 @@ public class AutoPanelAdapter extends BaseAdapter implements Filterable {
                 // 过滤后利用FilterResults将过滤结果返回
                 ArrayList<String> buf = new ArrayList<String>();
                 String input = String.valueOf(constraint).toLowerCase();
+                Language language = mAutoComplete.getLanguage();
 
-                String[] keywords = AutoCompletePanel._globalLanguage.getUserWord();
+                String[] keywords = language.getUserWord();
                 for (String k : keywords) {
                     if (k.toLowerCase().startsWith(input))
                         buf.add(k);
                 }
-                keywords = AutoCompletePanel._globalLanguage.getKeywords();
+                // identifiers of the document; the word being typed is
+                // itself indexed, so skip it unless it also occurs elsewhere
+                IdentifierIndex identifiers = mAutoComplete.getIdentifiers();
+                for (String k : identifiers.getWords()) {
+                    if (k.toLowerCase().startsWith(input)
+                            && !language.isUserWord(k) && !language.isName(k)
+                            && !(k.equalsIgnoreCase(input) && identifiers.getCount(k) <= 1))
+                        buf.add(k);
+                }
+                keywords = language.getKeywords();
                 for (String k : keywords) {
                     if (k.indexOf(input) == 0)
                         buf.add(k);
                 }
-                keywords = AutoCompletePanel._globalLanguage.getNames();
+                keywords = language.getNames();
                 for (String k : keywords) {
                     if (k.toLowerCase().startsWith(input))
                         buf.add(k);
@@ -0,0 +1,129 @@
+package com.mrikso.codeeditor.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DelimiterMatcherTest {
+    private static final DelimiterMatcher C_LIKE = new DelimiterMatcher(
+            new String[]{"//"},
+            new String[]{"/*", "\"", "\"\"\""},
+            new String[]{"*/", "\"", "\"\"\""});
+
+    /**
+     * @return For each char of text, the longest start delimiter ending at it,
+     * or NO_MATCH
+     */
+    private static int[] startsIn(DelimiterMatcher matcher, String text) {
+        int[] starts = new int[text.length()];
+        int state = DelimiterMatcher.ROOT;
+        for (int i = 0; i < text.length(); ++i) {
+            state = matcher.next(state, text.charAt(i));
+            starts[i] = matcher.startAt(state);
+        }
+        return starts;
+    }
+
+    private static int stateAfter(DelimiterMatcher matcher, String text) {
+        int state = DelimiterMatcher.ROOT;
+        for (int i = 0; i < text.length(); ++i) {
+            state = matcher.next(state, text.charAt(i));
+        }
+        return state;
+    }
+
+    @Test
+    public void startAt_prefersLongestOfPrefixDelimiters() {
+        DelimiterMatcher matcher = new DelimiterMatcher(
+                new String[]{"/"}, new String[]{"/*"}, new String[]{"*/"});
+        final int slash = 0;
+        final int comment = 1;
+        assertTrue(matcher.isLineStart(slash));
+        assertFalse(matcher.isLineStart(comment));
+        assertEquals(2, matcher.length(comment));
+
+        int no = DelimiterMatcher.NO_MATCH;
+        assertArrayEquals(new int[]{no, slash, comment, no, slash, slash},
+                startsIn(matcher, "a/*b//"));
+        assertArrayEquals(new int[]{slash, slash, slash, comment},
+                startsIn(matcher, "///*"));
+    }
+
+    @Test
+    public void startAt_findsDelimitersThatOverlap() {
+        final int lineComment = 0;
+        final int comment = 1;
+        final int quote = 2;
+        final int tripleQuote = 3;
+        int no = DelimiterMatcher.NO_MATCH;
+
+        // "*/*" ends "*/" and starts "/*" with the same slash
+        assertArrayEquals(new int[]{no, no, comment}, startsIn(C_LIKE, "*/*"));
+        assertTrue(C_LIKE.isEndAt(stateAfter(C_LIKE, "*/"), comment));
+        // "///" has "//" ending at both of its last two chars
+        assertArrayEquals(new int[]{no, lineComment, lineComment}, startsIn(C_LIKE, "///"));
+        // a quote is also a prefix of a triple quote, and triple quotes overlap
+        assertArrayEquals(new int[]{quote, quote, tripleQuote, tripleQuote},
+                startsIn(C_LIKE, "\"\"\"\""));
+    }
+
+    @Test
+    public void isEndAt_onlyMatchesEndOfGivenStart() {
+        final int comment = 1;
+        final int quote = 2;
+        final int tripleQuote = 3;
+        int state = stateAfter(C_LIKE, "x*/");
+        assertTrue(C_LIKE.isEndAt(state, comment));
+        assertFalse(C_LIKE.isEndAt(state, quote));
+
+        state = stateAfter(C_LIKE, "a\"");
+        assertTrue(C_LIKE.isEndAt(state, quote));
+        assertFalse(C_LIKE.isEndAt(state, tripleQuote));
+        assertFalse(C_LIKE.isEndAt(state, comment));
+
+        state = stateAfter(C_LIKE, "\"\"\"");
+        assertTrue(C_LIKE.isEndAt(state, quote));
+        assertTrue(C_LIKE.isEndAt(state, tripleQuote));
+    }
+
+    @Test
+    public void next_findsMultiCharDelimitersStartingMidWord() {
+        DelimiterMatcher matcher = new DelimiterMatcher(
+                new String[]{"rem", "--"}, new String[]{"<!--"}, new String[]{"-->"});
+        final int rem = 0;
+        final int dashes = 1;
+        final int open = 2;
+        int no = DelimiterMatcher.NO_MATCH;
+
+        // a partial match of "rem" fails on a repeated 'r' and restarts from it
+        assertArrayEquals(new int[]{no, no, no, no, no, rem, no},
+                startsIn(matcher, "xrrrem!"));
+        assertArrayEquals(new int[]{no, no, no, rem}, startsIn(matcher, "rrem"));
+        // "<!--" contains "--", and the longer delimiter wins where both end
+        assertArrayEquals(new int[]{no, no, no, no, open}, startsIn(matcher, "a<!--"));
+        assertArrayEquals(new int[]{no, no, dashes}, startsIn(matcher, "<--"));
+        assertTrue(matcher.isEndAt(stateAfter(matcher, "ab-->"), open));
+        assertFalse(matcher.isEndAt(stateAfter(matcher, "ab->"), open));
+    }
+
+    @Test
+    public void next_resetsOnCharsOutsideDelimiters() {
+        DelimiterMatcher matcher = new DelimiterMatcher(
+                new String[]{"«»"}, new String[]{"/*"}, new String[]{"*/"});
+        assertEquals(DelimiterMatcher.ROOT, stateAfter(matcher, "/x"));
+        assertEquals(DelimiterMatcher.ROOT, stateAfter(matcher, "«ж"));
+        assertEquals(DelimiterMatcher.NO_MATCH, matcher.startAt(stateAfter(matcher, "/x*")));
+        assertEquals(0, matcher.startAt(stateAfter(matcher, "ж«»")));
+        assertEquals(DelimiterMatcher.NO_MATCH, matcher.startAt(stateAfter(matcher, "«ж»")));
+    }
+
+    @Test
+    public void emptyMatcher_neverMatches() {
+        DelimiterMatcher matcher = new DelimiterMatcher(new String[0], new String[0], new String[0]);
+        assertTrue(matcher.isEmpty());
+        assertFalse(C_LIKE.isEmpty());
+        int state = stateAfter(matcher, "/* // \"");
+        assertEquals(DelimiterMatcher.ROOT, state);
+        assertEquals(DelimiterMatcher.NO_MATCH, matcher.startAt(state));
+    }
+}
@@ -0,0 +1,124 @@
+package com.mrikso.codeeditor.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class FoldRegionsTest {
+    /**
+     * [10, 50) containing [20, 30) and [30, 40), and [60, 70)
+     */
+    private static FoldRegions newRegions() {
+        FoldRegions folds = new FoldRegions();
+        folds.set(new int[]{30, 60, 10, 20, 20}, new int[]{40, 70, 50, 30, 30}, 5);
+        return folds;
+    }
+
+    @Test
+    public void set_sortsOuterFirstAndDropsDuplicates() {
+        FoldRegions folds = newRegions();
+        assertEquals(4, folds.size());
+        int[] expected = {10, 50, 20, 30, 30, 40, 60, 70};
+        for (int i = 0; i < folds.size(); ++i) {
+            assertEquals(expected[2 * i], folds.getStart(i));
+            assertEquals(expected[2 * i + 1], folds.getEnd(i));
+            assertFalse(folds.isCollapsed(i));
+        }
+        assertEquals(0, folds.findStartingAt(10));
+        assertEquals(-1, folds.findStartingAt(11));
+    }
+
+    @Test
+    public void set_keepsCollapsedRegions() {
+        FoldRegions folds = newRegions();
+        folds.setCollapsed(folds.findStartingAt(20), true);
+        folds.set(new int[]{20, 60}, new int[]{35, 70}, 2);
+        assertEquals(2, folds.size());
+        int i = folds.findStartingAt(20);
+        assertTrue(folds.isCollapsed(i));
+        assertEquals(30, folds.getEnd(i));
+    }
+
+    @Test
+    public void collapsedRanges_areJoined() {
+        FoldRegions folds = newRegions();
+        folds.setCollapsed(folds.findStartingAt(20), true);
+        folds.setCollapsed(folds.findStartingAt(30), true);
+        folds.setCollapsed(folds.findStartingAt(60), true);
+        assertArrayEquals(new int[]{20, 40, 60, 70}, folds.getCollapsedRanges());
+
+        folds.setCollapsed(folds.findStartingAt(10), true);
+        assertArrayEquals(new int[]{10, 50, 60, 70}, folds.getCollapsedRanges());
+    }
+
+    @Test
+    public void expandAt_expandsOnlyContainingRegions() {
+        FoldRegions folds = newRegions();
+        for (int i = 0; i < folds.size(); ++i) {
+            folds.setCollapsed(i, true);
+        }
+        assertTrue(folds.expandAt(25));
+        assertFalse(folds.isCollapsed(folds.findStartingAt(10)));
+        assertFalse(folds.isCollapsed(folds.findStartingAt(20)));
+        assertTrue(folds.isCollapsed(folds.findStartingAt(30)));
+        assertTrue(folds.isCollapsed(folds.findStartingAt(60)));
+        assertFalse(folds.expandAt(55));
+    }
+
+    @Test
+    public void insert_shiftsAndExpandsEditedRegions() {
+        FoldRegions folds = newRegions();
+        folds.setCollapsed(folds.findStartingAt(20), true);
+        folds.setCollapsed(folds.findStartingAt(60), true);
+        folds.onInsert(25, 5);
+        assertFalse(folds.isCollapsed(folds.findStartingAt(20)));
+        assertEquals(35, folds.getEnd(folds.findStartingAt(20)));
+        assertEquals(55, folds.getEnd(folds.findStartingAt(10)));
+        int i = folds.findStartingAt(65);
+        assertTrue(folds.isCollapsed(i));
+        assertEquals(75, folds.getEnd(i));
+    }
+
+    @Test
+    public void delete_dropsRegionsWhoseStartIsRemoved() {
+        FoldRegions folds = newRegions();
+        folds.onDelete(25, 10);
+        // [30, 40) started in the deleted range, and [20, 30) ended in it
+        assertEquals(2, folds.size());
+        assertEquals(10, folds.getStart(0));
+        assertEquals(40, folds.getEnd(0));
+        assertEquals(50, folds.getStart(1));
+        assertEquals(60, folds.getEnd(1));
+    }
+
+    @Test
+    public void document_hidesCollapsedRows() {
+        Document doc = new Document(new Document.TextFieldMetrics() {
+            @Override
+            public int getAdvance(char c) {
+                return 1;
+            }
+
+            @Override
+            public int getRowWidth() {
+                return 0;
+            }
+
+            @Override
+            public int getFixedAdvance() {
+                return 0;
+            }
+        });
+        doc.setText("a {\nb\nc\n}\nd\n");
+        doc.analyzeWordWrap();
+        // the lines after the first one, up to the closing brace
+        doc.setFoldRegions(new int[]{4}, new int[]{8}, 1, doc.getVersion());
+        int rowCount = doc.getRowCount();
+        assertTrue(doc.toggleFold(0));
+        assertEquals(rowCount - 2, doc.getRowCount());
+        assertEquals(8, doc.getRowOffset(1));
+
+        assertTrue(doc.expandFoldsAt(5));
+        assertEquals(rowCount, doc.getRowCount());
+    }
+}
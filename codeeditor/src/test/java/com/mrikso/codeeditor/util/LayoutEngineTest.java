@@ -0,0 +1,110 @@
+package com.mrikso.codeeditor.util;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class LayoutEngineTest {
+    /**
+     * Measures every char as advance, except the chars in wide as 2 *
+     * advance, and counts calls that overlap
+     */
+    private static class FakeMeasurer implements LayoutEngine.GlyphMeasurer {
+        private final int _advance;
+        private final String _wide;
+        final AtomicInteger calls = new AtomicInteger();
+        final AtomicInteger overlaps = new AtomicInteger();
+        private final AtomicInteger _inside = new AtomicInteger();
+
+        FakeMeasurer(int advance, String wide) {
+            _advance = advance;
+            _wide = wide;
+        }
+
+        @Override
+        public void measure(char[] chars, int[] advances) {
+            if (_inside.incrementAndGet() > 1) {
+                overlaps.incrementAndGet();
+            }
+            calls.incrementAndGet();
+            for (int i = 0; i < chars.length; ++i) {
+                advances[i] = (_wide.indexOf(chars[i]) >= 0) ? 2 * _advance : _advance;
+            }
+            Thread.yield();
+            _inside.decrementAndGet();
+        }
+    }
+
+    @Test
+    public void snapshot_doesNotChangeWithSettings() {
+        LayoutEngine engine = new LayoutEngine(new FakeMeasurer(5, ""), 0.5f);
+        engine.setRowWidth(100);
+        engine.setTabLength(4);
+        Document.TextFieldMetrics snapshot = engine.snapshot();
+
+        engine.setRowWidth(300);
+        engine.setTabLength(8);
+        engine.setShowNonPrinting(true);
+        engine.setMeasurer(new FakeMeasurer(7, ""));
+
+        assertEquals(100, snapshot.getRowWidth());
+        assertEquals(20, snapshot.getAdvance('\t'));
+        assertEquals(5, snapshot.getAdvance('a'));
+        assertEquals(2, snapshot.getAdvance('\n'));
+        assertEquals(300, engine.getRowWidth());
+        assertEquals(56, engine.getAdvance('\t'));
+        assertEquals(7, engine.getAdvance('a'));
+    }
+
+    @Test
+    public void tabAdvance_isTabLengthSpaces() {
+        LayoutEngine engine = new LayoutEngine(new FakeMeasurer(6, ""), 0.5f);
+        engine.setTabLength(3);
+        assertEquals(18, engine.getTabAdvance());
+        assertEquals(18, engine.getAdvance('\t'));
+        assertEquals(3, engine.getAdvance('\n'));
+    }
+
+    @Test
+    public void fixedAdvance_whenAsciiAdvancesAreEqual() {
+        LayoutEngine engine = new LayoutEngine(new FakeMeasurer(8, "中"), 0.5f);
+        assertEquals(8, engine.getFixedAdvance());
+        assertEquals(16, engine.getAdvance('中'));
+    }
+
+    @Test
+    public void fixedAdvance_isZeroWhenAsciiAdvancesDiffer() {
+        LayoutEngine engine = new LayoutEngine(new FakeMeasurer(8, "W"), 0.5f);
+        assertEquals(0, engine.getFixedAdvance());
+
+        engine.setMeasurer(new FakeMeasurer(8, ""));
+        assertEquals(8, engine.getFixedAdvance());
+    }
+
+    @Test
+    public void measurer_isNeverCalledConcurrently() throws InterruptedException {
+        FakeMeasurer measurer = new FakeMeasurer(1, "");
+        final LayoutEngine engine = new LayoutEngine(measurer, 0.5f);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; ++t) {
+            final int first = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int c = first; c <= Character.MAX_VALUE; c += 3) {
+                        engine.getGlyphAdvance((char) c);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, measurer.overlaps.get());
+        // each page is measured once
+        assertEquals((Character.MAX_VALUE + 1) / 128, measurer.calls.get());
+    }
+}
@@ -0,0 +1,97 @@
+package com.mrikso.codeeditor.util;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class LineWidthsTest {
+    private static final Document.TextFieldMetrics METRICS = new Document.TextFieldMetrics() {
+        @Override
+        public int getAdvance(char c) {
+            return 1;
+        }
+
+        @Override
+        public int getRowWidth() {
+            return 0;
+        }
+
+        @Override
+        public int getFixedAdvance() {
+            return 0;
+        }
+    };
+
+    private static void measureAll(Document doc, LineWidths widths) {
+        int line;
+        while ((line = widths.nextUnmeasuredLine()) >= 0) {
+            widths.setWidth(line, doc.getLine(line).length());
+        }
+    }
+
+    @Test
+    public void maxWidth_followsEdits() {
+        Random random = new Random(3);
+        Document doc = new Document(METRICS);
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 2000; ++i) {
+            text.append((random.nextInt(5) == 0) ? '\n' : (char) ('a' + random.nextInt(3)));
+        }
+        doc.setText(text.toString());
+        LineWidths widths = new LineWidths(new DocumentProvider(doc));
+        doc.addEditListener(widths);
+
+        for (int i = 0; i < 5000; ++i) {
+            int length = doc.getTextLength() - 1;
+            if (random.nextInt(5) < 3 || length < 10) {
+                char[] chars = new char[1 + random.nextInt(6)];
+                for (int j = 0; j < chars.length; ++j) {
+                    chars[j] = (random.nextInt(3) == 0) ? '\n' : 'y';
+                }
+                doc.insert(chars, random.nextInt(length + 1), i, true);
+            } else {
+                int offset = random.nextInt(length);
+                doc.delete(offset, Math.min(1 + random.nextInt(8), length - offset), i, true);
+            }
+            if (i % 7 == 0 && doc.canUndo()) {
+                doc.undo();
+            }
+            if (i % 11 == 0 && doc.canRedo()) {
+                doc.redo();
+            }
+
+            if (i % 10 == 0) {
+                measureAll(doc, widths);
+                assertTrue(widths.isExact());
+                assertEquals(doc.getLineCount(), widths.size());
+                int maxWidth = 0;
+                for (int line = 0; line < doc.getLineCount(); ++line) {
+                    maxWidth = Math.max(maxWidth, doc.getLine(line).length());
+                }
+                assertEquals(maxWidth, widths.getMaxWidth());
+            }
+        }
+    }
+
+    @Test
+    public void editedLines_areUnmeasured() {
+        Document doc = new Document(METRICS);
+        doc.setText("ab\ncd\nef\n");
+        LineWidths widths = new LineWidths(new DocumentProvider(doc));
+        doc.addEditListener(widths);
+        measureAll(doc, widths);
+
+        doc.insert(new char[]{'x', '\n'}, 4, 0, false);
+        assertEquals(doc.getLineCount(), widths.size());
+        assertTrue(widths.isMeasured(0));
+        assertFalse(widths.isMeasured(1));
+        assertFalse(widths.isMeasured(2));
+        assertTrue(widths.isMeasured(3));
+
+        widths.invalidateAll();
+        assertFalse(widths.isExact());
+        assertEquals(0, widths.getMaxWidth());
+    }
+}
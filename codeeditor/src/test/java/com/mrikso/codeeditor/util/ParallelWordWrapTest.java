@@ -0,0 +1,94 @@
+package com.mrikso.codeeditor.util;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ParallelWordWrapTest {
+    private static final Document.TextFieldMetrics METRICS = new Document.TextFieldMetrics() {
+        @Override
+        public int getAdvance(char c) {
+            return (c == 'W') ? 3 : (c > 0x800) ? 2 : 1;
+        }
+
+        @Override
+        public int getRowWidth() {
+            return 20;
+        }
+
+        @Override
+        public int getFixedAdvance() {
+            return 0;
+        }
+    };
+
+    /**
+     * Lines of random lengths, a few of them longer than a chunk
+     */
+    private static String randomText(Random random, int length) {
+        String alphabet = "ab W\tcccccccccccccc中";
+        StringBuilder text = new StringBuilder();
+        while (text.length() < length) {
+            int lineLength = (random.nextInt(10) == 0) ? random.nextInt(3000) : random.nextInt(60);
+            if (random.nextInt(200) == 0) {
+                lineLength = 300000;
+            }
+            for (int i = 0; i < lineLength; ++i) {
+                text.append(alphabet.charAt(random.nextInt(alphabet.length())));
+            }
+            text.append('\n');
+        }
+        return text.toString();
+    }
+
+    private static Document wrappedDocument(String text) {
+        Document doc = new Document(METRICS);
+        doc.setText(text);
+        doc.setWordWrap(true);
+        return doc;
+    }
+
+    @Test
+    public void rows_equalSequentialWordWrap() {
+        Random random = new Random(5);
+        for (int length : new int[]{10, 1000, 100000, 1500000}) {
+            String text = randomText(random, length);
+            Document expected = wrappedDocument(text);
+            while (expected.refineWordWrap(Integer.MAX_VALUE)) {
+                // measure the rest
+            }
+
+            Document doc = wrappedDocument(text);
+            ParallelWordWrap wrap = new ParallelWordWrap(new DocumentProvider(doc), METRICS);
+            assertTrue(wrap.run());
+            assertTrue(wrap.apply());
+            assertTrue(doc.isWordWrapExact());
+            assertEquals(expected.getRowCount(), doc.getRowCount());
+            for (int row = 0; row < expected.getRowCount(); ++row) {
+                assertEquals(expected.getRowOffset(row), doc.getRowOffset(row));
+            }
+        }
+    }
+
+    @Test
+    public void apply_dropsRowsAfterEdit() {
+        Document doc = wrappedDocument(randomText(new Random(1), 5000));
+        ParallelWordWrap wrap = new ParallelWordWrap(new DocumentProvider(doc), METRICS);
+        assertTrue(wrap.run());
+        doc.insert(new char[]{'x'}, 0, 0, false);
+        assertFalse(wrap.isForCurrentText());
+        assertFalse(wrap.apply());
+    }
+
+    @Test
+    public void apply_dropsRowsAfterCancel() {
+        Document doc = wrappedDocument(randomText(new Random(2), 5000));
+        ParallelWordWrap wrap = new ParallelWordWrap(new DocumentProvider(doc), METRICS);
+        wrap.cancel();
+        assertFalse(wrap.run());
+        assertTrue(wrap.isFinished());
+        assertFalse(wrap.apply());
+    }
+}
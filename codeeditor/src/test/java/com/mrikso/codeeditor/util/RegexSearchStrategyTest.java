@@ -0,0 +1,136 @@
+package com.mrikso.codeeditor.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RegexSearchStrategyTest {
+    private static final Document.TextFieldMetrics METRICS = new Document.TextFieldMetrics() {
+        @Override
+        public int getAdvance(char c) {
+            return 1;
+        }
+
+        @Override
+        public int getRowWidth() {
+            return 0;
+        }
+
+        @Override
+        public int getFixedAdvance() {
+            return 0;
+        }
+    };
+    /**
+     * The size of the windows the strategy searches
+     */
+    private static final int WINDOW_SIZE = 64 * 1024;
+
+    private static DocumentProvider newDocument(String text) {
+        Document doc = new Document(METRICS);
+        doc.setText(text);
+        return new DocumentProvider(doc);
+    }
+
+    private static String textOf(DocumentProvider src) {
+        return src.asCharSequence().toString();
+    }
+
+    private static String replaceAll(String text, String regex, String replacement) {
+        DocumentProvider src = newDocument(text);
+        new RegexSearchStrategy().replaceAll(src, regex, replacement, 0, true, false);
+        return textOf(src);
+    }
+
+    @Test
+    public void replaceAll_expandsGroupReferences() {
+        assertEquals("b=a; d=c;", replaceAll("a=b; c=d;", "(\\w)=(\\w)", "$2=$1"));
+        assertEquals("[a=b] [c=d]", replaceAll("a=b c=d", "\\w=\\w", "[$0]"));
+        // digits after a group number are kept while they name a group
+        assertEquals("a1 c1", replaceAll("ab cd", "(\\w)\\w", "$11"));
+    }
+
+    @Test
+    public void replaceAll_unescapesBackslash() {
+        assertEquals("$1 \\ x", replaceAll("a \\ x", "(a)", "\\$1"));
+        assertEquals("a\\b", replaceAll("a-b", "-", "\\\\"));
+    }
+
+    @Test
+    public void replaceAll_countsMatchesAndMovesMark() {
+        DocumentProvider src = newDocument("foo(1, 2) bar foo(3,4)");
+        Pair result = new RegexSearchStrategy().replaceAll(src,
+                "foo\\((\\w+),\\s*(\\w+)\\)", "f($2,$1)", 14, true, false);
+        assertEquals("f(2,1) bar f(4,3)", textOf(src));
+        assertEquals(2, result.getFirst());
+        assertEquals(11, result.getSecond());
+    }
+
+    @Test
+    public void replaceAll_rejectsNamedGroupReferences() {
+        DocumentProvider src = newDocument("ab");
+        try {
+            new RegexSearchStrategy().replaceAll(src, "(?<x>a)", "${x}", 0, true, false);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("ab", textOf(src));
+        }
+    }
+
+    @Test
+    public void replaceAll_rejectsGroupsPastTheLast() {
+        DocumentProvider src = newDocument("ab");
+        try {
+            new RegexSearchStrategy().replaceAll(src, "(a)", "$2", 0, true, false);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("No group 2", e.getMessage());
+            assertEquals("ab", textOf(src));
+        }
+    }
+
+    @Test
+    public void find_matchesAcrossWindowBoundary() {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 3 * WINDOW_SIZE; ++i) {
+            text.append('.');
+        }
+        int first = WINDOW_SIZE - 3;
+        int second = 2 * WINDOW_SIZE - 1;
+        text.replace(first, first + 6, "foobar");
+        text.replace(second, second + 6, "foobar");
+        DocumentProvider src = newDocument(text.toString());
+        RegexSearchStrategy finder = new RegexSearchStrategy();
+
+        assertEquals(first, finder.find(src, "fo+bar", 0, src.docLength(), true, false));
+        assertEquals(6, finder.getMatchLength());
+        assertEquals(second, finder.find(src, "fo+bar", first + 1, src.docLength(), true, false));
+        assertEquals(second, finder.findBackwards(src, "fo+bar", src.docLength() - 1, -1, true, false));
+        assertEquals(first, finder.findBackwards(src, "fo+bar", second - 1, -1, true, false));
+
+        Pair result = finder.replaceAll(src, "o+b", "0", 0, true, false);
+        assertEquals(2, result.getFirst());
+        assertEquals("f0ar", textOf(src).substring(first, first + 4));
+        assertEquals("f0ar", textOf(src).substring(second - 2, second + 2));
+    }
+
+    @Test
+    public void find_matchStartingInOneWindowIsNotFoundAgainInTheNext() {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 2 * WINDOW_SIZE; ++i) {
+            text.append('.');
+        }
+        int start = WINDOW_SIZE - 10;
+        for (int i = start; i < start + 100; ++i) {
+            text.setCharAt(i, 'x');
+        }
+        DocumentProvider src = newDocument(text.toString());
+        RegexSearchStrategy finder = new RegexSearchStrategy();
+
+        assertEquals(start, finder.find(src, "x+", 0, src.docLength(), true, false));
+        assertEquals(100, finder.getMatchLength());
+        Pair result = finder.replaceAll(src, "x+", "y", 0, true, false);
+        assertEquals(1, result.getFirst());
+        assertEquals(2 * WINDOW_SIZE - 99, textOf(src).length());
+    }
+}
@@ -0,0 +1,168 @@
+package com.mrikso.codeeditor.util;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class RowCheckpointsTest {
+    private static final char EMOJI_HIGH = '\ud83d';
+
+    private static final Document.TextFieldMetrics METRICS = new Document.TextFieldMetrics() {
+        @Override
+        public int getAdvance(char c) {
+            return 7;
+        }
+
+        @Override
+        public int getRowWidth() {
+            return 0;
+        }
+
+        @Override
+        public int getFixedAdvance() {
+            return 0;
+        }
+    };
+
+    /**
+     * Measures like the text field does, with tab stops every 32 pixels and
+     * surrogate pairs measured together
+     */
+    private static int measure(char[] text, int start, int end, int x) {
+        char previous = 0;
+        for (int i = start; i < end; ++i) {
+            char c = text[i];
+            if (previous == EMOJI_HIGH) {
+                x += 20;
+            } else if (c == '\t') {
+                x += 32 - x % 32;
+            } else if (c != EMOJI_HIGH) {
+                x += (c == 'm') ? 9 : (c > 0x3000) ? 12 : 7;
+            }
+            previous = c;
+        }
+        return x;
+    }
+
+    private static final RowCheckpoints.Measurer MEASURER = new RowCheckpoints.Measurer() {
+        @Override
+        public int measure(char[] text, int start, int end, int x) {
+            return RowCheckpointsTest.measure(text, start, end, x);
+        }
+    };
+
+    @Test
+    public void checkpoints_matchMeasuringFromRowStart() {
+        Random random = new Random(3);
+        String alphabet = "abm\t中 ";
+        StringBuilder text = new StringBuilder();
+        for (int line = 0; line < 20; ++line) {
+            int length = (random.nextInt(5) == 0) ? random.nextInt(20) : random.nextInt(5000);
+            for (int i = 0; i < length; ++i) {
+                if (random.nextInt(300) == 0) {
+                    text.append("😀");
+                } else {
+                    text.append(alphabet.charAt(random.nextInt(alphabet.length())));
+                }
+            }
+            text.append('\n');
+        }
+        Document doc = new Document(METRICS);
+        doc.setText(text.toString());
+        RowCheckpoints checkpoints = new RowCheckpoints(new DocumentProvider(doc), MEASURER);
+        doc.addEditListener(checkpoints);
+
+        for (int i = 0; i < 2000; ++i) {
+            if (random.nextInt(3) == 0) {
+                edit(doc, random);
+            }
+            int row = random.nextInt(doc.getRowCount());
+            int rowOffset = doc.getRowOffset(row);
+            int rowLength = doc.getRowSize(row);
+            if (rowLength == 0) {
+                continue;
+            }
+            char[] chars = new char[rowLength];
+            doc.getChars(rowOffset, rowOffset + rowLength, chars, 0);
+
+            int index = random.nextInt(rowLength + 1);
+            Pair p = checkpoints.findByIndex(rowOffset, rowLength, index);
+            assertTrue(p.first <= index);
+            assertTrue(index - p.first <= RowCheckpoints.CHECKPOINT_INTERVAL);
+            assertFalse(p.first < rowLength && Character.isLowSurrogate(chars[p.first]));
+            assertEquals(measure(chars, 0, p.first, 0), p.second);
+
+            int x = random.nextInt(measure(chars, 0, rowLength, 0) + 50);
+            Pair q = checkpoints.findByX(rowOffset, rowLength, x);
+            assertEquals(measure(chars, 0, q.first, 0), q.second);
+            assertTrue(q.first == 0 || q.second < x);
+            int hit = firstCharReaching(chars, x);
+            if (hit >= 0) {
+                assertTrue(hit >= q.first);
+                assertTrue(hit < q.first + RowCheckpoints.CHECKPOINT_INTERVAL);
+            }
+        }
+    }
+
+    @Test
+    public void measureMore_reachesRowEndInSlices() {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 3000; ++i) {
+            text.append((i % 100 == 0) ? "😀" : (i % 7 == 0) ? "\t" : "m");
+        }
+        text.append('\n');
+        Document doc = new Document(METRICS);
+        doc.setText(text.toString());
+        RowCheckpoints checkpoints = new RowCheckpoints(new DocumentProvider(doc), MEASURER);
+        char[] chars = text.toString().toCharArray();
+
+        int slices = 0;
+        Pair reached;
+        do {
+            reached = checkpoints.measureMore(0, chars.length, 500);
+            assertEquals(measure(chars, 0, reached.first, 0), reached.second);
+            ++slices;
+        } while (reached.first < chars.length);
+        assertEquals(measure(chars, 0, chars.length, 0), reached.second);
+        assertTrue(slices > 1);
+    }
+
+    /**
+     * Inserts or deletes a few chars, without splitting a surrogate pair
+     */
+    private static void edit(Document doc, Random random) {
+        int length = doc.getTextLength();
+        int offset = random.nextInt(length);
+        if (random.nextBoolean()) {
+            String s = (random.nextInt(10) == 0) ? "\n" : (random.nextInt(5) == 0) ? "😀" : "m\t";
+            if (!Character.isLowSurrogate(doc.charAt(offset))) {
+                doc.insert(s.toCharArray(), offset, 0, false);
+            }
+        } else {
+            int n = Math.min(1 + random.nextInt(30), length - 1 - offset);
+            if (n > 0 && !Character.isLowSurrogate(doc.charAt(offset))
+                    && !Character.isLowSurrogate(doc.charAt(offset + n))) {
+                doc.delete(offset, n, 0, false);
+            }
+        }
+    }
+
+    /**
+     * @return The index of the first char whose right edge is at or after
+     * x, or -1 if there is none
+     */
+    private static int firstCharReaching(char[] chars, int x) {
+        int right = 0;
+        for (int i = 0; i < chars.length; ++i) {
+            // the high surrogate before a low one adds nothing
+            int start = (i > 0 && chars[i - 1] == EMOJI_HIGH) ? i - 1 : i;
+            right = measure(chars, start, i + 1, right);
+            if (right >= x) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
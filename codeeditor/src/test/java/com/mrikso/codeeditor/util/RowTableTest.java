@@ -0,0 +1,86 @@
+package com.mrikso.codeeditor.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class RowTableTest {
+    @Test
+    public void reset_leavesRowZero() {
+        RowTable rows = new RowTable();
+        rows.insert(1, 10, true);
+        rows.reset();
+        assertEquals(1, rows.size());
+        assertEquals(0, rows.get(0));
+        assertEquals(0, rows.estimateCount());
+    }
+
+    @Test
+    public void edits_matchList() {
+        Random random = new Random(3);
+        RowTable rows = new RowTable();
+        // offsets in ascending order, with gaps between them for inserts
+        List<Integer> offsets = new ArrayList<>();
+        List<Boolean> estimates = new ArrayList<>();
+        offsets.add(0);
+        estimates.add(false);
+        for (int i = 0; i < 20000; ++i) {
+            int op = random.nextInt(4);
+            int row = 1 + random.nextInt(offsets.size());
+            if (op == 0 || offsets.size() < 3) {
+                int before = offsets.get(row - 1);
+                int after = (row < offsets.size()) ? offsets.get(row) : before + 200;
+                if (after - before < 2) {
+                    continue;
+                }
+                int offset = before + 1 + random.nextInt(after - before - 1);
+                boolean isEstimate = random.nextBoolean();
+                rows.insert(row, offset, isEstimate);
+                offsets.add(row, offset);
+                estimates.add(row, isEstimate);
+            } else if (op == 1) {
+                int end = Math.min(offsets.size(), row + random.nextInt(5));
+                rows.remove(row, end);
+                offsets.subList(row, end).clear();
+                estimates.subList(row, end).clear();
+            } else if (op == 2 && row < offsets.size()) {
+                int room = offsets.get(row) - offsets.get(row - 1) - 1;
+                int delta = random.nextInt(100) - Math.min(room, 50);
+                rows.shift(row, delta);
+                for (int j = row; j < offsets.size(); ++j) {
+                    offsets.set(j, offsets.get(j) + delta);
+                }
+            } else if (row < offsets.size()) {
+                boolean isEstimate = random.nextBoolean();
+                rows.setEstimate(row, isEstimate);
+                estimates.set(row, isEstimate);
+            }
+
+            if (i % 100 == 0) {
+                assertEquals(offsets.size(), rows.size());
+                int estimateCount = 0;
+                for (int j = 0; j < offsets.size(); ++j) {
+                    assertEquals((int) offsets.get(j), rows.get(j));
+                    assertEquals(estimates.get(j), rows.isEstimate(j));
+                    if (estimates.get(j)) {
+                        ++estimateCount;
+                    }
+                }
+                assertEquals(estimateCount, rows.estimateCount());
+                int last = offsets.get(offsets.size() - 1);
+                for (int k = 0; k < 50; ++k) {
+                    int offset = random.nextInt(last + 10);
+                    int expected = 0;
+                    while (expected + 1 < offsets.size() && offsets.get(expected + 1) <= offset) {
+                        ++expected;
+                    }
+                    assertEquals(expected, rows.find(offset));
+                }
+            }
+        }
+    }
+}
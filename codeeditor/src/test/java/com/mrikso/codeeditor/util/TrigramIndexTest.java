@@ -0,0 +1,142 @@
+package com.mrikso.codeeditor.util;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TrigramIndexTest {
+    private static final Document.TextFieldMetrics METRICS = new Document.TextFieldMetrics() {
+        @Override
+        public int getAdvance(char c) {
+            return 1;
+        }
+
+        @Override
+        public int getRowWidth() {
+            return 0;
+        }
+
+        @Override
+        public int getFixedAdvance() {
+            return 0;
+        }
+    };
+    private static final String ALPHABET = "abcABC \nxyzЖж";
+    private static final String[] TARGETS = {"abc", "bca", "c a", "ABC\nx", "b\nA", "yzab", "xyz", "aaa", "жЖa"};
+
+    private static String randomText(Random random, int length) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < length; ++i) {
+            text.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+        }
+        return text.toString();
+    }
+
+    /**
+     * Checks that every occurrence of target in src, ignoring case, starts
+     * in one of the candidate ranges of index
+     */
+    private static void assertNoFalseNegatives(DocumentProvider src, TrigramIndex index, String target) {
+        int length = src.docLength() - 1; // without EOF
+        int[] ranges = index.candidates(target, 0, length);
+        assertNotNull(ranges);
+        for (int r = 2; r < ranges.length; r += 2) {
+            assertTrue(ranges[r - 1] < ranges[r]);
+        }
+        char[] text = new char[length];
+        src.getChars(0, length, text, 0);
+        int r = 0;
+        for (int offset = 0; offset + target.length() <= length; ++offset) {
+            if (!occursAt(text, offset, target)) {
+                continue;
+            }
+            while (r < ranges.length && ranges[r + 1] <= offset) {
+                r += 2;
+            }
+            assertTrue("missed " + target + " at " + offset,
+                    r < ranges.length && ranges[r] <= offset);
+        }
+    }
+
+    private static boolean occursAt(char[] text, int offset, String target) {
+        for (int i = 0; i < target.length(); ++i) {
+            if (!CaseFolding.equalsIgnoreCase(text[offset + i], target.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void randomEdit(DocumentProvider src, Random random, long time) {
+        int length = src.docLength();
+        if (random.nextBoolean() || length < 50) {
+            String s = "abc\nAbC xyЖ".substring(random.nextInt(5));
+            src.insertBefore(s.toCharArray(), random.nextInt(length), time);
+        } else {
+            int offset = random.nextInt(length - 40);
+            src.deleteAt(offset, Math.min(1 + random.nextInt(400), length - 1 - offset), time);
+        }
+    }
+
+    @Test
+    public void candidates_coverEveryOccurrence() throws InterruptedException {
+        Random random = new Random(11);
+        for (int round = 0; round < 30; ++round) {
+            Document doc = new Document(METRICS);
+            doc.setText(randomText(random, random.nextInt(20000)));
+            DocumentProvider src = new DocumentProvider(doc);
+            TrigramIndex index = new TrigramIndex(src, 16 + random.nextInt(200), 64 + random.nextInt(300));
+
+            // while the builder runs, and after edits
+            for (int i = 0; i < 30; ++i) {
+                int op = random.nextInt(4);
+                if (op < 2) {
+                    randomEdit(src, random, i * 2000000000L);
+                } else if (op == 2 && src.canUndo()) {
+                    src.undo();
+                }
+                assertNoFalseNegatives(src, index, TARGETS[random.nextInt(TARGETS.length)]);
+            }
+
+            while (!index.isReady()) {
+                Thread.sleep(1);
+            }
+            for (String target : TARGETS) {
+                assertNoFalseNegatives(src, index, target);
+            }
+            index.dispose();
+            assertNull(src.getTrigramIndex());
+        }
+    }
+
+    @Test
+    public void candidates_ruleOutBlocksWithoutTarget() throws InterruptedException {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 100000; ++i) {
+            text.append((char) ('a' + i % 5));
+        }
+        text.insert(70000, "needle");
+        Document doc = new Document(METRICS);
+        doc.setText(text.toString());
+        DocumentProvider src = new DocumentProvider(doc);
+        TrigramIndex index = new TrigramIndex(src, 1024, 4096);
+        while (!index.isReady()) {
+            Thread.sleep(1);
+        }
+
+        int[] ranges = index.candidates("needle", 0, src.docLength());
+        int covered = 0;
+        for (int r = 0; r < ranges.length; r += 2) {
+            covered += ranges[r + 1] - ranges[r];
+        }
+        assertTrue(covered <= 2 * 1024);
+        assertNull(index.candidates("ne", 0, src.docLength()));
+
+        HorspoolSearchStrategy finder = new HorspoolSearchStrategy();
+        assertEquals(70000, finder.find(src, "needle", 0, src.docLength(), true, false));
+        assertEquals(70000, finder.find(src, "NEEDLE", 0, src.docLength(), false, false));
+        index.dispose();
+    }
+}